@@ -26,6 +26,7 @@
 package de.theit.jenkins.crowd;
 
 import static de.theit.jenkins.crowd.ErrorMessages.accountExpired;
+import static de.theit.jenkins.crowd.ErrorMessages.applicationAccessDenied;
 import static de.theit.jenkins.crowd.ErrorMessages.applicationPermission;
 import static de.theit.jenkins.crowd.ErrorMessages.expiredCredentials;
 import static de.theit.jenkins.crowd.ErrorMessages.invalidAuthentication;
@@ -39,6 +40,8 @@ import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.servlet.http.HttpServletRequest;
+
 import org.acegisecurity.AccountExpiredException;
 import org.acegisecurity.Authentication;
 import org.acegisecurity.AuthenticationException;
@@ -48,14 +51,18 @@ import org.acegisecurity.BadCredentialsException;
 import org.acegisecurity.CredentialsExpiredException;
 import org.acegisecurity.GrantedAuthority;
 import org.acegisecurity.InsufficientAuthenticationException;
+import org.springframework.dao.DataRetrievalFailureException;
 
+import com.atlassian.crowd.embedded.api.PasswordCredential;
+import com.atlassian.crowd.exception.ApplicationAccessDeniedException;
 import com.atlassian.crowd.exception.ApplicationPermissionException;
 import com.atlassian.crowd.exception.ExpiredCredentialException;
 import com.atlassian.crowd.exception.InactiveAccountException;
 import com.atlassian.crowd.exception.InvalidAuthenticationException;
 import com.atlassian.crowd.exception.OperationFailedException;
 import com.atlassian.crowd.exception.UserNotFoundException;
-import com.atlassian.crowd.model.user.User;
+import com.atlassian.crowd.model.authentication.UserAuthenticationContext;
+import com.atlassian.crowd.model.authentication.ValidationFactor;
 
 /**
  * This class implements the authentication manager for Jenkins.
@@ -69,6 +76,9 @@ public class CrowdAuthenticationManager implements AuthenticationManager {
 	private static final Logger LOG = Logger
 			.getLogger(CrowdAuthenticationManager.class.getName());
 
+	/** The path Jenkins' login form is posted to. */
+	private static final String FORM_LOGIN_PATH = "/j_acegi_security_check";
+
 	/**
 	 * The configuration data necessary for accessing the services on the remote
 	 * Crowd server.
@@ -110,26 +120,69 @@ public class CrowdAuthenticationManager implements AuthenticationManager {
 
 		String password = authentication.getCredentials().toString();
 
+		// reject the attempt locally if there were too many failures
+		HttpServletRequest request = CrowdServletFilter.getCurrentRequest();
+		String clientAddress = CrowdLoginThrottle.getClientAddress(authentication.getDetails(), request);
+		CrowdLoginThrottle loginThrottle = this.configuration.loginThrottle;
+		loginThrottle.checkAllowed(username, clientAddress);
+
 		if (! this.configuration.allowedGroupNames.isEmpty()) {
 			// ensure that the group is available, active and that the user
 			// is a member of it
-			if (!this.configuration.isGroupMember(username)) {
+			Boolean member = this.configuration.getGroupMembership(username);
+			if (null == member) {
+				// Crowd couldn't be asked => not the user's fault
+				throw new AuthenticationServiceException(operationFailed());
+			}
+			if (!member.booleanValue()) {
+				loginThrottle.recordFailure(username, clientAddress);
 				throw new InsufficientAuthenticationException(userNotValid(
 					username, this.configuration.allowedGroupNames));
 			}
 		}
 
-		//String displayName = null;
+		CrowdUserSnapshot user;
+		String ssoToken = null;
 		try {
 			// authenticate user
 			if (LOG.isLoggable(Level.FINE)) {
 				LOG.fine("Authenticating user: " + username);
 			}
-			User user = this.configuration.crowdClient.authenticateUser(
-					username, password);
+			if (this.configuration.useSSO && isFormLogin(request)) {
+				// verify the password and create the SSO session with a
+				// single call; the token is known to be valid, so the
+				// remember-me services only have to set the cookie
+				List<ValidationFactor> validationFactors = this.configuration.tokenHelper
+						.getValidationFactorExtractor().getValidationFactors(request);
+				ssoToken = this.configuration.crowdClient.authenticateSSOUser(new UserAuthenticationContext(
+						username, PasswordCredential.unencrypted(password),
+						validationFactors.toArray(new ValidationFactor[validationFactors.size()]),
+						this.configuration.clientProperties.getApplicationName()));
+				this.configuration.tokenStore.setValidated(ssoToken);
+				// Crowd only returns the token => take the user as known
+				// locally or else ask Crowd for it, so that the principal
+				// carries Crowd's name, display name and email address
+				try {
+					user = this.configuration.getUser(username);
+				} catch (DataRetrievalFailureException ex) {
+					throw new AuthenticationServiceException(operationFailed(), ex);
+				}
+				if (null == user) {
+					throw new BadCredentialsException(userNotFound(username));
+				}
+			} else {
+				// remember the user so that subsequent lookups don't have to
+				// ask the remote Crowd server again
+				user = this.configuration.cacheUser(this.configuration.crowdClient
+						.authenticateUser(username, password));
+			}
 			CrowdAuthenticationToken.updateUserInfo(user);
-			//displayName = user.getDisplayName();
+		} catch (ApplicationAccessDeniedException ex) {
+			loginThrottle.recordFailure(username, clientAddress);
+			LOG.warning(applicationAccessDenied(username));
+			throw new InsufficientAuthenticationException(applicationAccessDenied(username), ex);
 		} catch (UserNotFoundException ex) {
+			loginThrottle.recordFailure(username, clientAddress);
 			if (LOG.isLoggable(Level.INFO)) {
 				LOG.info(userNotFound(username));
 			}
@@ -146,6 +199,9 @@ public class CrowdAuthenticationManager implements AuthenticationManager {
 			throw new AuthenticationServiceException(applicationPermission(),
 					ex);
 		} catch (InvalidAuthenticationException ex) {
+			// Crowd reports a wrong password this way, but also wrong
+			// application credentials => not necessarily the user's fault
+			loginThrottle.recordAddressFailure(clientAddress);
 			LOG.warning(invalidAuthentication());
 			throw new AuthenticationServiceException(invalidAuthentication(),
 					ex);
@@ -153,6 +209,7 @@ public class CrowdAuthenticationManager implements AuthenticationManager {
 			LOG.log(Level.SEVERE, operationFailed(), ex);
 			throw new AuthenticationServiceException(operationFailed(), ex);
 		}
+		loginThrottle.recordSuccess(username);
 
 		// user successfully authenticated
 		// => retrieve the list of groups the user is a member of
@@ -169,9 +226,21 @@ public class CrowdAuthenticationManager implements AuthenticationManager {
 			LOG.fine("User successfully authenticated; creating authentication token");
 		}
 	
-		return new CrowdAuthenticationToken(username, password, authorities,null);
+		return new CrowdAuthenticationToken(new CrowdUser(user, authorities),
+				password, authorities, ssoToken);
 	}
-	
-	
 
+	/**
+	 * Checks whether the request is an interactive login with Jenkins' login
+	 * form. Only these logins create a Crowd SSO session; logins with HTTP
+	 * basic authentication, e.g. from scripts or the CLI, don't need one.
+	 * 
+	 * @param request
+	 *            The current request. May be <code>null</code>.
+	 * @return <code>true</code> if the request posts the login form.
+	 */
+	private static boolean isFormLogin(HttpServletRequest request) {
+		return null != request && null != request.getRequestURI()
+				&& request.getRequestURI().endsWith(FORM_LOGIN_PATH);
+	}
 }
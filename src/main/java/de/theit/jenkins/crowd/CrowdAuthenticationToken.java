@@ -27,7 +27,6 @@ package de.theit.jenkins.crowd;
 
 import java.util.List;
 
-import jenkins.model.Jenkins;
 import org.acegisecurity.GrantedAuthority;
 import org.acegisecurity.providers.AbstractAuthenticationToken;
 import org.acegisecurity.userdetails.UserDetails;
@@ -58,8 +57,7 @@ public class CrowdAuthenticationToken extends AbstractAuthenticationToken {
 	 * Creates a new authorization token.
 	 * 
 	 * @param pPrincipal
-	 *            The name of the authenticated Crowd user. May not be
-	 *            <code>null</code>.
+	 *            The authenticated Crowd user. May not be <code>null</code>.
 	 * @param pCredentials
 	 *            The credentials. Normally the users password. May only be
 	 *            <code>null</code> when the SSO token is given.
@@ -70,10 +68,12 @@ public class CrowdAuthenticationToken extends AbstractAuthenticationToken {
 	 *            The Crowd SSO token. May be <code>null</code> if the token is
 	 *            not (yet) available.
 	 */
-	public CrowdAuthenticationToken(String pPrincipal, String pCredentials,
+	public CrowdAuthenticationToken(UserDetails pPrincipal, String pCredentials,
 			List<GrantedAuthority> authorities, String pSsoToken) {
 		super(authorities.toArray(new GrantedAuthority[authorities.size()]));
-		this.principal =  Jenkins.getInstance().getSecurityRealm().loadUserByUsername(pPrincipal);
+		// the caller already retrieved the user and its authorities from
+		// Crowd; there's no need to load them once again via the realm
+		this.principal = pPrincipal;
 		this.credentials = pCredentials;
 		this.ssoToken = pSsoToken;
 		super.setAuthenticated(true);
@@ -127,17 +127,21 @@ public class CrowdAuthenticationToken extends AbstractAuthenticationToken {
 	}
 	
 	
-	 public  static void updateUserInfo(com.atlassian.crowd.model.user.User user) {
-	    final String displayName = user == null ? null :  user.getDisplayName();
-        if(StringUtils.isNotBlank(displayName)){
-            final String username = user.getName();
-            getJenkinsUser(username).setFullName(displayName + " (" + username+ ')');
-        }	
-	 }
-    /**
-     * Gets the corresponding {@link hudson.model.User} object.
-     */
-    private static hudson.model.User getJenkinsUser(String username) {
-        return hudson.model.User.get(username);
-    }
+	/**
+	 * Updates the full name of the corresponding Jenkins user with the display
+	 * name stored in Crowd. The change is only persisted when the name really
+	 * differs from the one written before; writing is done asynchronously by
+	 * the {@link CrowdDisplayNameWriter}.
+	 * 
+	 * @param user
+	 *            The Crowd user. May be <code>null</code>.
+	 */
+	public static void updateUserInfo(CrowdUserSnapshot user) {
+		final String displayName = user == null ? null : user.getDisplayName();
+		if (StringUtils.isNotBlank(displayName)) {
+			final String username = user.getName();
+			CrowdDisplayNameWriter.getInstance().update(username,
+					displayName + " (" + username + ')');
+		}
+	}
 }
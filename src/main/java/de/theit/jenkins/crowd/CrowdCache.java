@@ -0,0 +1,392 @@
+/*
+ * @(#)CrowdCache.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2011 Thorsten Heit.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * This class wraps one of the caches of the Crowd security realm. In addition
+ * to the plain cache it remembers when each entry was stored and records hit
+ * and miss statistics, so that the caches can be inspected on the
+ * administration page. If a {@link CrowdOffHeapStore} is enabled, it serves
+ * as second level: all values are written through to it, and values that were
+ * evicted from the on-heap cache are promoted back from it before the caller
+ * has to ask Crowd.
+ * 
+ * @param <V>
+ *            The type of the cached values.
+ * 
+ * @since 18.10.2026
+ * @version $Id$
+ */
+public class CrowdCache<V> {
+	/** Used for logging purposes. */
+	private static final Logger LOG = Logger.getLogger(CrowdCache.class.getName());
+
+	/** The upper bounds of the age classes, in minutes. */
+	private static final long[] AGE_LIMITS = { 1, 5, 15, 60 };
+
+	/** The labels of the age classes; one more than {@link #AGE_LIMITS}. */
+	private static final String[] AGE_LABELS = { "< 1 min", "< 5 min", "< 15 min", "< 1 h", ">= 1 h" };
+
+	/** The name of the cache as shown on the administration page. */
+	private final String name;
+
+	/** The estimated number of bytes per entry including its key. */
+	private final int bytesPerEntry;
+
+	/** The underlying cache. */
+	private final Cache<String, Entry<V>> cache;
+
+	/**
+	 * Determines the time-to-live of the entries. <code>null</code> if the
+	 * entries only expire as configured in the cache builder.
+	 */
+	private volatile CrowdTtlController ttlController;
+
+	/**
+	 * The second level of the cache. <code>null</code> if the off-heap store
+	 * is disabled.
+	 */
+	private volatile CrowdOffHeapStore.Region<V> secondLevel;
+
+	/** The number of values that were promoted from the second level. */
+	private final AtomicLong promotions = new AtomicLong();
+
+	/** Loads entries that are refreshed ahead of their expiry. */
+	private volatile Loader<V> loader;
+
+	/** The keys that are currently refreshed. */
+	private final Set<String> refreshing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * Creates a new cache.
+	 * 
+	 * @param pName
+	 *            The name of the cache. May not be <code>null</code>.
+	 * @param pBytesPerEntry
+	 *            The estimated size of an entry in bytes, used to estimate the
+	 *            memory used by the cache.
+	 * @param builder
+	 *            The builder with the size and expiration settings. May not be
+	 *            <code>null</code>.
+	 */
+	public CrowdCache(String pName, int pBytesPerEntry, CacheBuilder<Object, Object> builder) {
+		this.name = pName;
+		this.bytesPerEntry = pBytesPerEntry;
+		this.cache = builder.recordStats().build();
+	}
+
+	/**
+	 * Returns the cached value.
+	 * 
+	 * @param key
+	 *            The key. May not be <code>null</code>.
+	 * @return The value or <code>null</code> if there is none.
+	 */
+	public V getIfPresent(String key) {
+		Entry<V> entry = this.cache.getIfPresent(key);
+		if (null == entry) {
+			entry = promote(key);
+		}
+		if (null == entry) {
+			CrowdFlightRecorder.record(CrowdFlightRecorder.CACHE_MISS, this.name);
+			return null;
+		}
+		CrowdTtlController controller = this.ttlController;
+		if (null != controller) {
+			long age = System.currentTimeMillis() - entry.created;
+			long ttl = controller.getCacheTtl();
+			if (age >= ttl) {
+				this.cache.asMap().remove(key, entry);
+				CrowdOffHeapStore.Region<V> region = this.secondLevel;
+				if (null != region) {
+					region.remove(key);
+				}
+				CrowdFlightRecorder.record(CrowdFlightRecorder.CACHE_MISS, this.name);
+				return null;
+			}
+			if (null != this.loader && age >= ttl * controller.getRefreshAhead()) {
+				refresh(key);
+			}
+		}
+		return entry.value;
+	}
+
+	/**
+	 * Moves a value from the second level into the on-heap cache.
+	 * 
+	 * @return The promoted entry or <code>null</code> if the second level
+	 *         doesn't have a value that is young enough.
+	 */
+	private Entry<V> promote(String key) {
+		CrowdOffHeapStore.Region<V> region = this.secondLevel;
+		if (null == region) {
+			return null;
+		}
+		CrowdOffHeapStore.Stored<V> stored = region.get(key);
+		if (null == stored) {
+			return null;
+		}
+		if (System.currentTimeMillis() - stored.created >= CrowdTtlController.MAX_TTL) {
+			region.remove(key);
+			return null;
+		}
+		Entry<V> entry = new Entry<V>(stored.value, stored.created);
+		this.cache.put(key, entry);
+		this.promotions.incrementAndGet();
+		return entry;
+	}
+
+	/**
+	 * Uses an off-heap store as second level of this cache.
+	 * 
+	 * @param region
+	 *            The region of the off-heap store for this cache. May not be
+	 *            <code>null</code>.
+	 */
+	public void setSecondLevel(CrowdOffHeapStore.Region<V> region) {
+		this.secondLevel = region;
+	}
+
+	/**
+	 * Lets the time-to-live of the entries follow the health of the Crowd
+	 * server, and refreshes used entries in the background before they
+	 * expire. The expiry configured in the cache builder remains an upper
+	 * bound.
+	 * 
+	 * @param controller
+	 *            Determines the time-to-live. May not be <code>null</code>.
+	 * @param pLoader
+	 *            Loads the refreshed entries. May be <code>null</code> to
+	 *            not refresh entries ahead.
+	 */
+	public void setExpiry(CrowdTtlController controller, Loader<V> pLoader) {
+		this.loader = pLoader;
+		this.ttlController = controller;
+	}
+
+	/**
+	 * Reloads an entry in the background unless this is already done. If
+	 * loading fails the current entry is kept until it expires.
+	 */
+	private void refresh(final String key) {
+		if (!this.refreshing.add(key)) {
+			return;
+		}
+		if (!CrowdExecutors.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					V value = loader.load(key);
+					if (null != value) {
+						put(key, value);
+					} else {
+						invalidate(key);
+					}
+				} catch (Exception ex) {
+					if (LOG.isLoggable(Level.FINE)) {
+						LOG.fine("Failed to refresh " + key + " in cache " + name + ": " + ex);
+					}
+				} finally {
+					refreshing.remove(key);
+				}
+			}
+		})) {
+			this.refreshing.remove(key);
+		}
+	}
+
+	/**
+	 * Stores a value.
+	 * 
+	 * @param key
+	 *            The key. May not be <code>null</code>.
+	 * @param value
+	 *            The value. May not be <code>null</code>.
+	 */
+	public void put(String key, V value) {
+		Entry<V> entry = new Entry<V>(value, System.currentTimeMillis());
+		this.cache.put(key, entry);
+		CrowdOffHeapStore.Region<V> region = this.secondLevel;
+		if (null != region) {
+			region.put(key, value, entry.created);
+		}
+	}
+
+	/**
+	 * Removes a value.
+	 * 
+	 * @param key
+	 *            The key. May not be <code>null</code>.
+	 */
+	public void invalidate(String key) {
+		this.cache.invalidate(key);
+		CrowdOffHeapStore.Region<V> region = this.secondLevel;
+		if (null != region) {
+			region.remove(key);
+		}
+	}
+
+	/**
+	 * Removes all values.
+	 */
+	public void invalidateAll() {
+		this.cache.invalidateAll();
+		CrowdOffHeapStore.Region<V> region = this.secondLevel;
+		if (null != region) {
+			region.clear();
+		}
+	}
+
+	/**
+	 * Returns a snapshot of all cached values. The values kept only in the
+	 * second level are not included.
+	 * 
+	 * @return The values by key. Never <code>null</code>.
+	 */
+	public Map<String, V> asMap() {
+		Map<String, V> map = new LinkedHashMap<String, V>();
+		for (Map.Entry<String, Entry<V>> entry : this.cache.asMap().entrySet()) {
+			map.put(entry.getKey(), entry.getValue().value);
+		}
+		return map;
+	}
+
+	/**
+	 * Returns the name of the cache.
+	 * 
+	 * @return The name. Never <code>null</code>.
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * Returns the number of cached values.
+	 * 
+	 * @return The approximate number of entries.
+	 */
+	public long getSize() {
+		return this.cache.size();
+	}
+
+	/**
+	 * Returns a rough estimate of the memory used by the cache.
+	 * 
+	 * @return The estimated number of bytes.
+	 */
+	public long getEstimatedBytes() {
+		return this.cache.size() * this.bytesPerEntry;
+	}
+
+	/**
+	 * Returns the hit and miss statistics.
+	 * 
+	 * @return The statistics. Never <code>null</code>.
+	 */
+	public CacheStats getStats() {
+		return this.cache.stats();
+	}
+
+	/**
+	 * Returns how many values were promoted from the second level.
+	 * 
+	 * @return The number of promotions.
+	 */
+	public long getPromotionCount() {
+		return this.promotions.get();
+	}
+
+	/**
+	 * Returns how many entries fall into each age class.
+	 * 
+	 * @return The number of entries by age class, youngest first. Never
+	 *         <code>null</code>.
+	 */
+	public Map<String, Integer> getAgeDistribution() {
+		int[] counts = new int[AGE_LABELS.length];
+		long now = System.currentTimeMillis();
+		for (Entry<V> entry : this.cache.asMap().values()) {
+			long minutes = TimeUnit.MILLISECONDS.toMinutes(now - entry.created);
+			int i = 0;
+			while (i < AGE_LIMITS.length && minutes >= AGE_LIMITS[i]) {
+				i++;
+			}
+			counts[i]++;
+		}
+		Map<String, Integer> distribution = new LinkedHashMap<String, Integer>();
+		for (int i = 0; i < AGE_LABELS.length; i++) {
+			distribution.put(AGE_LABELS[i], counts[i]);
+		}
+		return distribution;
+	}
+
+	/**
+	 * Loads the value for a key from the Crowd server.
+	 * 
+	 * @param <V>
+	 *            The type of the values.
+	 */
+	public interface Loader<V> {
+		/**
+		 * Loads a value.
+		 * 
+		 * @param key
+		 *            The key. Never <code>null</code>.
+		 * @return The value or <code>null</code> if it shouldn't be cached.
+		 * @throws Exception
+		 *             If the value couldn't be loaded.
+		 */
+		V load(String key) throws Exception;
+	}
+
+	/**
+	 * A cached value together with the time it was stored.
+	 */
+	private static final class Entry<V> {
+		final V value;
+
+		final long created;
+
+		Entry(V pValue, long pCreated) {
+			this.value = pValue;
+			this.created = pCreated;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * @(#)CrowdCacheInvalidator.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2011 Thorsten Heit.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class collects invalidation messages, e.g. sent by Crowd when users or
+ * groups have changed, and applies them to the caches of a
+ * {@link CrowdConfigurationService}. Messages arriving within
+ * {@link #COALESCE_DELAY} are merged, so that a burst of changes costs only
+ * one pass over the caches.
+ * 
+ * @since 18.10.2026
+ * @version $Id$
+ */
+public class CrowdCacheInvalidator {
+	/** Used for logging purposes. */
+	private static final Logger LOG = Logger.getLogger(CrowdCacheInvalidator.class.getName());
+
+	/** The number of milliseconds during which messages are merged. */
+	private static final long COALESCE_DELAY = Long.getLong(CrowdCacheInvalidator.class.getName() + ".coalesceDelay", 250L);
+
+	/** The configuration whose caches are invalidated. */
+	private final CrowdConfigurationService configuration;
+
+	/** The names of the users to invalidate. */
+	private Set<String> users = new HashSet<String>();
+
+	/** The names of the groups to invalidate. */
+	private Set<String> groups = new HashSet<String>();
+
+	/** Whether all caches are to be flushed. */
+	private boolean all;
+
+	/** Whether the invalidated users are to be loaded again. */
+	private boolean refresh;
+
+	/** Whether a pass over the caches is already scheduled. */
+	private boolean scheduled;
+
+	/**
+	 * Creates a new invalidator.
+	 * 
+	 * @param pConfiguration
+	 *            The configuration whose caches are invalidated. May not be
+	 *            <code>null</code>.
+	 */
+	public CrowdCacheInvalidator(CrowdConfigurationService pConfiguration) {
+		this.configuration = pConfiguration;
+	}
+
+	/**
+	 * Queues an invalidation message.
+	 * 
+	 * @param pUsers
+	 *            The names of the users whose cached data is invalidated. May
+	 *            not be <code>null</code>.
+	 * @param pGroups
+	 *            The names of the groups whose cached data is invalidated. May
+	 *            not be <code>null</code>.
+	 * @param pAll
+	 *            <code>true</code> to flush all caches.
+	 * @param pRefresh
+	 *            <code>true</code> to load the invalidated users again right
+	 *            away.
+	 */
+	public synchronized void submit(Collection<String> pUsers, Collection<String> pGroups, boolean pAll,
+			boolean pRefresh) {
+		this.users.addAll(pUsers);
+		this.groups.addAll(pGroups);
+		this.all |= pAll;
+		this.refresh |= pRefresh;
+		if (!this.scheduled) {
+			this.scheduled = true;
+			CrowdExecutors.executeLater(new Runnable() {
+				@Override
+				public void run() {
+					flush();
+				}
+			}, COALESCE_DELAY, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Applies all queued messages in one pass.
+	 */
+	void flush() {
+		Set<String> pendingUsers;
+		Set<String> pendingGroups;
+		boolean pendingAll;
+		boolean pendingRefresh;
+		synchronized (this) {
+			pendingUsers = this.users;
+			pendingGroups = this.groups;
+			pendingAll = this.all;
+			pendingRefresh = this.refresh;
+			this.users = new HashSet<String>();
+			this.groups = new HashSet<String>();
+			this.all = false;
+			this.refresh = false;
+			this.scheduled = false;
+		}
+
+		try {
+			if (pendingAll) {
+				this.configuration.evictAll();
+				return;
+			}
+			Set<String> evicted = this.configuration.evict(pendingUsers, pendingGroups);
+			if (pendingRefresh && !evicted.isEmpty()) {
+				this.configuration.warmUsers(evicted);
+			}
+		} catch (RuntimeException ex) {
+			LOG.log(Level.WARNING, "Failed to invalidate the Crowd caches", ex);
+		}
+	}
+}
@@ -0,0 +1,402 @@
+/*
+ * @(#)CrowdCallTracer.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2011 Thorsten Heit.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+
+import com.atlassian.crowd.exception.OperationFailedException;
+import com.atlassian.crowd.service.client.CrowdClient;
+
+/**
+ * This class records the calls to the remote Crowd server made while serving
+ * an HTTP request. When the total time spent in Crowd calls exceeds a
+ * threshold, the request's trace is kept in a bounded buffer that can be
+ * viewed on the {@link CrowdManagementLink} page, and a summary is logged for
+ * a sample of these requests.
+ * <p>
+ * The calls are captured by wrapping the {@link CrowdClient} with
+ * {@link #trace(CrowdClient)}; the trace of a request is bound to the thread
+ * serving it between {@link #begin(ServletRequest)} and
+ * {@link #end(RequestTrace)}.
+ * 
+ * @since 18.10.2026
+ * @version $Id$
+ */
+public final class CrowdCallTracer {
+	/** Used for logging purposes. */
+	private static final Logger LOG = Logger.getLogger(CrowdCallTracer.class.getName());
+
+	/**
+	 * The total number of milliseconds of Crowd calls after which a request is
+	 * considered slow.
+	 */
+	private static final long SLOW_THRESHOLD = Long.getLong(CrowdCallTracer.class.getName() + ".slowThreshold", 500L);
+
+	/**
+	 * Every n-th slow request is logged. <code>0</code> disables logging.
+	 */
+	private static final int LOG_SAMPLE_RATE = Integer.getInteger(CrowdCallTracer.class.getName() + ".logSampleRate", 10);
+
+	/** The number of slow requests that are kept. */
+	private static final int MAX_SLOW_TRACES = Integer.getInteger(CrowdCallTracer.class.getName() + ".maxSlowTraces", 50);
+
+	/** The maximum number of calls recorded per request. */
+	private static final int MAX_CALLS_PER_TRACE = 100;
+
+	/** The trace of the request served by the current thread. */
+	private static final ThreadLocal<RequestTrace> CURRENT = new ThreadLocal<RequestTrace>();
+
+	/** The most recent slow requests; used as ring buffer. */
+	private static final AtomicReferenceArray<RequestTrace> SLOW_TRACES = new AtomicReferenceArray<RequestTrace>(
+			Math.max(1, MAX_SLOW_TRACES));
+
+	/** The total number of slow requests. */
+	private static final AtomicLong SLOW_COUNT = new AtomicLong();
+
+	/**
+	 * Not intended to be instantiated.
+	 */
+	private CrowdCallTracer() {
+	}
+
+	/**
+	 * Wraps the Crowd client so that all calls are recorded in the trace of
+	 * the current request.
+	 * 
+	 * @param client
+	 *            The Crowd client. May not be <code>null</code>.
+	 * @return The wrapped client. Never <code>null</code>.
+	 */
+	public static CrowdClient trace(final CrowdClient client) {
+		return trace(client, null);
+	}
+
+	/**
+	 * Wraps the Crowd client so that all calls are recorded in the trace of
+	 * the current request and reported to a listener.
+	 * 
+	 * @param client
+	 *            The Crowd client. May not be <code>null</code>.
+	 * @param listener
+	 *            The listener notified about every call. May be
+	 *            <code>null</code>.
+	 * @return The wrapped client. Never <code>null</code>.
+	 */
+	public static CrowdClient trace(final CrowdClient client, final CallListener listener) {
+		return (CrowdClient) Proxy.newProxyInstance(CrowdClient.class.getClassLoader(),
+				new Class<?>[] { CrowdClient.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getDeclaringClass() == Object.class) {
+							return method.invoke(client, args);
+						}
+						Object event = CrowdFlightRecorder.begin(CrowdFlightRecorder.CALL);
+						long start = System.nanoTime();
+						String outcome = "ok";
+						boolean failed = false;
+						try {
+							return method.invoke(client, args);
+						} catch (InvocationTargetException ex) {
+							outcome = ex.getCause().getClass().getSimpleName();
+							failed = ex.getCause() instanceof OperationFailedException
+									|| ex.getCause() instanceof RuntimeException;
+							throw ex.getCause();
+						} finally {
+							long nanos = System.nanoTime() - start;
+							record(method.getName(), nanos, pageIndex(method, args), outcome);
+							CrowdFlightRecorder.commit(event, method.getName(), outcome);
+							if (null != listener) {
+								listener.callCompleted(method.getName(), nanos, failed);
+							}
+						}
+					}
+				});
+	}
+
+	/**
+	 * Is notified about every call to the Crowd server.
+	 */
+	public interface CallListener {
+		/**
+		 * Called after a call to the Crowd server completed.
+		 * 
+		 * @param operation
+		 *            The name of the called method. Never <code>null</code>.
+		 * @param nanos
+		 *            The duration of the call in nanoseconds.
+		 * @param failed
+		 *            Whether the call failed because the server couldn't
+		 *            answer, as opposed to e.g. an unknown user.
+		 */
+		void callCompleted(String operation, long nanos, boolean failed);
+	}
+
+	/**
+	 * Starts the trace for a request and binds it to the current thread.
+	 * 
+	 * @param request
+	 *            The request. May not be <code>null</code>.
+	 * @return The trace; must be passed to {@link #end(RequestTrace)}.
+	 */
+	public static RequestTrace begin(ServletRequest request) {
+		String path = request instanceof HttpServletRequest ? ((HttpServletRequest) request).getRequestURI() : "";
+		RequestTrace trace = new RequestTrace(path);
+		CURRENT.set(trace);
+		return trace;
+	}
+
+	/**
+	 * Ends the trace of a request and keeps it if the request was slow.
+	 * 
+	 * @param trace
+	 *            The trace returned by {@link #begin(ServletRequest)}.
+	 */
+	public static void end(RequestTrace trace) {
+		CURRENT.remove();
+		if (TimeUnit.NANOSECONDS.toMillis(trace.getCrowdNanos()) < SLOW_THRESHOLD) {
+			return;
+		}
+
+		long count = SLOW_COUNT.getAndIncrement();
+		SLOW_TRACES.set((int) (count % SLOW_TRACES.length()), trace);
+		if (LOG_SAMPLE_RATE > 0 && count % LOG_SAMPLE_RATE == 0 && LOG.isLoggable(Level.INFO)) {
+			LOG.info("Slow Crowd calls for request " + trace);
+		}
+	}
+
+	/**
+	 * Returns the most recent slow requests.
+	 * 
+	 * @return The traces of the slow requests, newest first. Never
+	 *         <code>null</code>.
+	 */
+	public static List<RequestTrace> getSlowTraces() {
+		List<RequestTrace> traces = new ArrayList<RequestTrace>();
+		long count = SLOW_COUNT.get();
+		int length = SLOW_TRACES.length();
+		for (long i = count - 1; i >= 0 && i >= count - length; i--) {
+			RequestTrace trace = SLOW_TRACES.get((int) (i % length));
+			if (null != trace) {
+				traces.add(trace);
+			}
+		}
+		return traces;
+	}
+
+	/**
+	 * Returns the total number of slow requests since startup.
+	 * 
+	 * @return The number of slow requests.
+	 */
+	public static long getSlowCount() {
+		return SLOW_COUNT.get();
+	}
+
+	/**
+	 * Returns the threshold for slow requests.
+	 * 
+	 * @return The threshold in milliseconds.
+	 */
+	public static long getSlowThreshold() {
+		return SLOW_THRESHOLD;
+	}
+
+	/**
+	 * Returns whether the current thread serves a traced HTTP request, as
+	 * opposed to e.g. running background work.
+	 * 
+	 * @return <code>true</code> if a request is traced on the current thread.
+	 */
+	static boolean isTracing() {
+		return null != CURRENT.get();
+	}
+
+	/**
+	 * Returns the number of Crowd calls made so far while serving the current
+	 * request.
+	 * 
+	 * @return The number of calls; <code>0</code> if no request is traced on
+	 *         the current thread.
+	 */
+	static int getCurrentCallCount() {
+		RequestTrace trace = CURRENT.get();
+		return null != trace ? trace.getCallCount() : 0;
+	}
+
+	/**
+	 * Records a Crowd call in the trace of the current request, if any.
+	 */
+	private static void record(String operation, long nanos, int page, String outcome) {
+		RequestTrace trace = CURRENT.get();
+		if (null != trace) {
+			trace.add(new CallSpan(operation, nanos, page, outcome));
+		}
+	}
+
+	/**
+	 * Determines the page index of a paged call, i.e. a call whose last two
+	 * parameters are the start index and the maximum number of results.
+	 * 
+	 * @return The page index or <code>-1</code> if the call isn't paged.
+	 */
+	private static int pageIndex(Method method, Object[] args) {
+		Class<?>[] types = method.getParameterTypes();
+		int n = types.length;
+		if (n >= 2 && types[n - 2] == int.class && types[n - 1] == int.class) {
+			int start = (Integer) args[n - 2];
+			int max = (Integer) args[n - 1];
+			return max > 0 ? start / max : 0;
+		}
+		return -1;
+	}
+
+	/**
+	 * The Crowd calls made while serving a single request.
+	 */
+	public static final class RequestTrace {
+		/** The path of the request. */
+		private final String path;
+
+		/** When the request started, in milliseconds since the epoch. */
+		private final long timestamp = System.currentTimeMillis();
+
+		/** The recorded calls. */
+		private final List<CallSpan> calls = new ArrayList<CallSpan>();
+
+		/** The total time spent in Crowd calls. */
+		private long crowdNanos;
+
+		/** The number of calls, including those not recorded. */
+		private int callCount;
+
+		RequestTrace(String pPath) {
+			this.path = pPath;
+		}
+
+		synchronized void add(CallSpan span) {
+			this.crowdNanos += span.nanos;
+			this.callCount++;
+			if (this.calls.size() < MAX_CALLS_PER_TRACE) {
+				this.calls.add(span);
+			}
+		}
+
+		public String getPath() {
+			return this.path;
+		}
+
+		public Date getDate() {
+			return new Date(this.timestamp);
+		}
+
+		public synchronized long getCrowdNanos() {
+			return this.crowdNanos;
+		}
+
+		public long getCrowdMillis() {
+			return TimeUnit.NANOSECONDS.toMillis(getCrowdNanos());
+		}
+
+		public synchronized int getCallCount() {
+			return this.callCount;
+		}
+
+		public synchronized List<CallSpan> getCalls() {
+			return Collections.unmodifiableList(new ArrayList<CallSpan>(this.calls));
+		}
+
+		@Override
+		public synchronized String toString() {
+			StringBuilder sb = new StringBuilder(this.path).append(": ").append(getCrowdMillis()).append(" ms in ")
+					.append(this.calls.size()).append(" call(s)");
+			for (CallSpan call : this.calls) {
+				sb.append("\n  ").append(call);
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * A single call to the remote Crowd server.
+	 */
+	public static final class CallSpan {
+		/** The name of the called operation. */
+		private final String operation;
+
+		/** The duration of the call. */
+		private final long nanos;
+
+		/** The page index of paged calls, <code>-1</code> else. */
+		private final int page;
+
+		/** <code>ok</code> or the name of the thrown exception. */
+		private final String outcome;
+
+		CallSpan(String pOperation, long pNanos, int pPage, String pOutcome) {
+			this.operation = pOperation;
+			this.nanos = pNanos;
+			this.page = pPage;
+			this.outcome = pOutcome;
+		}
+
+		public String getOperation() {
+			return this.operation;
+		}
+
+		public double getMillis() {
+			return this.nanos / 1000000.0;
+		}
+
+		public int getPage() {
+			return this.page;
+		}
+
+		public String getOutcome() {
+			return this.outcome;
+		}
+
+		@Override
+		public String toString() {
+			return this.operation + (this.page >= 0 ? " [page " + this.page + "]" : "") + ": "
+					+ String.format("%.1f", getMillis()) + " ms, " + this.outcome;
+		}
+	}
+}
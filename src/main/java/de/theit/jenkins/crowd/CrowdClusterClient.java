@@ -0,0 +1,629 @@
+/*
+ * @(#)CrowdClusterClient.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2011 Thorsten Heit.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.atlassian.crowd.exception.OperationFailedException;
+import com.atlassian.crowd.service.client.CrowdClient;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * This class distributes the calls of the Crowd security realm over the
+ * nodes of a Crowd cluster. It implements {@link CrowdClient} by means of a
+ * dynamic proxy in front of one REST client per node.
+ * <p>
+ * For every node the latency and the error rate are tracked as exponentially
+ * weighted moving averages; each call goes to the node with the best score.
+ * A node failing several times in a row is ejected for a while, with the
+ * ejection time doubling while it keeps failing. A read-only call that fails
+ * because the node couldn't be reached, i.e. with an
+ * {@link OperationFailedException} caused by an {@link IOException}, is
+ * repeated once on another node; authentications and writes are never
+ * repeated. Lookups of users and groups that don't answer within the node's
+ * 95th latency percentile are hedged: the same call is sent to a second node
+ * and the first answer wins. Hedged calls run on a small pool of their own,
+ * so they never wait for the shared {@link CrowdExecutors} pool.
+ * 
+ * @since 18.10.2026
+ * @version $Id$
+ */
+public final class CrowdClusterClient implements InvocationHandler {
+	/** Used for logging purposes. */
+	private static final Logger LOG = Logger.getLogger(CrowdClusterClient.class.getName());
+
+	/** The prefix for the system properties to configure the cluster client. */
+	private static final String PROPERTY_PREFIX = CrowdClusterClient.class.getName() + '.';
+
+	/** The minimum number of milliseconds before a call is hedged. */
+	private static final long HEDGE_MIN_DELAY = Long.getLong(PROPERTY_PREFIX + "hedgeMinDelay", 20L);
+
+	/** The number of consecutive failures after which a node is ejected. */
+	private static final int EJECT_AFTER_FAILURES = Integer.getInteger(PROPERTY_PREFIX + "ejectAfterFailures", 3);
+
+	/** The number of milliseconds a node is ejected the first time. */
+	private static final long EJECT_TIME = Long.getLong(PROPERTY_PREFIX + "ejectTime", 30000L);
+
+	/** The maximum number of milliseconds a node is ejected. */
+	private static final long MAX_EJECT_TIME = Long.getLong(PROPERTY_PREFIX + "maxEjectTime", TimeUnit.MINUTES.toMillis(5));
+
+	/**
+	 * The maximum number of threads running hedged calls. When all are busy,
+	 * calls are sent to the best node on the calling thread without hedging.
+	 */
+	private static final int HEDGE_THREADS = Integer.getInteger(PROPERTY_PREFIX + "hedgeThreads", 32);
+
+	/** The maximum number of milliseconds to wait for a hedged call. */
+	private static final long HEDGE_TIMEOUT = Long.getLong(PROPERTY_PREFIX + "hedgeTimeout", TimeUnit.MINUTES.toMillis(1));
+
+	/** The weight of a new sample in the moving averages. */
+	private static final double ALPHA = 0.2;
+
+	/** The penalty factor of the error rate in the score of a node. */
+	private static final double ERROR_PENALTY = 10.0;
+
+	/** The methods that only read users or groups and may be hedged. */
+	private static final List<String> HEDGED_PREFIXES = Arrays.asList("getUser", "getGroup", "getNamesOf",
+			"getNestedGroup", "getChildGroups", "getParentGroups", "getNestedChildGroups", "getNestedParentGroups",
+			"getMembers", "getNestedMembers", "isUserDirectGroupMember", "isUserNestedGroupMember",
+			"isGroupDirectGroupMember", "searchUsers", "searchUserNames", "searchGroups", "searchGroupNames");
+
+	/**
+	 * The prefixes of the methods that only read and may be repeated on
+	 * another node.
+	 */
+	private static final List<String> IDEMPOTENT_PREFIXES = Arrays.asList("get", "search", "is", "testConnection");
+
+	/** The nodes of the cluster. */
+	private final List<Node> nodes;
+
+	/** Runs the hedged calls. */
+	private final ExecutorService hedgeExecutor;
+
+	/** The proxy handed out as client. */
+	private final CrowdClient client;
+
+	/** The number of hedged calls. */
+	private final AtomicLong hedgedCalls = new AtomicLong();
+
+	/** The number of calls repeated on another node. */
+	private final AtomicLong failovers = new AtomicLong();
+
+	/**
+	 * Creates a new cluster client.
+	 * 
+	 * @param urls
+	 *            The base URLs of the nodes. May not be <code>null</code>.
+	 * @param clients
+	 *            The REST clients of the nodes, in the same order. May not be
+	 *            <code>null</code>.
+	 */
+	public CrowdClusterClient(List<String> urls, List<CrowdClient> clients) {
+		List<Node> list = new ArrayList<Node>();
+		for (int i = 0; i < urls.size(); i++) {
+			list.add(new Node(urls.get(i), clients.get(i)));
+		}
+		this.nodes = Collections.unmodifiableList(list);
+		this.hedgeExecutor = new ThreadPoolExecutor(0, HEDGE_THREADS, 60L, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(),
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Crowd hedge %d").build());
+		this.client = (CrowdClient) Proxy.newProxyInstance(CrowdClient.class.getClassLoader(),
+				new Class<?>[] { CrowdClient.class }, this);
+	}
+
+	/**
+	 * Returns the client distributing the calls over the nodes.
+	 * 
+	 * @return The client. Never <code>null</code>.
+	 */
+	public CrowdClient getClient() {
+		return this.client;
+	}
+
+	/**
+	 * Returns the nodes of the cluster.
+	 * 
+	 * @return The nodes. Never <code>null</code>.
+	 */
+	public List<Node> getNodes() {
+		return this.nodes;
+	}
+
+	/**
+	 * Returns the number of calls that were hedged.
+	 * 
+	 * @return The number of hedged calls.
+	 */
+	public long getHedgedCalls() {
+		return this.hedgedCalls.get();
+	}
+
+	/**
+	 * Returns the number of calls that were repeated on another node.
+	 * 
+	 * @return The number of failovers.
+	 */
+	public long getFailovers() {
+		return this.failovers.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object,
+	 *      java.lang.reflect.Method, java.lang.Object[])
+	 */
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (method.getDeclaringClass() == Object.class) {
+			if ("equals".equals(method.getName())) {
+				return proxy == args[0];
+			}
+			if ("hashCode".equals(method.getName())) {
+				return System.identityHashCode(proxy);
+			}
+			return "CrowdClusterClient" + this.nodes;
+		}
+		if ("shutdown".equals(method.getName())) {
+			this.hedgeExecutor.shutdown();
+			for (Node node : this.nodes) {
+				node.client.shutdown();
+			}
+			return null;
+		}
+		if (isHedged(method)) {
+			return invokeHedged(method, args);
+		}
+		return invokeWithFailover(method, args);
+	}
+
+	private static boolean isHedged(Method method) {
+		for (String prefix : HEDGED_PREFIXES) {
+			if (method.getName().startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isIdempotent(Method method) {
+		for (String prefix : IDEMPOTENT_PREFIXES) {
+			if (method.getName().startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Calls the best node and, if it can't be reached and the method only
+	 * reads, the second best one.
+	 */
+	private Object invokeWithFailover(Method method, Object[] args) throws Throwable {
+		Node primary = select(null);
+		try {
+			return primary.invoke(method, args);
+		} catch (Throwable ex) {
+			Node secondary = isIdempotent(method) && isTransportFailure(ex) ? select(primary) : null;
+			if (null == secondary) {
+				throw ex;
+			}
+			logFailover(method, primary, secondary, ex);
+			return secondary.invoke(method, args);
+		}
+	}
+
+	/**
+	 * Calls the best node and, if it doesn't answer within its hedge delay,
+	 * also the second best node. The first successful answer is returned.
+	 * When no hedge thread is available, the call isn't hedged.
+	 */
+	private Object invokeHedged(final Method method, final Object[] args) throws Throwable {
+		Node primary = select(null);
+		Node secondary = select(primary);
+		if (null == secondary) {
+			return primary.invoke(method, args);
+		}
+
+		CompletableFuture<Object> first;
+		try {
+			first = primary.invokeAsync(method, args, this.hedgeExecutor);
+		} catch (RejectedExecutionException ex) {
+			return invokeWithFailover(method, args);
+		}
+		try {
+			return first.get(primary.getHedgeDelay(), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException ex) {
+			CompletableFuture<Object> second;
+			try {
+				second = secondary.invokeAsync(method, args, this.hedgeExecutor);
+			} catch (RejectedExecutionException rex) {
+				return await(method, first);
+			}
+			this.hedgedCalls.incrementAndGet();
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("Hedging " + method.getName() + " from " + primary.url + " to " + secondary.url);
+			}
+			return await(method, firstSuccess(first, second));
+		} catch (ExecutionException ex) {
+			Throwable cause = unwrap(ex);
+			if (!isTransportFailure(cause)) {
+				throw cause;
+			}
+			logFailover(method, primary, secondary, cause);
+			return secondary.invoke(method, args);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw failure(method, ex);
+		}
+	}
+
+	/**
+	 * Returns a future completed with the first successful result. It fails
+	 * if a call fails for reasons other than the node, or both calls fail.
+	 */
+	private static CompletableFuture<Object> firstSuccess(CompletableFuture<Object> first,
+			CompletableFuture<Object> second) {
+		final CompletableFuture<Object> winner = new CompletableFuture<Object>();
+		final AtomicInteger failures = new AtomicInteger();
+		BiConsumer<Object, Throwable> handler = new BiConsumer<Object, Throwable>() {
+			@Override
+			public void accept(Object result, Throwable ex) {
+				if (null == ex) {
+					winner.complete(result);
+				} else {
+					Throwable cause = unwrap(ex);
+					if (!isTransportFailure(cause) || failures.incrementAndGet() == 2) {
+						winner.completeExceptionally(cause);
+					}
+				}
+			}
+		};
+		first.whenComplete(handler);
+		second.whenComplete(handler);
+		return winner;
+	}
+
+	/**
+	 * Waits for a hedged call, at most {@link #HEDGE_TIMEOUT} milliseconds.
+	 */
+	private static Object await(Method method, CompletableFuture<Object> future) throws Throwable {
+		try {
+			return future.get(HEDGE_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException ex) {
+			throw failure(method, ex);
+		} catch (ExecutionException ex) {
+			throw unwrap(ex);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw failure(method, ex);
+		}
+	}
+
+	/**
+	 * Returns the node with the best score, skipping the given one. Ejected
+	 * nodes are only used if all nodes are ejected.
+	 * 
+	 * @return The node or <code>null</code> if there is no other node.
+	 */
+	private Node select(Node exclude) {
+		long now = System.currentTimeMillis();
+		Node best = null;
+		Node leastEjected = null;
+		for (Node node : this.nodes) {
+			if (node == exclude) {
+				continue;
+			}
+			if (node.isEjected(now)) {
+				if (null == leastEjected || node.ejectedUntil < leastEjected.ejectedUntil) {
+					leastEjected = node;
+				}
+			} else if (null == best || node.getScore() < best.getScore()) {
+				best = node;
+			}
+		}
+		return null != best ? best : leastEjected;
+	}
+
+	private void logFailover(Method method, Node from, Node to, Throwable ex) {
+		this.failovers.incrementAndGet();
+		if (LOG.isLoggable(Level.INFO)) {
+			LOG.info("Crowd node " + from.url + " failed for " + method.getName() + " (" + ex + "); retrying on "
+					+ to.url);
+		}
+	}
+
+	/**
+	 * Returns whether an exception indicates a problem of the node rather
+	 * than an answer of Crowd, like an unknown user.
+	 */
+	private static boolean isNodeFailure(Throwable ex) {
+		return ex instanceof OperationFailedException;
+	}
+
+	/**
+	 * Returns whether an exception means that the node couldn't be reached
+	 * or didn't answer, so that the call may be sent to another node.
+	 */
+	private static boolean isTransportFailure(Throwable ex) {
+		if (!(ex instanceof OperationFailedException)) {
+			return false;
+		}
+		for (Throwable cause = ex.getCause(); null != cause; cause = cause.getCause()) {
+			if (cause instanceof IOException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Throwable unwrap(Throwable ex) {
+		while ((ex instanceof ExecutionException || ex instanceof CompletionException
+				|| ex instanceof InvocationTargetException) && null != ex.getCause()) {
+			ex = ex.getCause();
+		}
+		return ex;
+	}
+
+	/**
+	 * Converts an exception into one the method may throw.
+	 */
+	private static Throwable failure(Method method, Throwable ex) {
+		for (Class<?> type : method.getExceptionTypes()) {
+			if (type.isAssignableFrom(OperationFailedException.class)) {
+				return new OperationFailedException(ex);
+			}
+		}
+		return new IllegalStateException(ex);
+	}
+
+	/**
+	 * A node of the Crowd cluster together with its statistics.
+	 */
+	public static final class Node {
+		/** The number of latency samples kept for the hedge delay. */
+		private static final int SAMPLES = 128;
+
+		/** The base URL of the node. */
+		final String url;
+
+		/** The REST client of the node. */
+		final CrowdClient client;
+
+		/** The moving average of the latency in milliseconds. */
+		private double latency;
+
+		/** The moving average of the error rate between 0 and 1. */
+		private double errorRate;
+
+		/** The number of failures in a row. */
+		private int consecutiveFailures;
+
+		/** The number of times the node was ejected in a row. */
+		private int ejections;
+
+		/** Until when the node is ejected. */
+		volatile long ejectedUntil;
+
+		/** The most recent latencies in milliseconds. */
+		private final long[] samples = new long[SAMPLES];
+
+		/** The number of recorded latencies. */
+		private long sampleCount;
+
+		/** The current hedge delay in milliseconds. */
+		private volatile long hedgeDelay = HEDGE_MIN_DELAY;
+
+		/** The number of calls. */
+		private final AtomicLong calls = new AtomicLong();
+
+		Node(String pUrl, CrowdClient pClient) {
+			this.url = pUrl;
+			this.client = pClient;
+		}
+
+		/**
+		 * Calls the node and records the outcome.
+		 */
+		Object invoke(Method method, Object[] args) throws Throwable {
+			this.calls.incrementAndGet();
+			long start = System.nanoTime();
+			try {
+				Object result = method.invoke(this.client, args);
+				recordSuccess(start);
+				return result;
+			} catch (InvocationTargetException ex) {
+				Throwable cause = unwrap(ex);
+				if (isNodeFailure(cause)) {
+					recordFailure(start);
+				} else {
+					recordSuccess(start);
+				}
+				throw cause;
+			}
+		}
+
+		/**
+		 * Calls the node on a thread of the given executor.
+		 * 
+		 * @throws RejectedExecutionException
+		 *             If the executor has no thread available.
+		 */
+		CompletableFuture<Object> invokeAsync(final Method method, final Object[] args, Executor executor) {
+			return CompletableFuture.supplyAsync(new Supplier<Object>() {
+				@Override
+				public Object get() {
+					try {
+						return invoke(method, args);
+					} catch (Throwable ex) {
+						throw new CompletionException(ex);
+					}
+				}
+			}, executor);
+		}
+
+		private synchronized void recordSuccess(long start) {
+			long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			this.latency = 0 == this.sampleCount ? millis : ALPHA * millis + (1 - ALPHA) * this.latency;
+			this.errorRate = (1 - ALPHA) * this.errorRate;
+			this.consecutiveFailures = 0;
+			this.ejections = 0;
+			this.samples[(int) (this.sampleCount++ % SAMPLES)] = millis;
+			if (this.sampleCount % (SAMPLES / 4) == 0) {
+				updateHedgeDelay();
+			}
+		}
+
+		private synchronized void recordFailure(long start) {
+			long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			this.latency = ALPHA * millis + (1 - ALPHA) * this.latency;
+			this.errorRate = ALPHA + (1 - ALPHA) * this.errorRate;
+			if (++this.consecutiveFailures >= EJECT_AFTER_FAILURES) {
+				long ejectTime = Math.min(EJECT_TIME << Math.min(this.ejections, 20), MAX_EJECT_TIME);
+				this.ejections++;
+				this.consecutiveFailures = 0;
+				this.ejectedUntil = System.currentTimeMillis() + ejectTime;
+				LOG.warning("Ejecting Crowd node " + this.url + " for " + ejectTime + " ms after repeated failures");
+			}
+		}
+
+		/**
+		 * Sets the hedge delay to the 95th percentile of the recent
+		 * latencies.
+		 */
+		private void updateHedgeDelay() {
+			int count = (int) Math.min(this.sampleCount, SAMPLES);
+			long[] sorted = Arrays.copyOf(this.samples, count);
+			Arrays.sort(sorted);
+			this.hedgeDelay = Math.max(HEDGE_MIN_DELAY, sorted[(int) Math.ceil(count * 0.95) - 1]);
+		}
+
+		synchronized double getScore() {
+			return this.latency * (1 + ERROR_PENALTY * this.errorRate);
+		}
+
+		boolean isEjected(long now) {
+			return this.ejectedUntil > now;
+		}
+
+		/**
+		 * Returns the base URL of the node.
+		 * 
+		 * @return The URL. Never <code>null</code>.
+		 */
+		public String getUrl() {
+			return this.url;
+		}
+
+		/**
+		 * Returns the moving average of the latency.
+		 * 
+		 * @return The latency in milliseconds.
+		 */
+		public synchronized long getLatency() {
+			return Math.round(this.latency);
+		}
+
+		/**
+		 * Returns the moving average of the error rate.
+		 * 
+		 * @return The error rate between 0 and 1.
+		 */
+		public synchronized double getErrorRate() {
+			return this.errorRate;
+		}
+
+		/**
+		 * Returns the moving average of the error rate in percent.
+		 * 
+		 * @return The error rate between 0 and 100.
+		 */
+		public long getErrorPercent() {
+			return Math.round(getErrorRate() * 100);
+		}
+
+		/**
+		 * Returns the delay after which lookups are hedged to another node.
+		 * 
+		 * @return The delay in milliseconds.
+		 */
+		public long getHedgeDelay() {
+			return this.hedgeDelay;
+		}
+
+		/**
+		 * Returns whether the node is currently ejected.
+		 * 
+		 * @return <code>true</code> if the node is ejected.
+		 */
+		public boolean isEjected() {
+			return isEjected(System.currentTimeMillis());
+		}
+
+		/**
+		 * Returns the number of calls sent to the node.
+		 * 
+		 * @return The number of calls.
+		 */
+		public long getCalls() {
+			return this.calls.get();
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * 
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return this.url;
+		}
+	}
+}
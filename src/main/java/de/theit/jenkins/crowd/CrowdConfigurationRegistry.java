@@ -0,0 +1,264 @@
+/*
+ * @(#)CrowdConfigurationRegistry.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2011 Thorsten Heit.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.atlassian.crowd.integration.http.CrowdHttpAuthenticatorImpl;
+import com.atlassian.crowd.integration.http.util.CrowdHttpTokenHelperImpl;
+import com.atlassian.crowd.integration.http.util.CrowdHttpValidationFactorExtractorImpl;
+import com.atlassian.crowd.integration.rest.service.factory.RestCrowdClientFactory;
+import com.atlassian.crowd.service.client.ClientPropertiesImpl;
+import com.atlassian.crowd.service.client.CrowdClient;
+
+/**
+ * This class keeps the {@link CrowdConfigurationService} that is currently in
+ * use. Jenkins creates a new {@link CrowdSecurityRealm} each time the global
+ * security settings are saved; as long as the settings for the connection to
+ * Crowd don't change, the new realm gets the existing configuration including
+ * its REST client and all caches. Otherwise a new configuration is created and
+ * the REST client of the replaced one is shut down after a grace period, so
+ * that requests still using it can finish.
+ * 
+ * @since 18.10.2026
+ * @version $Id$
+ */
+public final class CrowdConfigurationRegistry {
+	/** Used for logging purposes. */
+	private static final Logger LOG = Logger.getLogger(CrowdConfigurationRegistry.class.getName());
+
+	/**
+	 * The number of milliseconds to wait before the REST client of a replaced
+	 * configuration is shut down.
+	 */
+	private static final long SHUTDOWN_DELAY = Long.getLong(CrowdConfigurationRegistry.class.getName() + ".shutdownDelay", 30000L);
+
+	/** The singleton instance. */
+	private static final CrowdConfigurationRegistry INSTANCE = new CrowdConfigurationRegistry();
+
+	/** The properties the current configuration was created with. */
+	private Properties currentProperties;
+
+	/** Whether the current configuration uses nested groups. */
+	private boolean currentNestedGroups;
+
+	/** The configuration currently in use. */
+	private CrowdConfigurationService current;
+
+	/**
+	 * Creates the singleton instance.
+	 */
+	private CrowdConfigurationRegistry() {
+	}
+
+	/**
+	 * Returns the singleton instance.
+	 * 
+	 * @return The registry. Never <code>null</code>.
+	 */
+	public static CrowdConfigurationRegistry getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns the configuration for the given settings. If the connection
+	 * settings are the same as the ones of the current configuration, the
+	 * current configuration is updated and returned; otherwise a new one is
+	 * created.
+	 * 
+	 * @param group
+	 *            The comma-separated names of the groups whose members may
+	 *            login. May not be <code>null</code>.
+	 * @param nestedGroups
+	 *            Whether nested groups may be used.
+	 * @param useSSO
+	 *            Whether SSO is enabled.
+	 * @param props
+	 *            The Crowd client properties as returned by
+	 *            {@link CrowdConfigurationService#getProperties}. May not be
+	 *            <code>null</code>.
+	 * @return The configuration. Never <code>null</code>.
+	 */
+	public synchronized CrowdConfigurationService obtain(String group, boolean nestedGroups, boolean useSSO,
+			Properties props) {
+		if (null != this.current && this.currentNestedGroups == nestedGroups && props.equals(this.currentProperties)) {
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("Crowd connection settings unchanged; reusing existing client and caches");
+			}
+			this.current.updateSettings(group, useSSO);
+			return this.current;
+		}
+
+		CrowdConfigurationService configuration = create(group, nestedGroups, useSSO, props);
+		CrowdConfigurationService replaced = this.current;
+		this.currentProperties = (Properties) props.clone();
+		this.currentNestedGroups = nestedGroups;
+		this.current = configuration;
+
+		if (null != replaced) {
+			LOG.info("Crowd connection settings changed; replacing the Crowd client");
+			scheduleShutdown(replaced);
+		}
+		return configuration;
+	}
+
+	/**
+	 * Creates a new configuration including the REST client.
+	 * 
+	 * @param group
+	 *            The comma-separated names of the groups whose members may
+	 *            login. May not be <code>null</code>.
+	 * @param nestedGroups
+	 *            Whether nested groups may be used.
+	 * @param useSSO
+	 *            Whether SSO is enabled.
+	 * @param props
+	 *            The Crowd client properties. May not be <code>null</code>.
+	 * @return The new configuration. Never <code>null</code>.
+	 */
+	private static CrowdConfigurationService create(String group, boolean nestedGroups, boolean useSSO,
+			Properties props) {
+		String clusterUrls = props.getProperty(CrowdConfigurationService.CLUSTER_URLS_PROPERTY);
+		if (null == clusterUrls) {
+			return create(group, nestedGroups, useSSO, props,
+					new RestCrowdClientFactory().newInstance(ClientPropertiesImpl.newInstanceFromProperties(props)));
+		}
+
+		List<String> urls = Arrays.asList(clusterUrls.split(","));
+		List<CrowdClient> clients = new ArrayList<CrowdClient>();
+		for (String url : urls) {
+			clients.add(new RestCrowdClientFactory().newInstance(
+					ClientPropertiesImpl.newInstanceFromProperties(nodeProperties(props, url))));
+		}
+		CrowdClusterClient cluster = new CrowdClusterClient(urls, clients);
+		CrowdConfigurationService configuration = create(group, nestedGroups, useSSO, props, cluster.getClient());
+		configuration.cluster = cluster;
+		return configuration;
+	}
+
+	/**
+	 * Creates a new configuration using the given client.
+	 * 
+	 * @param group
+	 *            The comma-separated names of the groups whose members may
+	 *            login. May not be <code>null</code>.
+	 * @param nestedGroups
+	 *            Whether nested groups may be used.
+	 * @param useSSO
+	 *            Whether SSO is enabled.
+	 * @param props
+	 *            The Crowd client properties. May not be <code>null</code>.
+	 * @param client
+	 *            The client to access Crowd. May not be <code>null</code>.
+	 * @return The new configuration. Never <code>null</code>.
+	 */
+	static CrowdConfigurationService create(String group, boolean nestedGroups, boolean useSSO, Properties props,
+			CrowdClient client) {
+		CrowdConfigurationService configuration = new CrowdConfigurationService(group, nestedGroups);
+		configuration.useSSO = useSSO;
+		configuration.clientProperties = ClientPropertiesImpl.newInstanceFromProperties(props);
+		configuration.crowdClient = CrowdCallTracer.trace(client, configuration.ttlController);
+		configuration.tokenHelper = CrowdHttpTokenHelperImpl.getInstance(CrowdHttpValidationFactorExtractorImpl.getInstance());
+		configuration.crowdHttpAuthenticator = new CrowdHttpAuthenticatorImpl(
+				configuration.crowdClient,
+				configuration.clientProperties,
+				configuration.tokenHelper);
+		configuration.initializeTokenCaches();
+		if (CrowdOffHeapStore.ENABLED) {
+			configuration.initializeOffHeapStore();
+		}
+		configuration.ttlController.start();
+		if (nestedGroups && CrowdGroupHierarchy.ENABLED) {
+			configuration.groupHierarchy = new CrowdGroupHierarchy(configuration);
+			configuration.groupHierarchy.start();
+		}
+		if (CrowdUserDirectory.ENABLED) {
+			configuration.userDirectory = new CrowdUserDirectory(configuration);
+			configuration.userDirectory.start();
+		}
+		if (CrowdSidIndex.ENABLED) {
+			configuration.sidIndex.start();
+		}
+		return configuration;
+	}
+
+	/**
+	 * Returns the client properties for a single node of a Crowd cluster.
+	 * 
+	 * @param props
+	 *            The client properties of the cluster. May not be
+	 *            <code>null</code>.
+	 * @param url
+	 *            The base URL of the node. May not be <code>null</code>.
+	 * @return The properties of the node. Never <code>null</code>.
+	 */
+	static Properties nodeProperties(Properties props, String url) {
+		Properties nodeProps = (Properties) props.clone();
+		nodeProps.remove(CrowdConfigurationService.CLUSTER_URLS_PROPERTY);
+		nodeProps.setProperty("crowd.base.url", url);
+		nodeProps.setProperty("application.login.url", url + "console/");
+		nodeProps.setProperty("crowd.server.url", url + "services/");
+		return nodeProps;
+	}
+
+	/**
+	 * Stops the background tasks of a replaced configuration and shuts down
+	 * its REST client after the grace period.
+	 * 
+	 * @param replaced
+	 *            The replaced configuration. May not be <code>null</code>.
+	 */
+	private static void scheduleShutdown(final CrowdConfigurationService replaced) {
+		if (null != replaced.userDirectory) {
+			replaced.userDirectory.stop();
+		}
+		if (null != replaced.groupHierarchy) {
+			replaced.groupHierarchy.stop();
+		}
+		replaced.sidIndex.stop();
+		replaced.tokenStore.stop();
+		replaced.ttlController.stop();
+		CrowdExecutors.executeLater(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					replaced.crowdClient.shutdown();
+				} catch (RuntimeException ex) {
+					LOG.log(Level.WARNING, "Failed to shut down replaced Crowd client", ex);
+				}
+				if (null != replaced.offHeapStore) {
+					replaced.offHeapStore.close();
+				}
+			}
+		}, SHUTDOWN_DELAY, TimeUnit.MILLISECONDS);
+	}
+}
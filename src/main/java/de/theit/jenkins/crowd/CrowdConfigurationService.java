@@ -32,12 +32,20 @@ import static de.theit.jenkins.crowd.ErrorMessages.operationFailed;
 import static de.theit.jenkins.crowd.ErrorMessages.userNotFound;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.servlet.http.HttpServletRequest;
 
 import com.atlassian.crowd.model.user.User;
-import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import org.acegisecurity.GrantedAuthority;
 import org.acegisecurity.GrantedAuthorityImpl;
@@ -45,11 +53,17 @@ import org.acegisecurity.GrantedAuthorityImpl;
 import com.atlassian.crowd.exception.ApplicationPermissionException;
 import com.atlassian.crowd.exception.GroupNotFoundException;
 import com.atlassian.crowd.exception.InvalidAuthenticationException;
+import com.atlassian.crowd.exception.InvalidTokenException;
 import com.atlassian.crowd.exception.OperationFailedException;
 import com.atlassian.crowd.exception.UserNotFoundException;
 import com.atlassian.crowd.integration.http.CrowdHttpAuthenticator;
 import com.atlassian.crowd.integration.http.util.CrowdHttpTokenHelper;
+import com.atlassian.crowd.model.authentication.CookieConfiguration;
+import com.atlassian.crowd.model.authentication.Session;
 import com.atlassian.crowd.model.group.Group;
+import com.atlassian.crowd.search.builder.Restriction;
+import com.atlassian.crowd.search.query.entity.restriction.constants.GroupTermKeys;
+import com.atlassian.crowd.embedded.api.SearchRestriction;
 import com.atlassian.crowd.service.client.ClientProperties;
 import com.atlassian.crowd.service.client.CrowdClient;
 import org.acegisecurity.userdetails.UsernameNotFoundException;
@@ -89,16 +103,128 @@ public class CrowdConfigurationService {
 	 */
 	CrowdHttpAuthenticator crowdHttpAuthenticator;
 
-	/** The names of all user groups that are allowed to login. */
-	ArrayList<String> allowedGroupNames;
+	/**
+	 * The request attribute holding the Crowd session of the request's SSO
+	 * token after it was validated.
+	 */
+	private static final String SSO_SESSION_ATTRIBUTE = CrowdConfigurationService.class.getName() + ".ssoSession";
+
+	/**
+	 * The cookie settings of the Crowd server; retrieved once and used for
+	 * setting the SSO cookie after a login.
+	 */
+	private volatile CookieConfiguration cookieConfiguration;
+
+	/**
+	 * The names of all user groups that are allowed to login. The list is
+	 * never modified after it was assigned; changing the allowed groups
+	 * replaces the whole list.
+	 */
+	volatile ArrayList<String> allowedGroupNames;
 
 	/** Specifies whether nested groups may be used. */
 	private boolean nestedGroups;
 
-    public boolean useSSO;
+    public volatile boolean useSSO;
+
+    private CrowdCache<CrowdUserSnapshot> userCache;
+	private CrowdCache<Set<String>> userGroupCache;
+
+	/**
+	 * Caches whether a user is a member of at least one of the groups that are
+	 * allowed to login. Kept separately from {@link #userGroupCache} so that
+	 * the login check doesn't need to retrieve all groups of a user.
+	 */
+	private CrowdCache<Boolean> membershipCache;
+
+	/** Throttles failed login attempts before they reach Crowd. */
+	final CrowdLoginThrottle loginThrottle = new CrowdLoginThrottle();
+
+	/**
+	 * The local mirror of all Crowd users. <code>null</code> if the mirror is
+	 * disabled.
+	 */
+	CrowdUserDirectory userDirectory;
+
+	/**
+	 * Distributes the calls over the Crowd nodes. <code>null</code> if only
+	 * one Crowd URL is configured.
+	 */
+	CrowdClusterClient cluster;
+
+	/**
+	 * The client property holding the comma-separated base URLs of all Crowd
+	 * nodes if more than one is configured.
+	 */
+	static final String CLUSTER_URLS_PROPERTY = "crowd.base.urls";
+
+	/** The index used to suggest user and group names. */
+	final CrowdSidIndex sidIndex = new CrowdSidIndex(this);
+
+	/**
+	 * The local copy of the nested group hierarchy. <code>null</code> if
+	 * nested groups aren't used or the copy is disabled.
+	 */
+	CrowdGroupHierarchy groupHierarchy;
+
+	/**
+	 * The off-heap second level of the caches. <code>null</code> if it is
+	 * disabled.
+	 */
+	CrowdOffHeapStore offHeapStore;
+
+	/** Adapts the expiry of the caches to the health of Crowd. */
+	final CrowdTtlController ttlController = new CrowdTtlController(this);
+
+	/** Applies invalidation messages to the caches. */
+	final CrowdCacheInvalidator invalidator = new CrowdCacheInvalidator(this);
+
+	/** Caches whether the groups that are allowed to login are active. */
+	private CrowdCache<Boolean> groupActiveCache;
+
+	/**
+	 * Whether only the names of a user's groups are retrieved from Crowd
+	 * instead of the complete group objects. Inactive groups are then filtered
+	 * out using {@link #inactiveGroupNames}.
+	 */
+	private static final boolean NAMES_ONLY_GROUPS = !Boolean.getBoolean(CrowdConfigurationService.class.getName() + ".fullGroupObjects");
+
+	/**
+	 * The number of milliseconds after which the names of the inactive groups
+	 * are refreshed.
+	 */
+	private static final long INACTIVE_GROUPS_REFRESH_INTERVAL = Long.getLong(CrowdConfigurationService.class.getName() + ".inactiveGroupsRefreshInterval", TimeUnit.MINUTES.toMillis(5));
+
+	/** The names of all inactive groups. <code>null</code> until retrieved. */
+	private volatile Set<String> inactiveGroupNames;
+
+	/** When {@link #inactiveGroupNames} were retrieved. */
+	private volatile long inactiveGroupNamesTimestamp;
+
+	/** Whether {@link #inactiveGroupNames} are currently refreshed. */
+	private final AtomicBoolean inactiveGroupNamesRefreshing = new AtomicBoolean();
+
+	/** The maximum number of users loaded concurrently when warming the caches. */
+	private static final int WARM_PARALLELISM = Integer.getInteger(CrowdConfigurationService.class.getName() + ".warmParallelism", 4);
+
+	/** The number of users that are still to be loaded into the caches. */
+	private final AtomicInteger warmPending = new AtomicInteger();
+
+	/**
+	 * The maximum time in milliseconds to wait for the concurrent checks
+	 * whether a user is a member of one of the allowed groups. When the time
+	 * is up, the membership is treated as unknown.
+	 */
+	private static final long MEMBERSHIP_CHECK_TIMEOUT = Long.getLong(CrowdConfigurationService.class.getName() + ".membershipCheckTimeout", TimeUnit.SECONDS.toMillis(30));
+
+	/** The maximum number of SSO tokens that are cached. */
+	private static final int MAX_TOKENS = Integer.getInteger(CrowdConfigurationService.class.getName() + ".maxTokens", 100000);
 
-    private Cache<String, User> userCache;
-	private Cache<String, Set<String>> userGroupCache;
+	/**
+	 * Caches which SSO tokens were successfully validated and the
+	 * authentication created by the SSO auto-login per token.
+	 */
+	CrowdTokenStore tokenStore;
 
     /**
      * Creates a new Crowd configuration object.
@@ -111,34 +237,129 @@ public class CrowdConfigurationService {
      *            users against a group name.
      */
 	public CrowdConfigurationService(String pGroupNames, boolean pNestedGroups) {
+		this.allowedGroupNames = parseGroupNames(pGroupNames);
+
+		this.nestedGroups = pNestedGroups;
+
+		// the entries expire as determined by the TTL controller; the
+		// builders only enforce its upper bound
+		userCache = new CrowdCache<CrowdUserSnapshot>("users", 320, CacheBuilder.newBuilder().maximumSize(2500).expireAfterWrite(CrowdTtlController.MAX_TTL, TimeUnit.MILLISECONDS));
+		userGroupCache = new CrowdCache<Set<String>>("groups", 1024, CacheBuilder.newBuilder().maximumSize(2500).expireAfterWrite(CrowdTtlController.MAX_TTL, TimeUnit.MILLISECONDS));
+		membershipCache = new CrowdCache<Boolean>("memberships", 128, CacheBuilder.newBuilder().maximumSize(2500).expireAfterWrite(CrowdTtlController.MAX_TTL, TimeUnit.MILLISECONDS));
+		groupActiveCache = new CrowdCache<Boolean>("active groups", 128, CacheBuilder.newBuilder().maximumSize(100).expireAfterWrite(CrowdTtlController.MAX_TTL, TimeUnit.MILLISECONDS));
+
+		userCache.setExpiry(ttlController, new CrowdCache.Loader<CrowdUserSnapshot>() {
+			@Override
+			public CrowdUserSnapshot load(String key) throws Exception {
+				return CrowdUserSnapshot.of(crowdClient.getUser(key));
+			}
+		});
+		userGroupCache.setExpiry(ttlController, new CrowdCache.Loader<Set<String>>() {
+			@Override
+			public Set<String> load(String key) {
+				Set<String> groupNames = loadGroupNames(key);
+				return groupNames.isEmpty() ? null : groupNames;
+			}
+		});
+		membershipCache.setExpiry(ttlController, new CrowdCache.Loader<Boolean>() {
+			@Override
+			public Boolean load(String key) {
+				Boolean member = checkMembership(key, allowedGroupNames);
+				if (null == member) {
+					throw new IllegalStateException("membership check failed");
+				}
+				return member;
+			}
+		});
+		groupActiveCache.setExpiry(ttlController, new CrowdCache.Loader<Boolean>() {
+			@Override
+			public Boolean load(String key) throws Exception {
+				return isGroupActive(key);
+			}
+		});
+	}
+
+	/**
+	 * Splits the comma-separated list of group names whose members are allowed
+	 * to login.
+	 * 
+	 * @param pGroupNames
+	 *            The group names. May not be <code>null</code>.
+	 * @return The list of group names. Never <code>null</code>.
+	 */
+	private static ArrayList<String> parseGroupNames(String pGroupNames) {
 		if (LOG.isLoggable(Level.INFO)) {
 			LOG.info("Groups given for Crowd configuration service: " + pGroupNames);
 		}
-		this.allowedGroupNames = new ArrayList<String>();
+		ArrayList<String> groupNames = new ArrayList<String>();
 		for (String group : pGroupNames.split(",")) {
 			if (null != group && group.trim().length() > 0) {
 				if (LOG.isLoggable(Level.FINE)) {
 					LOG.fine("-> adding allowed group name: " + group);
 				}
-				this.allowedGroupNames.add(group);
+				groupNames.add(group);
 			}
 		}
+		return groupNames;
+	}
 
-		this.nestedGroups = pNestedGroups;
+	/**
+	 * Creates the cache for the SSO tokens. Must be called after the client
+	 * properties are set because the validation interval is read from them.
+	 */
+	void initializeTokenCaches() {
+		tokenStore = new CrowdTokenStore(MAX_TOKENS, ttlController.getTokenTtl(), TimeUnit.MINUTES.toMillis(15));
+		tokenStore.start();
+	}
 
-		userCache = CacheBuilder.newBuilder().maximumSize(2500).expireAfterAccess(15, TimeUnit.MINUTES).build();
-		userGroupCache = CacheBuilder.newBuilder().maximumSize(2500).expireAfterAccess(15, TimeUnit.MINUTES).build();
+	/**
+	 * Creates the off-heap store and uses it as second level of the user,
+	 * group and token caches. Must be called after
+	 * {@link #initializeTokenCaches()}.
+	 */
+	void initializeOffHeapStore() {
+		offHeapStore = new CrowdOffHeapStore(CrowdOffHeapStore.MAX_MEGABYTES);
+		userCache.setSecondLevel(offHeapStore.region(CrowdUserSnapshot.CODEC));
+		userGroupCache.setSecondLevel(offHeapStore.region(CrowdOffHeapStore.STRING_SET));
+		membershipCache.setSecondLevel(offHeapStore.region(CrowdOffHeapStore.BOOLEAN));
+		groupActiveCache.setSecondLevel(offHeapStore.region(CrowdOffHeapStore.BOOLEAN));
+		tokenStore.setSecondLevel(offHeapStore.region(CrowdTokenStore.AUTHENTICATIONS));
+		LOG.info("Using " + CrowdOffHeapStore.MAX_MEGABYTES + " MB off-heap memory for the Crowd caches");
+	}
+
+	/**
+	 * Updates the settings that don't affect the connection to Crowd when the
+	 * configuration is reused for a new security realm.
+	 * 
+	 * @param pGroupNames
+	 *            The comma-separated group names whose members may login. May
+	 *            not be <code>null</code>.
+	 * @param pUseSSO
+	 *            Whether SSO is enabled.
+	 */
+	void updateSettings(String pGroupNames, boolean pUseSSO) {
+		ArrayList<String> groupNames = parseGroupNames(pGroupNames);
+		if (!groupNames.equals(this.allowedGroupNames)) {
+			this.allowedGroupNames = groupNames;
+			// the memberships and auto-logins were checked against the old
+			// groups
+			membershipCache.invalidateAll();
+			if (null != tokenStore) {
+				tokenStore.clearAuthentications();
+			}
+		}
+		this.useSSO = pUseSSO;
 	}
 
-	public User getUser(String username) {
-		User user = userCache.getIfPresent(username);
+	public CrowdUserSnapshot getUser(String username) {
+		CrowdUserSnapshot user = getCachedUser(username);
 		if (user == null) {
 			try {
 				// load the user object from the remote Crowd server
 				if (LOG.isLoggable(Level.FINE)) {
 					LOG.fine("Loading user object from the remote Crowd server...");
 				}
-				user = crowdClient.getUser(username);
+				user = CrowdUserSnapshot.of(crowdClient.getUser(username));
 			} catch (UserNotFoundException ex) {
 				if (LOG.isLoggable(Level.INFO)) {
 					LOG.info(userNotFound(username));
@@ -155,13 +376,118 @@ public class CrowdConfigurationService {
 				throw new DataRetrievalFailureException(operationFailed(), ex);
 			}
 			if (user != null) {
-				userCache.put(username, user);
+				userCache.put(CrowdIdentifiers.canonical(username), user);
 			}
 		}
 
 		return user;
 	}
 
+	/**
+	 * Returns the user if it is known locally, i.e. from the user cache or the
+	 * local user mirror, without asking the remote Crowd server.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @return The user or <code>null</code> if it isn't known locally.
+	 */
+	public CrowdUserSnapshot getCachedUser(String username) {
+		CrowdUserSnapshot user = userCache.getIfPresent(CrowdIdentifiers.canonical(username));
+		if (user == null && null != userDirectory) {
+			user = userDirectory.getUser(username);
+		}
+		return user;
+	}
+
+	/**
+	 * Validates the SSO token of a request and returns the Crowd session
+	 * including the user it belongs to. The session is kept as request
+	 * attribute, so that the servlet filter and the remember-me services
+	 * validate the token only once per request.
+	 * 
+	 * @param request
+	 *            The servlet request. May not be <code>null</code>.
+	 * @param token
+	 *            The SSO token sent with the request. May not be
+	 *            <code>null</code>.
+	 * @return The Crowd session. Never <code>null</code>.
+	 * @throws InvalidTokenException
+	 *             If the token isn't valid (anymore).
+	 * @throws ApplicationPermissionException
+	 *             If the application is not permitted to access Crowd.
+	 * @throws InvalidAuthenticationException
+	 *             If the application name or password is wrong.
+	 * @throws OperationFailedException
+	 *             If the Crowd server can't be reached.
+	 */
+	public Session validateSSOSession(HttpServletRequest request, String token) throws InvalidTokenException,
+			ApplicationPermissionException, InvalidAuthenticationException, OperationFailedException {
+		Object validated = request.getAttribute(SSO_SESSION_ATTRIBUTE);
+		if (validated instanceof Session && token.equals(((Session) validated).getToken())) {
+			return (Session) validated;
+		}
+		Session session = crowdClient.validateSSOAuthenticationAndGetSession(token,
+				tokenHelper.getValidationFactorExtractor().getValidationFactors(request));
+		request.setAttribute(SSO_SESSION_ATTRIBUTE, session);
+		return session;
+	}
+
+	/**
+	 * Returns the cookie settings of the Crowd server. They are retrieved
+	 * from Crowd on the first call only; the settings can't change without
+	 * changing the connection settings, which creates a new configuration.
+	 * 
+	 * @return The cookie settings. Never <code>null</code>.
+	 * @throws ApplicationPermissionException
+	 *             If the application is not permitted to access Crowd.
+	 * @throws InvalidAuthenticationException
+	 *             If the application name or password is wrong.
+	 * @throws OperationFailedException
+	 *             If the Crowd server can't be reached.
+	 */
+	public CookieConfiguration getCookieConfiguration()
+			throws ApplicationPermissionException, InvalidAuthenticationException, OperationFailedException {
+		CookieConfiguration config = this.cookieConfiguration;
+		if (null == config) {
+			config = crowdClient.getCookieConfiguration();
+			this.cookieConfiguration = config;
+		}
+		return config;
+	}
+
+	/**
+	 * Stores a user object that was already retrieved from the remote Crowd
+	 * server, e.g. while authenticating the user, so that subsequent calls to
+	 * {@link #getUser(String)} don't need another round trip.
+	 * 
+	 * @param user
+	 *            The user object. May be <code>null</code>; in this case
+	 *            nothing is cached.
+	 * @return The snapshot of the user that was cached or <code>null</code>
+	 *         if <code>user</code> is <code>null</code>.
+	 */
+	public CrowdUserSnapshot cacheUser(User user) {
+		CrowdUserSnapshot snapshot = CrowdUserSnapshot.of(user);
+		if (null != snapshot) {
+			userCache.put(CrowdIdentifiers.canonical(snapshot.getName()), snapshot);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Returns all caches of this configuration.
+	 * 
+	 * @return The caches. Never <code>null</code>.
+	 */
+	public List<CrowdCache<?>> getCaches() {
+		List<CrowdCache<?>> caches = new ArrayList<CrowdCache<?>>();
+		caches.add(userCache);
+		caches.add(userGroupCache);
+		caches.add(membershipCache);
+		caches.add(groupActiveCache);
+		return caches;
+	}
+
 	/**
 	 * Checks whether the user is a member of one of the Crowd groups whose
 	 * members are allowed to login.
@@ -171,18 +497,147 @@ public class CrowdConfigurationService {
 	 *            empty.
 	 * @return <code>true</code> if and only if the group exists, is active and
 	 *         the user is either a direct group member or, if nested groups may
-	 *         be used, a nested group member. <code>false</code> else.
+	 *         be used, a nested group member. <code>false</code> else, also if
+	 *         the membership couldn't be determined.
+	 * @see #getGroupMembership(String)
 	 */
 	public boolean isGroupMember(String username) {
-		boolean retval = false;
+		return Boolean.TRUE.equals(getGroupMembership(username));
+	}
+
+	/**
+	 * Determines whether the user is a member of one of the Crowd groups whose
+	 * members are allowed to login. Unlike {@link #isGroupMember(String)} this
+	 * distinguishes a user that is definitely not a member from a membership
+	 * that couldn't be checked, e.g. because the remote Crowd server is not
+	 * reachable.
+	 * 
+	 * @param username
+	 *            The name of the user to check. May not be <code>null</code> or
+	 *            empty.
+	 * @return {@link Boolean#TRUE} if the user is a member of an active
+	 *         allowed group, {@link Boolean#FALSE} if not, <code>null</code>
+	 *         if this couldn't be determined.
+	 */
+	public Boolean getGroupMembership(String username) {
+		ArrayList<String> groups = this.allowedGroupNames;
+		String key = CrowdIdentifiers.canonical(username);
 
-		for (String group : this.allowedGroupNames) {
-			retval = isGroupMember(username, group);
-			if (retval) {
-				break;
+		Boolean retval = membershipCache.getIfPresent(key);
+		if (null != retval) {
+			return retval;
+		}
+
+		Set<String> groupNames = userGroupCache.getIfPresent(key);
+		if (null != groupNames) {
+			// the user's groups are already known => no need to ask Crowd
+			retval = Boolean.FALSE;
+			for (String group : groups) {
+				if (groupNames.contains(group)) {
+					retval = Boolean.TRUE;
+					break;
+				}
 			}
+		} else {
+			retval = checkMembership(username, groups);
 		}
 
+		if (null == retval) {
+			// at least one check failed => don't cache the result
+			return null;
+		}
+		membershipCache.put(key, retval);
+		return retval;
+	}
+
+	/**
+	 * Asks the remote Crowd server whether the user is a member of at least one
+	 * of the given groups. When there's more than one group, the groups are
+	 * checked concurrently and the check stops as soon as a membership is
+	 * found. When called from a thread of the bounded {@link CrowdExecutors}
+	 * pool, the groups are checked one after another on the calling thread
+	 * instead so that the pool can't deadlock on itself.
+	 * 
+	 * @param username
+	 *            The name of the user to check. May not be <code>null</code> or
+	 *            empty.
+	 * @param groups
+	 *            The names of the groups. May not be <code>null</code>.
+	 * @return {@link Boolean#TRUE} if the user is a member of an active group,
+	 *         {@link Boolean#FALSE} if not, <code>null</code> if this couldn't
+	 *         be determined because at least one check failed or didn't finish
+	 *         in time.
+	 */
+	private Boolean checkMembership(final String username, List<String> groups) {
+		if (groups.size() == 1 || CrowdExecutors.isWorkerThread()) {
+			return checkMembershipSequentially(username, groups);
+		}
+
+		CompletionService<Boolean> completionService = new ExecutorCompletionService<Boolean>(
+				CrowdExecutors.getCallerRunsExecutor());
+		List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(groups.size());
+		for (final String group : groups) {
+			futures.add(completionService.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return isGroupMember(username, group);
+				}
+			}));
+		}
+
+		Boolean retval = Boolean.FALSE;
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MEMBERSHIP_CHECK_TIMEOUT);
+		try {
+			for (int i = 0; i < futures.size(); i++) {
+				Future<Boolean> done = completionService.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+				if (null == done) {
+					LOG.warning("Checking the group memberships of user " + username + " timed out after "
+							+ MEMBERSHIP_CHECK_TIMEOUT + "ms");
+					return null;
+				}
+				Boolean member = done.get();
+				if (Boolean.TRUE.equals(member)) {
+					return Boolean.TRUE;
+				}
+				if (null == member) {
+					retval = null;
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			retval = null;
+		} catch (ExecutionException ex) {
+			LOG.log(Level.SEVERE, operationFailed(), ex.getCause());
+			retval = null;
+		} finally {
+			for (Future<Boolean> future : futures) {
+				future.cancel(true);
+			}
+		}
+		return retval;
+	}
+
+	/**
+	 * Checks the given groups one after another on the calling thread.
+	 * 
+	 * @param username
+	 *            The name of the user to check. May not be <code>null</code> or
+	 *            empty.
+	 * @param groups
+	 *            The names of the groups. May not be <code>null</code>.
+	 * @return See {@link #checkMembership(String, List)}.
+	 */
+	private Boolean checkMembershipSequentially(String username, List<String> groups) {
+		Boolean retval = Boolean.FALSE;
+		for (String group : groups) {
+			Boolean member = isGroupMember(username, group);
+			if (Boolean.TRUE.equals(member)) {
+				return Boolean.TRUE;
+			}
+			if (null == member) {
+				retval = null;
+			}
+		}
 		return retval;
 	}
 
@@ -195,23 +650,55 @@ public class CrowdConfigurationService {
 	 * @param group
 	 *            The name of the group to check the user against. May not be
 	 *            <code>null</code>.
-	 * @return <code>true</code> if and only if the group exists, is active and
-	 *         the user is either a direct group member or, if nested groups may
-	 *         be used, a nested group member. <code>false</code> else.
+	 * @return {@link Boolean#TRUE} if and only if the group exists, is active
+	 *         and the user is either a direct group member or, if nested
+	 *         groups may be used, a nested group member; {@link Boolean#FALSE}
+	 *         else. <code>null</code> if the check failed.
+	 */
+	private Boolean isGroupMember(String username, String group) {
+		try {
+			boolean member;
+			if (this.nestedGroups) {
+				member = this.crowdClient.isUserNestedGroupMember(username, group);
+			} else {
+				member = this.crowdClient.isUserDirectGroupMember(username, group);
+			}
+			return member && isAllowedGroupActive(group);
+		} catch (InvalidAuthenticationException ex) {
+			LOG.warning(invalidAuthentication());
+		} catch (ApplicationPermissionException ex) {
+			LOG.warning(applicationPermission());
+		} catch (OperationFailedException ex) {
+			LOG.log(Level.SEVERE, operationFailed(), ex);
+		}
+		return null;
+	}
+
+	/**
+	 * Checks whether one of the groups whose members are allowed to login is
+	 * active. The result is cached.
 	 * 
-	 * @throws ApplicationPermissionException
-	 *             If the application is not permitted to perform the requested
-	 *             operation on the server.
+	 * @param group
+	 *            The name of the group. May not be <code>null</code>.
+	 * @return <code>true</code> if the group exists and is active.
+	 *         <code>false</code> else.
 	 * @throws InvalidAuthenticationException
 	 *             If the application and password are not valid.
+	 * @throws ApplicationPermissionException
+	 *             If the application is not permitted to perform the requested
+	 *             operation on the server
 	 * @throws OperationFailedException
-	 *             If the operation has failed for any other reason, including
-	 *             invalid arguments and the operation not being supported on
-	 *             the server.
+	 *             If the operation has failed for any other reason.
 	 */
-	private boolean isGroupMember(String username, String group) {
-		Set<String> groupNames = getGroupNamesForUser(username);
-		return groupNames.contains(group);
+	private boolean isAllowedGroupActive(String group)
+			throws InvalidAuthenticationException,
+			ApplicationPermissionException, OperationFailedException {
+		Boolean active = groupActiveCache.getIfPresent(group);
+		if (null == active) {
+			active = isGroupActive(group);
+			groupActiveCache.put(group, active);
+		}
+		return active;
 	}
 
 	/**
@@ -286,24 +773,102 @@ public class CrowdConfigurationService {
 	}
 
 	private Set<String> getGroupNamesForUser(String username) {
-		Set<String> groupNames = userGroupCache.getIfPresent(username);
+		String key = CrowdIdentifiers.canonical(username);
+		Set<String> groupNames = userGroupCache.getIfPresent(key);
 
 		if (groupNames == null) {
-			groupNames = new HashSet<>();
-			// retrieve the names of all groups the user is a direct member of
-			try {
-				int index = 0;
-				if (LOG.isLoggable(Level.FINE)) {
-					LOG.fine("Retrieve list of groups with direct membership for user '"
-							+ username + "'...");
+			groupNames = loadGroupNames(username);
+			if (!groupNames.isEmpty()) {
+				userGroupCache.put(key, groupNames);
+			}
+		}
+
+		return groupNames;
+	}
+
+	/**
+	 * Retrieves the names of all active groups of the user from the remote
+	 * Crowd server.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @return The group names. Never <code>null</code>.
+	 */
+	private Set<String> loadGroupNames(String username) {
+		if (this.nestedGroups && null != this.groupHierarchy && this.groupHierarchy.isFresh()) {
+			// only the direct groups are needed; the nested ones are derived
+			// from the local copy of the group hierarchy
+			Set<String> directGroups = new HashSet<>();
+			fetchGroupNames(username, false, Collections.<String>emptySet(), directGroups);
+			Set<String> groupNames = this.groupHierarchy.expand(directGroups);
+			if (null != groupNames) {
+				return groupNames;
+			}
+		}
+
+		Set<String> groupNames = new HashSet<>();
+		Set<String> inactiveGroups = NAMES_ONLY_GROUPS ? getInactiveGroupNames() : null;
+
+		// retrieve the names of all groups the user is a direct member of
+		fetchGroupNames(username, false, inactiveGroups, groupNames);
+
+		// now the same but for nested group membership if this configuration
+		// setting is active/enabled
+		if (this.nestedGroups) {
+			fetchGroupNames(username, true, inactiveGroups, groupNames);
+		}
+		return groupNames;
+	}
+
+	/**
+	 * Retrieves the names of all active groups the user is a member of from
+	 * the remote Crowd server.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @param nested
+	 *            <code>true</code> to retrieve the groups with nested
+	 *            membership, <code>false</code> for direct membership only.
+	 * @param inactiveGroups
+	 *            The names of all inactive groups. If given, only the group
+	 *            names are retrieved and filtered against this set; if
+	 *            <code>null</code>, the complete group objects are retrieved
+	 *            to check whether the groups are active.
+	 * @param groupNames
+	 *            The set to add the group names to. May not be
+	 *            <code>null</code>.
+	 */
+	private void fetchGroupNames(String username, boolean nested, Set<String> inactiveGroups,
+			Set<String> groupNames) {
+		try {
+			int index = 0;
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("Retrieve list of groups with " + (nested ? "nested" : "direct")
+						+ " membership for user '" + username + "'...");
+			}
+			while (true) {
+				if (LOG.isLoggable(Level.FINEST)) {
+					LOG.finest("Fetching groups [" + index + "..."
+							+ (index + MAX_GROUPS - 1) + "]...");
 				}
-				while (true) {
-					if (LOG.isLoggable(Level.FINEST)) {
-						LOG.finest("Fetching groups [" + index + "..."
-								+ (index + MAX_GROUPS - 1) + "]...");
+				int count;
+				if (null != inactiveGroups) {
+					List<String> names = nested
+							? this.crowdClient.getNamesOfGroupsForNestedUser(username, index, MAX_GROUPS)
+							: this.crowdClient.getNamesOfGroupsForUser(username, index, MAX_GROUPS);
+					if (null == names || names.isEmpty()) {
+						break;
+					}
+					for (String name : names) {
+						if (!inactiveGroups.contains(name)) {
+							groupNames.add(name);
+						}
 					}
-					List<Group> groups = this.crowdClient.getGroupsForUser(
-							username, index, MAX_GROUPS);
+					count = names.size();
+				} else {
+					List<Group> groups = nested
+							? this.crowdClient.getGroupsForNestedUser(username, index, MAX_GROUPS)
+							: this.crowdClient.getGroupsForUser(username, index, MAX_GROUPS);
 					if (null == groups || groups.isEmpty()) {
 						break;
 					}
@@ -312,64 +877,346 @@ public class CrowdConfigurationService {
 							groupNames.add(group.getName());
 						}
 					}
-					index += MAX_GROUPS;
+					count = groups.size();
 				}
-			} catch (UserNotFoundException ex) {
-				if (LOG.isLoggable(Level.INFO)) {
-					LOG.info(userNotFound(username));
+				if (count < MAX_GROUPS) {
+					// last page => no need to ask for the next one
+					break;
 				}
-			} catch (InvalidAuthenticationException ex) {
-				LOG.warning(invalidAuthentication());
-			} catch (ApplicationPermissionException ex) {
-				LOG.warning(applicationPermission());
-			} catch (OperationFailedException ex) {
-				LOG.log(Level.SEVERE, operationFailed(), ex);
+				index += MAX_GROUPS;
+			}
+		} catch (UserNotFoundException ex) {
+			if (LOG.isLoggable(Level.INFO)) {
+				LOG.info(userNotFound(username));
 			}
+		} catch (InvalidAuthenticationException ex) {
+			LOG.warning(invalidAuthentication());
+		} catch (ApplicationPermissionException ex) {
+			LOG.warning(applicationPermission());
+		} catch (OperationFailedException ex) {
+			LOG.log(Level.SEVERE, operationFailed(), ex);
+		}
+	}
 
-			// now the same but for nested group membership if this configuration
-			// setting is active/enabled
-			if (this.nestedGroups) {
-				try {
-					int index = 0;
-					if (LOG.isLoggable(Level.FINE)) {
-						LOG.fine("Retrieve list of groups with direct membership for user '"
-								+ username + "'...");
+	/**
+	 * Returns the names of all inactive groups on the remote Crowd server. The
+	 * set is retrieved as a whole and refreshed in the background when it is
+	 * older than {@link #INACTIVE_GROUPS_REFRESH_INTERVAL}.
+	 * 
+	 * @return The names of all inactive groups or <code>null</code> if they
+	 *         have never been retrieved successfully.
+	 */
+	private Set<String> getInactiveGroupNames() {
+		Set<String> groups = this.inactiveGroupNames;
+		if (null == groups) {
+			// first use => retrieve synchronously
+			return refreshInactiveGroupNames();
+		}
+		if (System.currentTimeMillis() - this.inactiveGroupNamesTimestamp > INACTIVE_GROUPS_REFRESH_INTERVAL
+				&& this.inactiveGroupNamesRefreshing.compareAndSet(false, true)) {
+			if (!CrowdExecutors.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						refreshInactiveGroupNames();
+					} finally {
+						inactiveGroupNamesRefreshing.set(false);
 					}
-					while (true) {
-						if (LOG.isLoggable(Level.FINEST)) {
-							LOG.finest("Fetching groups [" + index + "..."
-									+ (index + MAX_GROUPS - 1) + "]...");
-						}
-						List<Group> groups = this.crowdClient
-								.getGroupsForNestedUser(username, index, MAX_GROUPS);
-						if (null == groups || groups.isEmpty()) {
-							break;
-						}
-						for (Group group : groups) {
-							if (group.isActive()) {
-								groupNames.add(group.getName());
+				}
+			})) {
+				this.inactiveGroupNamesRefreshing.set(false);
+			}
+		}
+		return groups;
+	}
+
+	/**
+	 * Retrieves the names of all inactive groups from the remote Crowd server.
+	 * 
+	 * @return The names of all inactive groups or <code>null</code> if they
+	 *         couldn't be retrieved.
+	 */
+	private Set<String> refreshInactiveGroupNames() {
+		SearchRestriction inactive = Restriction.on(GroupTermKeys.ACTIVE).exactlyMatching(Boolean.FALSE);
+		Set<String> groups = new HashSet<String>();
+		try {
+			int index = 0;
+			while (true) {
+				List<String> names = this.crowdClient.searchGroupNames(inactive, index, MAX_GROUPS);
+				if (null == names || names.isEmpty()) {
+					break;
+				}
+				groups.addAll(names);
+				if (names.size() < MAX_GROUPS) {
+					break;
+				}
+				index += MAX_GROUPS;
+			}
+		} catch (InvalidAuthenticationException ex) {
+			LOG.warning(invalidAuthentication());
+			return null;
+		} catch (ApplicationPermissionException ex) {
+			LOG.warning(applicationPermission());
+			return null;
+		} catch (OperationFailedException ex) {
+			LOG.log(Level.SEVERE, operationFailed(), ex);
+			return null;
+		}
+
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine("Retrieved " + groups.size() + " inactive groups");
+		}
+		this.inactiveGroupNamesTimestamp = System.currentTimeMillis();
+		this.inactiveGroupNames = Collections.unmodifiableSet(groups);
+		return this.inactiveGroupNames;
+	}
+
+	/**
+	 * Returns what is cached for a user.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @return The cached state. Never <code>null</code>.
+	 */
+	public CachedUserState inspectUser(String username) {
+		String key = CrowdIdentifiers.canonical(username);
+		CachedUserState state = new CachedUserState(username);
+		state.user = userCache.getIfPresent(key);
+		state.groups = userGroupCache.getIfPresent(key);
+		state.member = membershipCache.getIfPresent(key);
+		if (null != tokenStore) {
+			int[] tokens = tokenStore.countTokens(key);
+			state.tokens = tokens[0];
+			state.validatedTokens = tokens[1];
+		}
+		return state;
+	}
+
+	/**
+	 * Removes everything cached for a user, including the user's SSO tokens.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 */
+	public void evictUser(String username) {
+		evict(Collections.singleton(username), Collections.<String> emptySet());
+	}
+
+	/**
+	 * Removes everything cached for a group: whether it is active and the
+	 * group memberships of all users that are members of the group.
+	 * 
+	 * @param group
+	 *            The name of the group. May not be <code>null</code>.
+	 */
+	public void evictGroup(String group) {
+		evict(Collections.<String> emptySet(), Collections.singleton(group));
+	}
+
+	/**
+	 * Removes everything cached for the given users and groups in one pass
+	 * over the caches. For a user, this includes the user's SSO tokens; for a
+	 * group, whether it is active and the group memberships of its members.
+	 * 
+	 * @param usernames
+	 *            The names of the users. May not be <code>null</code>.
+	 * @param groups
+	 *            The names of the groups. May not be <code>null</code>.
+	 * @return The names of all users whose cached data was removed because of
+	 *         the users or groups, e.g. to load them again. Never
+	 *         <code>null</code>.
+	 */
+	public Set<String> evict(Collection<String> usernames, Collection<String> groups) {
+		Set<String> keys = new HashSet<String>();
+		for (String username : usernames) {
+			keys.add(CrowdIdentifiers.canonical(username));
+		}
+
+		if (!groups.isEmpty()) {
+			for (String group : groups) {
+				groupActiveCache.invalidate(group);
+			}
+			for (Map.Entry<String, Set<String>> entry : userGroupCache.asMap().entrySet()) {
+				for (String group : groups) {
+					if (entry.getValue().contains(group)) {
+						keys.add(entry.getKey());
+						break;
+					}
+				}
+			}
+			boolean allowedGroup = false;
+			for (String group : groups) {
+				allowedGroup |= this.allowedGroupNames.contains(group);
+			}
+			if (allowedGroup) {
+				membershipCache.invalidateAll();
+			}
+			// the groups may have been (de)activated or moved
+			this.inactiveGroupNamesTimestamp = 0L;
+			if (null != groupHierarchy) {
+				groupHierarchy.requestSync();
+			}
+		}
+
+		for (String key : keys) {
+			userCache.invalidate(key);
+			userGroupCache.invalidate(key);
+			membershipCache.invalidate(key);
+		}
+		if (null != tokenStore && !keys.isEmpty()) {
+			tokenStore.invalidateUsers(keys);
+		}
+
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine("Evicted cached data of " + keys.size() + " user(s) for " + usernames.size() + " user(s) and "
+					+ groups.size() + " group(s)");
+		}
+		return keys;
+	}
+
+	/**
+	 * Removes everything from all caches.
+	 */
+	public void evictAll() {
+		for (CrowdCache<?> cache : getCaches()) {
+			cache.invalidateAll();
+		}
+		if (null != tokenStore) {
+			tokenStore.clear();
+		}
+		this.inactiveGroupNamesTimestamp = 0L;
+		if (null != groupHierarchy) {
+			groupHierarchy.requestSync();
+		}
+		LOG.info("Evicted all cached Crowd data");
+	}
+
+	/**
+	 * Loads the given users, their group memberships and their groups into
+	 * the caches in the background. At most {@link #WARM_PARALLELISM} users
+	 * are loaded at the same time.
+	 * 
+	 * @param usernames
+	 *            The names of the users. May not be <code>null</code>.
+	 */
+	public void warmUsers(Collection<String> usernames) {
+		final Queue<String> queue = new ConcurrentLinkedQueue<String>(usernames);
+		this.warmPending.addAndGet(queue.size());
+		int workers = Math.min(WARM_PARALLELISM, queue.size());
+		int started = 0;
+		for (int i = 0; i < workers; i++) {
+			boolean accepted = CrowdExecutors.execute(new Runnable() {
+				@Override
+				public void run() {
+					String username;
+					while (null != (username = queue.poll())) {
+						try {
+							if (isGroupMember(username)) {
+								getUser(username);
+								getAuthoritiesForUser(username);
+							}
+						} catch (RuntimeException ex) {
+							if (LOG.isLoggable(Level.FINE)) {
+								LOG.fine("Failed to warm the caches for user " + username + ": " + ex.getMessage());
 							}
+						} finally {
+							warmPending.decrementAndGet();
 						}
-						index += MAX_GROUPS;
-					}
-				} catch (UserNotFoundException ex) {
-					if (LOG.isLoggable(Level.INFO)) {
-						LOG.info(userNotFound(username));
 					}
-				} catch (InvalidAuthenticationException ex) {
-					LOG.warning(invalidAuthentication());
-				} catch (ApplicationPermissionException ex) {
-					LOG.warning(applicationPermission());
-				} catch (OperationFailedException ex) {
-					LOG.log(Level.SEVERE, operationFailed(), ex);
 				}
+			});
+			if (accepted) {
+				started++;
 			}
-			if (!groupNames.isEmpty()) {
-				userGroupCache.put(username, groupNames);
+		}
+		if (0 == started) {
+			// the executor is saturated => nobody takes the users
+			while (null != queue.poll()) {
+				this.warmPending.decrementAndGet();
 			}
 		}
+	}
 
-		return groupNames;
+	/**
+	 * Returns the number of users that are still to be loaded into the caches.
+	 * 
+	 * @return The number of users.
+	 */
+	public int getWarmPending() {
+		return this.warmPending.get();
+	}
+
+	/**
+	 * What is cached for a single user.
+	 */
+	public static final class CachedUserState {
+		private final String username;
+
+		CrowdUserSnapshot user;
+
+		Set<String> groups;
+
+		Boolean member;
+
+		int tokens;
+
+		int validatedTokens;
+
+		CachedUserState(String pUsername) {
+			this.username = pUsername;
+		}
+
+		/** @return The name of the user. */
+		public String getUsername() {
+			return this.username;
+		}
+
+		/** @return The cached user or <code>null</code>. */
+		public CrowdUserSnapshot getUser() {
+			return this.user;
+		}
+
+		/** @return The cached group names or <code>null</code>. */
+		public Set<String> getGroups() {
+			return this.groups;
+		}
+
+		/**
+		 * @return Whether the user may login, or <code>null</code> if this
+		 *         isn't cached.
+		 */
+		public Boolean getMember() {
+			return this.member;
+		}
+
+		/** @return The number of cached SSO tokens of the user. */
+		public int getTokens() {
+			return this.tokens;
+		}
+
+		/** @return The number of these tokens that are validated. */
+		public int getValidatedTokens() {
+			return this.validatedTokens;
+		}
+	}
+
+	/**
+	 * Splits the configured Crowd URL into the base URLs of the Crowd nodes.
+	 * Several URLs may be separated by commas or whitespace; every URL gets a
+	 * trailing slash.
+	 * 
+	 * @param url
+	 *            The configured URL. May not be <code>null</code>.
+	 * @return The base URLs. Never <code>null</code>.
+	 */
+	static List<String> parseUrls(String url) {
+		List<String> urls = new ArrayList<String>();
+		for (String part : url.split("[,\\s]+")) {
+			if (part.length() > 0) {
+				urls.add(part.endsWith("/") ? part : part + "/");
+			}
+		}
+		return urls;
 	}
 
     static public Properties getProperties(String url, String applicationName, String password,
@@ -381,9 +1228,10 @@ public class CrowdConfigurationService {
         // for https://docs.atlassian.com/crowd/2.7.1/com/atlassian/crowd/service/client/ClientPropertiesImpl.html
         Properties props = new Properties();
 
-        String crowdUrl = url;
-        if (!crowdUrl.endsWith("/")) {
-            crowdUrl += "/";
+        List<String> urls = parseUrls(url);
+        String crowdUrl = urls.isEmpty() ? "/" : urls.get(0);
+        if (urls.size() > 1) {
+            props.setProperty(CLUSTER_URLS_PROPERTY, String.join(",", urls));
         }
         props.setProperty("application.name", applicationName);
         props.setProperty("application.password", password);
@@ -0,0 +1,326 @@
+/*
+ * @(#)CrowdConnectionProbe.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2011 Thorsten Heit.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import static de.theit.jenkins.crowd.ErrorMessages.applicationPermission;
+import static de.theit.jenkins.crowd.ErrorMessages.invalidAuthentication;
+import static de.theit.jenkins.crowd.ErrorMessages.operationFailed;
+import hudson.Util;
+import hudson.util.FormValidation;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.atlassian.crowd.exception.ApplicationPermissionException;
+import com.atlassian.crowd.exception.CrowdException;
+import com.atlassian.crowd.exception.InvalidAuthenticationException;
+import com.atlassian.crowd.exception.OperationFailedException;
+import com.atlassian.crowd.integration.rest.service.factory.RestCrowdClientFactory;
+import com.atlassian.crowd.model.authentication.ValidationFactor;
+import com.atlassian.crowd.search.query.entity.restriction.NullRestrictionImpl;
+import com.atlassian.crowd.service.client.ClientProperties;
+import com.atlassian.crowd.service.client.ClientPropertiesImpl;
+import com.atlassian.crowd.service.client.CrowdClient;
+
+/**
+ * This class measures how fast a Crowd server answers the operations the
+ * Crowd security realm depends on, and derives recommendations for the
+ * timeouts and the connection pool from the measurements. It is used by the
+ * "Measure latency" button of the configuration page.
+ * <p>
+ * The TCP connection setup is measured separately from the Crowd calls. The
+ * first call of the fresh client includes the setup of the HTTP (and TLS)
+ * connection; the following calls reuse it, so they show the time spent by
+ * the server plus one network round trip. Per iteration these operations are
+ * measured:
+ * <ul>
+ * <li>authentication of the application (<code>testConnection</code>),</li>
+ * <li>authentication of a user, using a random user name that doesn't
+ * exist,</li>
+ * <li>retrieval of a page of members of the first allowed group, or of a page
+ * of group names if no group is configured,</li>
+ * <li>validation of an SSO token, using a token that doesn't exist.</li>
+ * </ul>
+ * 
+ * @since 18.10.2026
+ * @version $Id$
+ */
+public class CrowdConnectionProbe {
+	/** Used for logging purposes. */
+	private static final Logger LOG = Logger.getLogger(CrowdConnectionProbe.class.getName());
+
+	/** The maximum number of iterations. */
+	private static final int MAX_ITERATIONS = 1000;
+
+	/** The maximum number of TCP connections that are measured. */
+	private static final int MAX_CONNECTS = 20;
+
+	/** The number of entries per page of group members. */
+	private static final int PAGE_SIZE = 100;
+
+	/**
+	 * The number of logins per second the recommended connection pool should
+	 * sustain.
+	 */
+	private static final int TARGET_LOGIN_RATE = Integer.getInteger(CrowdConnectionProbe.class.getName() + ".targetLoginRate", 20);
+
+	/** The names of the measured operations. */
+	private static final String[] OPERATIONS = { "Authenticate application", "Authenticate user", "Fetch group page",
+			"Validate SSO token" };
+
+	/** The client properties. */
+	private final Properties props;
+
+	/** The names of the groups whose members may login. */
+	private final List<String> groupNames;
+
+	/** The number of times each operation is measured. */
+	private final int iterations;
+
+	/**
+	 * Creates a new probe.
+	 * 
+	 * @param pProps
+	 *            The client properties as returned by
+	 *            {@link CrowdConfigurationService#getProperties}. May not be
+	 *            <code>null</code>.
+	 * @param group
+	 *            The comma-separated names of the groups whose members may
+	 *            login. May be <code>null</code>.
+	 * @param pIterations
+	 *            The number of times each operation is measured; limited to
+	 *            1 to {@link #MAX_ITERATIONS}.
+	 */
+	public CrowdConnectionProbe(Properties pProps, String group, int pIterations) {
+		this.props = pProps;
+		this.groupNames = new CrowdConfigurationService(null != group ? group : "", false).allowedGroupNames;
+		this.iterations = Math.max(1, Math.min(MAX_ITERATIONS, pIterations));
+	}
+
+	/**
+	 * Runs the measurements.
+	 * 
+	 * @return The measurements and recommendations as HTML, or the error if
+	 *         Crowd can't be reached.
+	 */
+	public FormValidation run() {
+		long[] connects;
+		try {
+			connects = measureConnects();
+		} catch (IOException ex) {
+			LOG.log(Level.WARNING, operationFailed(), ex);
+			return FormValidation.error(operationFailed() + ": " + ex.getMessage());
+		}
+
+		ClientProperties clientProperties = ClientPropertiesImpl.newInstanceFromProperties(this.props);
+		CrowdClient client = new RestCrowdClientFactory().newInstance(clientProperties);
+		long firstCall;
+		long[][] samples = new long[OPERATIONS.length][this.iterations];
+		try {
+			long start = System.nanoTime();
+			client.testConnection();
+			firstCall = System.nanoTime() - start;
+
+			for (int i = 0; i < this.iterations; i++) {
+				start = System.nanoTime();
+				client.testConnection();
+				samples[0][i] = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				try {
+					client.authenticateUser("jenkins-probe-" + UUID.randomUUID(), UUID.randomUUID().toString());
+				} catch (CrowdException ex) {
+					// expected: the user doesn't exist
+				}
+				samples[1][i] = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				try {
+					if (this.groupNames.isEmpty()) {
+						client.searchGroupNames(NullRestrictionImpl.INSTANCE, 0, PAGE_SIZE);
+					} else {
+						client.getNamesOfUsersOfGroup(this.groupNames.get(0), 0, PAGE_SIZE);
+					}
+				} catch (CrowdException ex) {
+					// e.g. the group doesn't exist; the round trip counts anyway
+				}
+				samples[2][i] = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				try {
+					client.validateSSOAuthentication("jenkins-probe-" + UUID.randomUUID(),
+							Collections.<ValidationFactor>emptyList());
+				} catch (CrowdException ex) {
+					// expected: the token doesn't exist
+				}
+				samples[3][i] = System.nanoTime() - start;
+			}
+		} catch (InvalidAuthenticationException ex) {
+			LOG.log(Level.WARNING, invalidAuthentication(), ex);
+			return FormValidation.error(invalidAuthentication());
+		} catch (ApplicationPermissionException ex) {
+			LOG.log(Level.WARNING, applicationPermission(), ex);
+			return FormValidation.error(applicationPermission());
+		} catch (OperationFailedException ex) {
+			LOG.log(Level.SEVERE, operationFailed(), ex);
+			return FormValidation.error(operationFailed());
+		} finally {
+			client.shutdown();
+		}
+
+		return FormValidation.okWithMarkup(report(connects, firstCall, samples, clientProperties));
+	}
+
+	/**
+	 * Measures how long it takes to open a TCP connection to the Crowd server
+	 * or the proxy.
+	 * 
+	 * @return The durations in nanoseconds.
+	 * @throws IOException
+	 *             If no connection can be opened.
+	 */
+	private long[] measureConnects() throws IOException {
+		URL url = new URL(this.props.getProperty("crowd.base.url"));
+		String host = url.getHost();
+		int port = -1 != url.getPort() ? url.getPort() : url.getDefaultPort();
+		String proxyHost = this.props.getProperty("http.proxy.host");
+		if (null != proxyHost) {
+			host = proxyHost;
+			port = intProperty("http.proxy.port", 80);
+		}
+		int timeout = intProperty("http.timeout", 5000);
+
+		long[] connects = new long[Math.min(MAX_CONNECTS, this.iterations)];
+		for (int i = 0; i < connects.length; i++) {
+			Socket socket = new Socket();
+			try {
+				long start = System.nanoTime();
+				socket.connect(new InetSocketAddress(host, port), timeout);
+				connects[i] = System.nanoTime() - start;
+			} finally {
+				socket.close();
+			}
+		}
+		return connects;
+	}
+
+	private int intProperty(String key, int defaultValue) {
+		try {
+			return Integer.parseInt(this.props.getProperty(key, String.valueOf(defaultValue)).trim());
+		} catch (NumberFormatException ex) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Formats the measurements and the recommendations.
+	 */
+	private String report(long[] connects, long firstCall, long[][] samples, ClientProperties clientProperties) {
+		StringBuilder html = new StringBuilder();
+		html.append("<table class='pane' style='width:auto'>");
+		html.append("<tr><th class='pane-header'>Operation</th><th class='pane-header'>p50 (ms)</th>")
+				.append("<th class='pane-header'>p99 (ms)</th></tr>");
+		row(html, "TCP connection setup", connects);
+		row(html, "First call (incl. HTTP/TLS connection setup)", new long[] { firstCall });
+
+		long slowestP99 = 0L;
+		long[] p50s = new long[OPERATIONS.length];
+		for (int i = 0; i < OPERATIONS.length; i++) {
+			row(html, OPERATIONS[i], samples[i]);
+			p50s[i] = percentile(samples[i], 0.5);
+			slowestP99 = Math.max(slowestP99, percentile(samples[i], 0.99));
+		}
+		html.append("</table>");
+
+		long connectP50 = percentile(connects, 0.5);
+		long connectP99 = percentile(connects, 0.99);
+		long warm = p50s[0];
+		html.append("<p>Connection setup (TCP, TLS, first request): about ")
+				.append(millis(Math.max(0L, firstCall - warm))).append(" ms; server time per call: about ")
+				.append(millis(Math.max(0L, warm - connectP50))).append(" ms plus one network round trip.</p>");
+
+		// a login needs one authentication and one membership check per
+		// allowed group, all of them concurrently in the worst case
+		long callsPerLogin = 1 + Math.max(1, this.groupNames.size());
+		double busyConnections = TARGET_LOGIN_RATE * callsPerLogin * TimeUnit.NANOSECONDS.toMillis(slowestP99) / 1000.0;
+		int recommendedConnections = (int) Math.max(10, Math.ceil(busyConnections * 1.5));
+		long recommendedHttpTimeout = roundUp(Math.max(1000L, 10 * TimeUnit.NANOSECONDS.toMillis(connectP99)));
+		long recommendedSocketTimeout = roundUp(Math.max(5000L, 10 * TimeUnit.NANOSECONDS.toMillis(slowestP99)));
+
+		html.append("<p>Recommended settings (to sustain ").append(TARGET_LOGIN_RATE).append(" logins per second):</p>");
+		html.append("<table class='pane' style='width:auto'>");
+		html.append("<tr><th class='pane-header'>Setting</th><th class='pane-header'>Current</th>")
+				.append("<th class='pane-header'>Recommended</th></tr>");
+		setting(html, "http.max.connections", clientProperties.getHttpMaxConnections(), recommendedConnections);
+		setting(html, "http.timeout", clientProperties.getHttpTimeout(), recommendedHttpTimeout);
+		setting(html, "socket.timeout", clientProperties.getSocketTimeout(), recommendedSocketTimeout);
+		html.append("</table>");
+		return html.toString();
+	}
+
+	private static void row(StringBuilder html, String operation, long[] nanos) {
+		html.append("<tr><td class='pane'>").append(Util.escape(operation)).append("</td><td class='pane'>")
+				.append(millis(percentile(nanos, 0.5))).append("</td><td class='pane'>")
+				.append(millis(percentile(nanos, 0.99))).append("</td></tr>");
+	}
+
+	private static void setting(StringBuilder html, String name, Object current, long recommended) {
+		html.append("<tr><td class='pane'>").append(name).append("</td><td class='pane'>")
+				.append(null != current ? Util.escape(current.toString()) : "default")
+				.append("</td><td class='pane'>").append(recommended).append("</td></tr>");
+	}
+
+	private static long percentile(long[] values, double p) {
+		if (values.length == 0) {
+			return 0L;
+		}
+		long[] sorted = values.clone();
+		Arrays.sort(sorted);
+		return sorted[Math.max(0, (int) Math.ceil(p * sorted.length) - 1)];
+	}
+
+	private static String millis(long nanos) {
+		return String.format(Locale.ENGLISH, "%.1f", nanos / 1e6);
+	}
+
+	/**
+	 * Rounds a number of milliseconds up to the next half second.
+	 */
+	private static long roundUp(long millis) {
+		return (millis + 499) / 500 * 500;
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * @(#)CrowdDisplayNameWriter.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2011 Thorsten Heit.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * This class persists the display names of Crowd users as full names of the
+ * corresponding Jenkins users. The last known display name of each user is
+ * kept in memory so that the user's configuration is only written when the
+ * name has really changed. Changes are collected and written in the
+ * background; multiple changes for the same user are coalesced, only the
+ * latest name is written.
+ * 
+ * @since 18.10.2026
+ * @version $Id$
+ */
+public final class CrowdDisplayNameWriter {
+	/** Used for logging purposes. */
+	private static final Logger LOG = Logger.getLogger(CrowdDisplayNameWriter.class.getName());
+
+	/**
+	 * The number of milliseconds to wait after a change before all pending
+	 * changes are written.
+	 */
+	static final long FLUSH_DELAY = Long.getLong(CrowdDisplayNameWriter.class.getName() + ".flushDelay", 5000L);
+
+	/** The maximum number of display names that are remembered. */
+	private static final int MAX_KNOWN_NAMES = 10000;
+
+	/** The singleton instance. */
+	private static final CrowdDisplayNameWriter INSTANCE = new CrowdDisplayNameWriter();
+
+	/**
+	 * The last display names that are known to be persisted, by canonical
+	 * user name.
+	 */
+	private final Cache<String, String> knownNames;
+
+	/** The display names that still have to be written, by user name. */
+	private final ConcurrentMap<String, String> pendingNames = new ConcurrentHashMap<String, String>();
+
+	/** Whether a flush of the pending names is already scheduled. */
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+	/**
+	 * Creates the singleton instance.
+	 */
+	private CrowdDisplayNameWriter() {
+		this.knownNames = CacheBuilder.newBuilder().maximumSize(MAX_KNOWN_NAMES).build();
+	}
+
+	/**
+	 * Returns the singleton instance.
+	 * 
+	 * @return The display name writer. Never <code>null</code>.
+	 */
+	public static CrowdDisplayNameWriter getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Records the full name of a Jenkins user. If the name differs from the
+	 * last known one it is written in the background.
+	 * 
+	 * @param username
+	 *            The id of the Jenkins user. May not be <code>null</code>.
+	 * @param fullName
+	 *            The new full name. May not be <code>null</code>.
+	 */
+	public void update(String username, String fullName) {
+		if (fullName.equals(this.knownNames.getIfPresent(CrowdIdentifiers.canonical(username)))) {
+			return;
+		}
+		this.pendingNames.put(username, fullName);
+		if (this.flushScheduled.compareAndSet(false, true)) {
+			CrowdExecutors.executeLater(new Runnable() {
+				@Override
+				public void run() {
+					flush();
+				}
+			}, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Writes all pending display names.
+	 */
+	void flush() {
+		// reset the flag first: changes arriving while we're busy schedule
+		// another run
+		this.flushScheduled.set(false);
+
+		for (Map.Entry<String, String> entry : this.pendingNames.entrySet()) {
+			String username = entry.getKey();
+			String fullName = entry.getValue();
+			// only write the entry if it wasn't replaced or taken by another
+			// flush in the meantime
+			if (!this.pendingNames.remove(username, fullName)) {
+				continue;
+			}
+			try {
+				write(username, fullName);
+			} catch (IOException ex) {
+				LOG.log(Level.WARNING, "Failed to save the full name of user " + username, ex);
+			} catch (RuntimeException ex) {
+				LOG.log(Level.WARNING, "Failed to update the full name of user " + username, ex);
+			}
+		}
+	}
+
+	/**
+	 * Writes the full name of a single Jenkins user if it differs from the
+	 * persisted one.
+	 * 
+	 * @param username
+	 *            The id of the Jenkins user. May not be <code>null</code>.
+	 * @param fullName
+	 *            The new full name. May not be <code>null</code>.
+	 * @throws IOException
+	 *             If the user's configuration could not be saved.
+	 */
+	private void write(String username, String fullName) throws IOException {
+		hudson.model.User user = hudson.model.User.get(username);
+		if (!fullName.equals(user.getFullName())) {
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("Updating full name of user '" + username + "' to '" + fullName + "'");
+			}
+			user.setFullName(fullName);
+			user.save();
+		}
+		this.knownNames.put(CrowdIdentifiers.canonical(username), fullName);
+	}
+}
@@ -0,0 +1,328 @@
+/*
+ * @(#)CrowdExecutors.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2011 Thorsten Heit.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * This class provides the executors for all Crowd related work that is done
+ * outside of the request threads, e.g. cache warming or background
+ * refreshes.
+ * <p>
+ * On Java 21 and newer the Crowd calls are run on virtual threads, one per
+ * task; since blocking a virtual thread is cheap, there's no need to size a
+ * thread pool for the expected Crowd latency. On older Java versions a bounded
+ * pool of platform threads is used. The mode can be forced with the system
+ * property <code>de.theit.jenkins.crowd.CrowdExecutors.mode</code>
+ * (<code>virtual</code> or <code>platform</code>).
+ * <p>
+ * When the platform pool is saturated, background work submitted with
+ * {@link #execute(Runnable)} is dropped and counted rather than run on the
+ * submitting thread, which is usually a request thread. Only callers that
+ * wait for the result anyway use {@link #submit(Callable)}, which runs the
+ * task on the calling thread in that case.
+ * 
+ * @since 18.10.2026
+ * @version $Id$
+ */
+public final class CrowdExecutors {
+	/** Used for logging purposes. */
+	private static final Logger LOG = Logger.getLogger(CrowdExecutors.class.getName());
+
+	/** The requested execution mode. */
+	private static final String MODE = System.getProperty(CrowdExecutors.class.getName() + ".mode", "auto");
+
+	/** The number of threads of the platform thread pool. */
+	private static final int PLATFORM_THREADS = Integer.getInteger(CrowdExecutors.class.getName() + ".threads", 16);
+
+	/**
+	 * The maximum number of tasks waiting for a platform thread. When the
+	 * queue is full, further tasks are rejected.
+	 */
+	private static final int PLATFORM_QUEUE_SIZE = Integer.getInteger(CrowdExecutors.class.getName() + ".queueSize", 10000);
+
+	/** The executor for the Crowd calls. */
+	private static final ExecutorService EXECUTOR = createExecutor(MODE);
+
+	/** Runs the tasks on the calling thread if {@link #EXECUTOR} rejects them. */
+	private static final Executor CALLER_RUNS = new Executor() {
+		@Override
+		public void execute(Runnable task) {
+			try {
+				EXECUTOR.execute(task);
+			} catch (RejectedExecutionException ex) {
+				task.run();
+			}
+		}
+	};
+
+	/** Marks the threads of the platform thread pool. */
+	private static final ThreadLocal<Boolean> WORKER = new ThreadLocal<Boolean>();
+
+	/** The number of background tasks dropped because the pool was saturated. */
+	private static final AtomicLong DROPPED = new AtomicLong();
+
+	/** The scheduler for periodic and delayed tasks. */
+	private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Crowd scheduler").build());
+
+	/**
+	 * Not intended to be instantiated.
+	 */
+	private CrowdExecutors() {
+	}
+
+	/**
+	 * Returns the executor to use for Crowd calls outside of the request
+	 * threads.
+	 * 
+	 * @return The executor. Never <code>null</code>.
+	 */
+	public static ExecutorService getExecutor() {
+		return EXECUTOR;
+	}
+
+	/**
+	 * Runs a background task on {@link #getExecutor()}. If the executor is
+	 * saturated the task is dropped; nobody waits for it, and running it on
+	 * the submitting thread would delay the request being processed there.
+	 * 
+	 * @param task
+	 *            The task. May not be <code>null</code>.
+	 * @return <code>true</code> if the task was accepted, <code>false</code>
+	 *         if it was dropped.
+	 */
+	public static boolean execute(Runnable task) {
+		return execute(EXECUTOR, task);
+	}
+
+	/**
+	 * Runs a background task on the given executor, dropping it if the
+	 * executor is saturated.
+	 * 
+	 * @param executor
+	 *            The executor. May not be <code>null</code>.
+	 * @param task
+	 *            The task. May not be <code>null</code>.
+	 * @return <code>true</code> if the task was accepted, <code>false</code>
+	 *         if it was dropped.
+	 */
+	static boolean execute(Executor executor, Runnable task) {
+		try {
+			executor.execute(task);
+			return true;
+		} catch (RejectedExecutionException ex) {
+			long dropped = DROPPED.incrementAndGet();
+			// log the 1st, 2nd, 4th, 8th, ... drop only
+			if (Long.bitCount(dropped) == 1) {
+				LOG.warning("The Crowd executor is saturated; " + dropped
+						+ " background task(s) dropped so far");
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Hands a task over to {@link #getExecutor()} after the given delay. If
+	 * the executor is saturated at that time, the hand-over is retried after
+	 * another delay.
+	 * 
+	 * @param task
+	 *            The task. May not be <code>null</code>.
+	 * @param delay
+	 *            The delay.
+	 * @param unit
+	 *            The unit of <code>delay</code>. May not be
+	 *            <code>null</code>.
+	 */
+	public static void executeLater(final Runnable task, final long delay, final TimeUnit unit) {
+		SCHEDULER.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (!execute(task)) {
+					SCHEDULER.schedule(this, delay, unit);
+				}
+			}
+		}, delay, unit);
+	}
+
+	/**
+	 * Runs a task whose result the caller waits for on {@link #getExecutor()}.
+	 * If the executor is saturated the task is run on the calling thread,
+	 * which would be blocked waiting for it anyway.
+	 * 
+	 * @param <T>
+	 *            The type of the result.
+	 * @param task
+	 *            The task. May not be <code>null</code>.
+	 * @return The future of the task. Never <code>null</code>.
+	 */
+	public static <T> Future<T> submit(Callable<T> task) {
+		FutureTask<T> future = new FutureTask<T>(task);
+		getCallerRunsExecutor().execute(future);
+		return future;
+	}
+
+	/**
+	 * Returns an executor for tasks whose results the submitting thread waits
+	 * for. It runs the tasks on {@link #getExecutor()}, or on the submitting
+	 * thread if that is saturated.
+	 * 
+	 * @return The executor. Never <code>null</code>.
+	 */
+	public static Executor getCallerRunsExecutor() {
+		return CALLER_RUNS;
+	}
+
+	/**
+	 * Returns the number of background tasks that were dropped because the
+	 * executor was saturated.
+	 * 
+	 * @return The number of dropped tasks.
+	 */
+	public static long getDroppedTasks() {
+		return DROPPED.get();
+	}
+
+	/**
+	 * Returns the scheduler for delayed and periodic tasks. Tasks run on the
+	 * scheduler should be short; long running work (e.g. Crowd calls) should
+	 * be handed over to {@link #getExecutor()}.
+	 * 
+	 * @return The scheduler. Never <code>null</code>.
+	 */
+	public static ScheduledExecutorService getScheduler() {
+		return SCHEDULER;
+	}
+
+	/**
+	 * Checks whether the current thread is a thread of the bounded platform
+	 * thread pool. Code running on such a thread must not submit further
+	 * tasks to {@link #getExecutor()} and wait for them: when all threads of
+	 * the pool do so, the submitted tasks never start.
+	 * 
+	 * @return <code>true</code> if the current thread is a pooled platform
+	 *         thread, <code>false</code> else.
+	 */
+	public static boolean isWorkerThread() {
+		return Boolean.TRUE.equals(WORKER.get());
+	}
+
+	/**
+	 * Creates an executor for the given mode.
+	 * 
+	 * @param mode
+	 *            <code>virtual</code>, <code>platform</code> or
+	 *            <code>auto</code>. May not be <code>null</code>.
+	 * @return The executor. Never <code>null</code>.
+	 */
+	static ExecutorService createExecutor(String mode) {
+		if (!"platform".equals(mode)) {
+			ExecutorService executor = createVirtualThreadExecutor();
+			if (null != executor) {
+				LOG.info("Using virtual threads for Crowd calls");
+				return executor;
+			}
+			if ("virtual".equals(mode)) {
+				LOG.warning("Virtual threads are not available on this JVM; using platform threads for Crowd calls");
+			}
+		}
+		return createPlatformThreadExecutor(PLATFORM_THREADS, PLATFORM_QUEUE_SIZE);
+	}
+
+	/**
+	 * Creates an executor that starts a new virtual thread for each task. The
+	 * factory method is looked up at runtime so that the plugin still runs on
+	 * Java 8.
+	 * 
+	 * @return The executor or <code>null</code> if virtual threads are not
+	 *         available.
+	 */
+	static ExecutorService createVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (NoSuchMethodException ex) {
+			return null;
+		} catch (IllegalAccessException ex) {
+			LOG.log(Level.FINE, "Cannot create virtual thread executor", ex);
+			return null;
+		} catch (InvocationTargetException ex) {
+			// e.g. virtual threads are a preview feature that isn't enabled
+			LOG.log(Level.FINE, "Cannot create virtual thread executor", ex.getCause());
+			return null;
+		}
+	}
+
+	/**
+	 * Creates a bounded pool of platform threads. Tasks that don't fit into
+	 * the queue are rejected with a {@link RejectedExecutionException}.
+	 * 
+	 * @param threads
+	 *            The maximum number of threads.
+	 * @param queueSize
+	 *            The maximum number of waiting tasks.
+	 * @return The executor. Never <code>null</code>.
+	 */
+	static ExecutorService createPlatformThreadExecutor(int threads, int queueSize) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(queueSize),
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Crowd worker %d")
+						.setThreadFactory(new ThreadFactory() {
+							@Override
+							public Thread newThread(final Runnable task) {
+								return new Thread(new Runnable() {
+									@Override
+									public void run() {
+										WORKER.set(Boolean.TRUE);
+										task.run();
+									}
+								});
+							}
+						}).build(),
+				new ThreadPoolExecutor.AbortPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+}
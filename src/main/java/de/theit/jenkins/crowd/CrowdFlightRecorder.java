@@ -0,0 +1,265 @@
+/*
+ * @(#)CrowdFlightRecorder.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2011 Thorsten Heit.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class emits JDK Flight Recorder events for the work done by the Crowd
+ * security realm, so that it shows up in recordings next to the GC and
+ * thread events of the JVM. The event types are defined at runtime through
+ * <code>jdk.jfr.EventFactory</code> and accessed by method handles only, so
+ * that the plugin still runs on Java versions without the JFR API; there
+ * all methods of this class do nothing.
+ * <p>
+ * The events are in the category "Jenkins / Crowd" and are only created
+ * while the event type is enabled in the running recording; otherwise the
+ * overhead is a single check.
+ * 
+ * @since 18.10.2026
+ * @version $Id$
+ */
+public final class CrowdFlightRecorder {
+	/** Used for logging purposes. */
+	private static final Logger LOG = Logger.getLogger(CrowdFlightRecorder.class.getName());
+
+	/** The prefix for the names of the event types. */
+	private static final String NAME_PREFIX = CrowdFlightRecorder.class.getPackage().getName() + '.';
+
+	/** A call to the remote Crowd server. */
+	static final EventType CALL = EventType.define("CrowdCall", "Crowd Call",
+			"A call to the remote Crowd server", "operation", "outcome");
+
+	/** A lookup that wasn't answered by one of the caches. */
+	static final EventType CACHE_MISS = EventType.define("CacheMiss", "Crowd Cache Miss",
+			"A lookup that had to go to the remote Crowd server", "cache");
+
+	/** The decision of the SSO servlet filter for a request. */
+	static final EventType FILTER_DECISION = EventType.define("FilterDecision", "Crowd Filter Decision",
+			"How the SSO servlet filter handled a request", "decision");
+
+	/** A stage of a login with user name and password. */
+	static final EventType LOGIN_STAGE = EventType.define("LoginStage", "Crowd Login Stage",
+			"A stage of a login with user name and password", "stage", "outcome");
+
+	/**
+	 * Hide the constructor; all methods are static.
+	 */
+	private CrowdFlightRecorder() {
+	}
+
+	/**
+	 * Starts an event with a duration.
+	 * 
+	 * @param type
+	 *            The type of the event. May not be <code>null</code>.
+	 * @return The event that must be passed to
+	 *         {@link #commit(Object, String...)}, or <code>null</code> if the
+	 *         event type isn't enabled.
+	 */
+	static Object begin(EventType type) {
+		return type.begin();
+	}
+
+	/**
+	 * Ends and records an event started with {@link #begin(EventType)}.
+	 * 
+	 * @param event
+	 *            The event. May be <code>null</code>; then nothing happens.
+	 * @param values
+	 *            The values of the fields in the order they were defined.
+	 */
+	static void commit(Object event, String... values) {
+		if (null != event) {
+			EventType.commit(event, values);
+		}
+	}
+
+	/**
+	 * Records an event without a duration.
+	 * 
+	 * @param type
+	 *            The type of the event. May not be <code>null</code>.
+	 * @param values
+	 *            The values of the fields in the order they were defined.
+	 */
+	static void record(EventType type, String... values) {
+		commit(type.begin(), values);
+	}
+
+	/**
+	 * Returns whether the JFR API is available.
+	 * 
+	 * @return <code>true</code> if events can be recorded.
+	 */
+	public static boolean isAvailable() {
+		return null != EventType.API;
+	}
+
+	/**
+	 * An event type defined at runtime.
+	 */
+	static final class EventType {
+		/** The method handles into the JFR API; <code>null</code> if it isn't available. */
+		static final Api API = Api.load();
+
+		/** The factory creating the events; <code>null</code> if the API isn't available. */
+		private final Object factory;
+
+		/** The type as known to JFR; <code>null</code> if the API isn't available. */
+		private final Object jfrType;
+
+		private EventType(Object pFactory, Object pJfrType) {
+			this.factory = pFactory;
+			this.jfrType = pJfrType;
+		}
+
+		/**
+		 * Defines an event type with string fields.
+		 */
+		static EventType define(String name, String label, String description, String... fields) {
+			if (null == API) {
+				return new EventType(null, null);
+			}
+			try {
+				List<Object> annotations = new ArrayList<Object>();
+				annotations.add(API.annotation("Name", NAME_PREFIX + name));
+				annotations.add(API.annotation("Label", label));
+				annotations.add(API.annotation("Description", description));
+				annotations.add(API.annotation("Category", new String[] { "Jenkins", "Crowd" }));
+				List<Object> descriptors = new ArrayList<Object>();
+				for (String field : fields) {
+					descriptors.add(API.newValueDescriptor.newInstance(String.class, field,
+							Arrays.asList(API.annotation("Label", field))));
+				}
+				Object factory = API.create.invoke(annotations, descriptors);
+				return new EventType(factory, API.getEventType.invoke(factory));
+			} catch (Throwable ex) {
+				LOG.log(Level.FINE, "Failed to define flight recorder event " + name, ex);
+				return new EventType(null, null);
+			}
+		}
+
+		Object begin() {
+			if (null == this.factory) {
+				return null;
+			}
+			try {
+				if (!(Boolean) API.isEnabled.invoke(this.jfrType)) {
+					return null;
+				}
+				Object event = API.newEvent.invoke(this.factory);
+				API.begin.invoke(event);
+				return event;
+			} catch (Throwable ex) {
+				return null;
+			}
+		}
+
+		static void commit(Object event, String... values) {
+			try {
+				for (int i = 0; i < values.length; i++) {
+					API.set.invoke(event, i, (Object) values[i]);
+				}
+				API.commit.invoke(event);
+			} catch (Throwable ex) {
+				if (LOG.isLoggable(Level.FINEST)) {
+					LOG.log(Level.FINEST, "Failed to record flight recorder event", ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The parts of the JFR API that are used.
+	 */
+	private static final class Api {
+		Constructor<?> newAnnotationElement;
+
+		Constructor<?> newValueDescriptor;
+
+		MethodHandle create;
+
+		MethodHandle getEventType;
+
+		MethodHandle isEnabled;
+
+		MethodHandle newEvent;
+
+		MethodHandle begin;
+
+		MethodHandle set;
+
+		MethodHandle commit;
+
+		/**
+		 * Looks up the JFR API.
+		 * 
+		 * @return The API or <code>null</code> if it isn't available.
+		 */
+		static Api load() {
+			try {
+				MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+				Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+				Class<?> eventClass = Class.forName("jdk.jfr.Event");
+				Class<?> typeClass = Class.forName("jdk.jfr.EventType");
+				Api api = new Api();
+				api.newAnnotationElement = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class,
+						Object.class);
+				api.newValueDescriptor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class,
+						String.class, List.class);
+				api.create = lookup.findStatic(factoryClass, "create",
+						MethodType.methodType(factoryClass, List.class, List.class));
+				api.getEventType = lookup.findVirtual(factoryClass, "getEventType", MethodType.methodType(typeClass));
+				api.isEnabled = lookup.findVirtual(typeClass, "isEnabled", MethodType.methodType(boolean.class));
+				api.newEvent = lookup.findVirtual(factoryClass, "newEvent", MethodType.methodType(eventClass));
+				api.begin = lookup.findVirtual(eventClass, "begin", MethodType.methodType(void.class));
+				api.set = lookup.findVirtual(eventClass, "set",
+						MethodType.methodType(void.class, int.class, Object.class));
+				api.commit = lookup.findVirtual(eventClass, "commit", MethodType.methodType(void.class));
+				return api;
+			} catch (ReflectiveOperationException ex) {
+				LOG.fine("JDK Flight Recorder API not available; no Crowd events are recorded");
+				return null;
+			} catch (LinkageError ex) {
+				LOG.fine("JDK Flight Recorder API not available; no Crowd events are recorded");
+				return null;
+			}
+		}
+
+		Object annotation(String type, Object value) throws ReflectiveOperationException {
+			return this.newAnnotationElement.newInstance(Class.forName("jdk.jfr." + type), value);
+		}
+	}
+}
@@ -0,0 +1,365 @@
+/*
+ * @(#)CrowdGroupHierarchy.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2011 Thorsten Heit.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.atlassian.crowd.exception.CrowdException;
+import com.atlassian.crowd.exception.UnsupportedCrowdApiException;
+import com.atlassian.crowd.model.group.Group;
+import com.atlassian.crowd.model.group.Membership;
+import com.atlassian.crowd.search.query.entity.restriction.NullRestrictionImpl;
+import com.atlassian.crowd.service.client.CrowdClient;
+
+/**
+ * This class holds a local copy of the nested group hierarchy of the remote
+ * Crowd server, so that the nested groups of a user can be derived from the
+ * user's direct groups without asking Crowd for the nested memberships of
+ * every user.
+ * <p>
+ * The hierarchy is retrieved periodically with a fixed number of requests:
+ * the pages of all groups, and all memberships in one bulk request. Then the
+ * transitive closure is computed once, as one bit set of ancestors per group,
+ * with the groups numbered in name order. Expanding the direct groups of a
+ * user is then a union of bit sets. The hierarchy is only used while it is
+ * not older than {@link #MAX_STALENESS}; otherwise, and with Crowd servers
+ * that don't support the bulk request, the nested groups are retrieved from
+ * Crowd as before.
+ * <p>
+ * The hierarchy is used whenever nested groups are enabled; it can be
+ * switched off with the system property
+ * <code>de.theit.jenkins.crowd.CrowdGroupHierarchy.enabled=false</code>.
+ * 
+ * @since 18.10.2026
+ * @version $Id$
+ */
+public class CrowdGroupHierarchy {
+	/** Used for logging purposes. */
+	private static final Logger LOG = Logger.getLogger(CrowdGroupHierarchy.class.getName());
+
+	/** The prefix for the system properties to configure the hierarchy. */
+	private static final String PROPERTY_PREFIX = CrowdGroupHierarchy.class.getName() + '.';
+
+	/** Whether the hierarchy is used. */
+	static final boolean ENABLED = !"false".equals(System.getProperty(PROPERTY_PREFIX + "enabled"));
+
+	/** The number of milliseconds between two synchronisations. */
+	private static final long SYNC_INTERVAL = Long.getLong(PROPERTY_PREFIX + "syncInterval", TimeUnit.MINUTES.toMillis(10));
+
+	/**
+	 * The maximum age of the hierarchy in milliseconds. Older hierarchies are
+	 * not used.
+	 */
+	static final long MAX_STALENESS = Long.getLong(PROPERTY_PREFIX + "maxStaleness", TimeUnit.MINUTES.toMillis(30));
+
+	/** The number of groups retrieved per request. */
+	private static final int PAGE_SIZE = 1000;
+
+	/** The configuration to access the remote Crowd server. */
+	private final CrowdConfigurationService configuration;
+
+	/** The current hierarchy. <code>null</code> until the first synchronisation. */
+	private volatile Closure closure;
+
+	/** When the hierarchy was last synchronised successfully. */
+	volatile long lastSync;
+
+	/** Whether a synchronisation is currently running. */
+	private final AtomicBoolean syncing = new AtomicBoolean();
+
+	/** Whether the Crowd server doesn't support the bulk request. */
+	private volatile boolean unsupported;
+
+	/** The periodic synchronisation task. */
+	private ScheduledFuture<?> task;
+
+	/**
+	 * Creates a new hierarchy.
+	 * 
+	 * @param pConfiguration
+	 *            The configuration to access the services on the remote Crowd
+	 *            server. May not be <code>null</code>.
+	 */
+	public CrowdGroupHierarchy(CrowdConfigurationService pConfiguration) {
+		this.configuration = pConfiguration;
+	}
+
+	/**
+	 * Starts the periodic synchronisation.
+	 */
+	synchronized void start() {
+		if (null == this.task) {
+			this.task = CrowdExecutors.getScheduler().scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					syncInBackground();
+				}
+			}, 0L, SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stops the periodic synchronisation.
+	 */
+	synchronized void stop() {
+		if (null != this.task) {
+			this.task.cancel(false);
+			this.task = null;
+		}
+	}
+
+	/**
+	 * Returns whether the hierarchy may currently be used.
+	 * 
+	 * @return <code>true</code> if the hierarchy was synchronised within
+	 *         {@link #MAX_STALENESS}.
+	 */
+	public boolean isFresh() {
+		return null != this.closure && System.currentTimeMillis() - this.lastSync <= MAX_STALENESS;
+	}
+
+	/**
+	 * Returns the names of the given groups and all groups they are nested
+	 * in, without the inactive groups. Groups that are not yet known to the
+	 * hierarchy are returned unchanged.
+	 * 
+	 * @param groupNames
+	 *            The names of the direct groups. May not be <code>null</code>.
+	 * @return The names of the active groups or <code>null</code> if the
+	 *         hierarchy may not be used.
+	 */
+	public Set<String> expand(Collection<String> groupNames) {
+		Closure current = this.closure;
+		if (!isFresh() || null == current) {
+			return null;
+		}
+		Set<String> result = new HashSet<String>();
+		BitSet groups = new BitSet(current.names.length);
+		for (String name : groupNames) {
+			int index = Arrays.binarySearch(current.names, name);
+			if (index >= 0) {
+				groups.or(current.ancestors[index]);
+			} else {
+				result.add(name);
+			}
+		}
+		groups.andNot(current.inactive);
+		for (int i = groups.nextSetBit(0); i >= 0; i = groups.nextSetBit(i + 1)) {
+			result.add(current.names[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * Synchronises the hierarchy soon, e.g. because groups were changed.
+	 */
+	void requestSync() {
+		CrowdExecutors.getScheduler().schedule(new Runnable() {
+			@Override
+			public void run() {
+				syncInBackground();
+			}
+		}, 0L, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns the number of groups in the hierarchy.
+	 * 
+	 * @return The number of groups.
+	 */
+	public int getGroupCount() {
+		Closure current = this.closure;
+		return null != current ? current.names.length : 0;
+	}
+
+	/**
+	 * Returns the age of the hierarchy.
+	 * 
+	 * @return The number of milliseconds since the last synchronisation or
+	 *         <code>-1</code> if it was never synchronised.
+	 */
+	public long getStaleness() {
+		long sync = this.lastSync;
+		return sync > 0 ? System.currentTimeMillis() - sync : -1;
+	}
+
+	private void syncInBackground() {
+		if (this.unsupported || !this.syncing.compareAndSet(false, true)) {
+			return;
+		}
+		if (!CrowdExecutors.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sync();
+				} catch (RuntimeException ex) {
+					LOG.log(Level.WARNING, "Failed to synchronise the Crowd group hierarchy", ex);
+				} finally {
+					syncing.set(false);
+				}
+			}
+		})) {
+			syncing.set(false);
+		}
+	}
+
+	/**
+	 * Retrieves all groups and memberships and computes the transitive
+	 * closure.
+	 */
+	void sync() {
+		long start = System.currentTimeMillis();
+		CrowdClient client = this.configuration.crowdClient;
+		try {
+			Map<String, Boolean> groups = new TreeMap<String, Boolean>();
+			for (int index = 0;; index += PAGE_SIZE) {
+				List<Group> page = client.searchGroups(NullRestrictionImpl.INSTANCE, index, PAGE_SIZE);
+				if (null == page || page.isEmpty()) {
+					break;
+				}
+				for (Group group : page) {
+					groups.put(group.getName(), group.isActive());
+				}
+				if (page.size() < PAGE_SIZE) {
+					break;
+				}
+			}
+
+			String[] names = groups.keySet().toArray(new String[groups.size()]);
+			BitSet inactive = new BitSet(names.length);
+			int i = 0;
+			for (Boolean active : groups.values()) {
+				if (!active.booleanValue()) {
+					inactive.set(i);
+				}
+				i++;
+			}
+
+			this.closure = new Closure(names, inactive, fetchParents(client, names));
+			this.lastSync = start;
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("Synchronised the hierarchy of " + names.length + " Crowd groups in "
+						+ (System.currentTimeMillis() - start) + " ms");
+			}
+		} catch (UnsupportedCrowdApiException ex) {
+			if (LOG.isLoggable(Level.INFO)) {
+				LOG.info("The Crowd server can't return all memberships at once; nested groups are retrieved per user");
+			}
+			this.unsupported = true;
+			stop();
+		} catch (CrowdException ex) {
+			LOG.log(Level.WARNING, "Failed to synchronise the Crowd group hierarchy", ex);
+		}
+	}
+
+	/**
+	 * Retrieves the direct parent groups of all groups with one bulk request.
+	 * Groups that are not in <code>names</code>, e.g. created in the
+	 * meantime, are skipped.
+	 * 
+	 * @return Per group the indexes of its parent groups in
+	 *         <code>names</code>.
+	 */
+	private static int[][] fetchParents(CrowdClient client, String[] names) throws CrowdException {
+		BitSet[] parents = new BitSet[names.length];
+		for (Membership membership : client.getMemberships()) {
+			int parent = Arrays.binarySearch(names, membership.getGroupName());
+			if (parent < 0) {
+				continue;
+			}
+			for (String child : membership.getChildGroupNames()) {
+				int childIndex = Arrays.binarySearch(names, child);
+				if (childIndex >= 0) {
+					if (null == parents[childIndex]) {
+						parents[childIndex] = new BitSet();
+					}
+					parents[childIndex].set(parent);
+				}
+			}
+		}
+		int[][] result = new int[names.length][];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = null != parents[i] ? parents[i].stream().toArray() : new int[0];
+		}
+		return result;
+	}
+
+	/**
+	 * The transitive closure of the group hierarchy.
+	 */
+	private static final class Closure {
+		/** The names of all groups, sorted. */
+		final String[] names;
+
+		/** The indexes of the inactive groups. */
+		final BitSet inactive;
+
+		/** Per group the group itself and all groups it is nested in. */
+		final BitSet[] ancestors;
+
+		Closure(String[] pNames, BitSet pInactive, int[][] parents) {
+			this.names = pNames;
+			this.inactive = pInactive;
+			this.ancestors = new BitSet[pNames.length];
+			Deque<Integer> queue = new ArrayDeque<Integer>();
+			for (int i = 0; i < pNames.length; i++) {
+				// breadth-first search upwards; cycles end at visited groups
+				BitSet visited = new BitSet();
+				visited.set(i);
+				queue.add(i);
+				while (!queue.isEmpty()) {
+					int group = queue.poll();
+					if (null != this.ancestors[group] && group != i) {
+						// already computed => take it over as a whole
+						visited.or(this.ancestors[group]);
+						continue;
+					}
+					for (int parent : parents[group]) {
+						if (!visited.get(parent)) {
+							visited.set(parent);
+							queue.add(parent);
+						}
+					}
+				}
+				this.ancestors[i] = visited;
+			}
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * @(#)CrowdIdentifiers.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2011 Thorsten Heit.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import java.util.Locale;
+
+/**
+ * This class converts user names into the canonical form used as key for all
+ * caches. Crowd treats user names case-insensitively, so <code>Alice</code>,
+ * <code>alice</code> and <code>ALICE</code> must share one cache entry.
+ * <p>
+ * Like Crowd itself, the names are converted to lower case using the locale
+ * given by the system property <code>crowd.identifier.language</code>, or
+ * English if it isn't set.
+ * 
+ * @since 18.10.2026
+ * @version $Id$
+ */
+public final class CrowdIdentifiers {
+	/** The locale used to convert identifiers to lower case. */
+	private static final Locale LOCALE = getLocale();
+
+	/**
+	 * Hide the constructor of this utility class.
+	 */
+	private CrowdIdentifiers() {
+	}
+
+	/**
+	 * Returns the canonical form of a user name.
+	 * 
+	 * @param identifier
+	 *            The user name. May be <code>null</code>.
+	 * @return The user name in lower case or <code>null</code> if
+	 *         <code>identifier</code> is <code>null</code>.
+	 */
+	public static String canonical(String identifier) {
+		return null != identifier ? identifier.toLowerCase(LOCALE) : null;
+	}
+
+	private static Locale getLocale() {
+		String language = System.getProperty("crowd.identifier.language");
+		if (null == language || language.trim().length() == 0) {
+			return Locale.ENGLISH;
+		}
+		return new Locale(language.trim());
+	}
+}
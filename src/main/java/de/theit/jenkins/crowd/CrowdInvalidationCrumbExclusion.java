@@ -0,0 +1,68 @@
+/*
+ * @(#)CrowdInvalidationCrumbExclusion.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2011 Thorsten Heit.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import hudson.Extension;
+import hudson.security.csrf.CrumbExclusion;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * This class lets invalidation messages that carry the shared secret pass the
+ * CSRF protection, because Crowd or a script sending them has no crumb. Only
+ * requests with the correct secret are let through; all others still need a
+ * crumb.
+ * 
+ * @since 18.10.2026
+ * @version $Id$
+ */
+@Extension
+public class CrowdInvalidationCrumbExclusion extends CrumbExclusion {
+	/** The path of the invalidation endpoint. */
+	private static final String PATH = "/securityRealm/invalidate";
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * @see hudson.security.csrf.CrumbExclusion#process(javax.servlet.http.HttpServletRequest,
+	 *      javax.servlet.http.HttpServletResponse, javax.servlet.FilterChain)
+	 */
+	@Override
+	public boolean process(HttpServletRequest req, HttpServletResponse resp, FilterChain chain)
+			throws IOException, ServletException {
+		if (PATH.equals(req.getPathInfo())
+				&& CrowdSecurityRealm.hasInvalidationSecret(req)) {
+			chain.doFilter(req, resp);
+			return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,380 @@
+/*
+ * @(#)CrowdLoginThrottle.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2011 Thorsten Heit.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import static de.theit.jenkins.crowd.ErrorMessages.loginThrottled;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.acegisecurity.LockedException;
+import org.acegisecurity.ui.WebAuthenticationDetails;
+
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * This class counts failed login attempts per user name and per client
+ * address. When too many attempts failed within the sliding window, further
+ * attempts are rejected locally - without asking the remote Crowd server -
+ * for an exponentially growing back-off time.
+ * <p>
+ * Crowd reports a wrong password and wrong application credentials with the
+ * same exception. Such failures are only counted against the client address,
+ * so that a misconfigured application can't lock out its users.
+ * <p>
+ * The counters are updated lock-free: each key has a ring of sub-window
+ * buckets, each bucket packs its sub-window number and its count into one
+ * <code>long</code> that is updated with compare-and-set. At most
+ * {@link #MAX_TRACKED_KEYS} keys are tracked; the least recently used ones
+ * are dropped first.
+ * 
+ * @since 18.10.2026
+ * @version $Id$
+ */
+public class CrowdLoginThrottle {
+	/** Used for logging purposes. */
+	private static final Logger LOG = Logger.getLogger(CrowdLoginThrottle.class.getName());
+
+	/** The prefix for the system properties to configure the throttle. */
+	private static final String PROPERTY_PREFIX = CrowdLoginThrottle.class.getName() + '.';
+
+	/**
+	 * The number of failed attempts per user name within the window after
+	 * which further attempts are rejected. <code>0</code> disables the
+	 * throttling by user name.
+	 */
+	private static final int MAX_FAILURES_PER_USER = Integer.getInteger(PROPERTY_PREFIX + "maxFailuresPerUser", 10);
+
+	/**
+	 * The number of failed attempts per client address within the window after
+	 * which further attempts are rejected. <code>0</code> disables the
+	 * throttling by client address. It's disabled by default: behind a
+	 * reverse proxy all users share the proxy's address unless
+	 * {@link #CLIENT_ADDRESS_HEADER} is set.
+	 */
+	private static final int MAX_FAILURES_PER_ADDRESS = Integer.getInteger(PROPERTY_PREFIX + "maxFailuresPerAddress", 0);
+
+	/**
+	 * The name of the request header the trusted reverse proxy puts the client
+	 * address into, e.g. <code>X-Forwarded-For</code>. The last address in the
+	 * header is used, i.e. the one added by the proxy in front of Jenkins;
+	 * addresses before it are supplied by the client and can be forged. Only
+	 * set this when Jenkins can't be reached except through the proxy.
+	 */
+	private static final String CLIENT_ADDRESS_HEADER = System.getProperty(PROPERTY_PREFIX + "clientAddressHeader");
+
+	/** The length of the sliding window in milliseconds. */
+	private static final long WINDOW = Long.getLong(PROPERTY_PREFIX + "window", TimeUnit.MINUTES.toMillis(5));
+
+	/** The back-off time after the threshold was crossed the first time. */
+	private static final long BASE_BACKOFF = Long.getLong(PROPERTY_PREFIX + "baseBackoff", 1000L);
+
+	/** The maximum back-off time. */
+	private static final long MAX_BACKOFF = Long.getLong(PROPERTY_PREFIX + "maxBackoff", TimeUnit.MINUTES.toMillis(15));
+
+	/** The number of sub-window buckets the window is divided into. */
+	private static final int BUCKETS = 10;
+
+	/** The number of bits of a bucket holding the count. */
+	private static final int COUNT_BITS = 24;
+
+	/** The mask to extract the count of a bucket. */
+	private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+	/** The maximum number of tracked user names and client addresses. */
+	private static final int MAX_TRACKED_KEYS = Integer.getInteger(PROPERTY_PREFIX + "maxTrackedKeys", 10000);
+
+	/** The length of a sub-window in milliseconds. */
+	private static final long BUCKET_LENGTH = Math.max(1L, WINDOW / BUCKETS);
+
+	/**
+	 * The failure counters by key. A counter is dropped when it wasn't used
+	 * for longer than the window and the maximum back-off, i.e. when it
+	 * neither counts failures nor blocks anymore.
+	 */
+	private final ConcurrentMap<String, FailureCounter> counters = CacheBuilder.newBuilder()
+			.maximumSize(MAX_TRACKED_KEYS)
+			.expireAfterAccess(WINDOW + MAX_BACKOFF, TimeUnit.MILLISECONDS)
+			.<String, FailureCounter>build().asMap();
+
+	/** The number of rejected login attempts. */
+	private final LongAdder shedAttempts = new LongAdder();
+
+	/** The number of failed login attempts. */
+	private final LongAdder failedAttempts = new LongAdder();
+
+	/**
+	 * Ensures that a login attempt may be passed to the Crowd server.
+	 * 
+	 * @param username
+	 *            The user name. May not be <code>null</code>.
+	 * @param clientAddress
+	 *            The address of the client. May be <code>null</code> if
+	 *            unknown.
+	 * @throws LockedException
+	 *             If there were too many failed login attempts for the user or
+	 *             from the client address.
+	 */
+	public void checkAllowed(String username, String clientAddress) throws LockedException {
+		long now = System.currentTimeMillis();
+		if (isBlocked(userKey(username), now) || (null != clientAddress && isBlocked(addressKey(clientAddress), now))) {
+			this.shedAttempts.increment();
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("Rejecting login attempt of user '" + username + "' from " + clientAddress);
+			}
+			throw new LockedException(loginThrottled(username));
+		}
+	}
+
+	/**
+	 * Records a failed login attempt.
+	 * 
+	 * @param username
+	 *            The user name. May not be <code>null</code>.
+	 * @param clientAddress
+	 *            The address of the client. May be <code>null</code> if
+	 *            unknown.
+	 */
+	public void recordFailure(String username, String clientAddress) {
+		this.failedAttempts.increment();
+		long now = System.currentTimeMillis();
+		if (MAX_FAILURES_PER_USER > 0) {
+			counter(userKey(username)).recordFailure(now, MAX_FAILURES_PER_USER);
+		}
+		recordAddressFailure(clientAddress, now);
+	}
+
+	/**
+	 * Records a failed login attempt that is only counted against the client
+	 * address, e.g. because it may have been caused by the configuration
+	 * rather than the user.
+	 * 
+	 * @param clientAddress
+	 *            The address of the client. May be <code>null</code> if
+	 *            unknown.
+	 */
+	public void recordAddressFailure(String clientAddress) {
+		this.failedAttempts.increment();
+		recordAddressFailure(clientAddress, System.currentTimeMillis());
+	}
+
+	private void recordAddressFailure(String clientAddress, long now) {
+		if (MAX_FAILURES_PER_ADDRESS > 0 && null != clientAddress) {
+			counter(addressKey(clientAddress)).recordFailure(now, MAX_FAILURES_PER_ADDRESS);
+		}
+	}
+
+	/**
+	 * Records a successful login. Resets the failure counter of the user.
+	 * 
+	 * @param username
+	 *            The user name. May not be <code>null</code>.
+	 */
+	public void recordSuccess(String username) {
+		this.counters.remove(userKey(username));
+	}
+
+	/**
+	 * Returns the number of login attempts that were rejected locally.
+	 * 
+	 * @return The number of rejected login attempts.
+	 */
+	public long getShedAttempts() {
+		return this.shedAttempts.sum();
+	}
+
+	/**
+	 * Returns the number of failed login attempts.
+	 * 
+	 * @return The number of failed login attempts.
+	 */
+	public long getFailedAttempts() {
+		return this.failedAttempts.sum();
+	}
+
+	/**
+	 * Returns the number of user names and client addresses that are currently
+	 * blocked.
+	 * 
+	 * @return The number of blocked keys.
+	 */
+	public int getBlockedCount() {
+		long now = System.currentTimeMillis();
+		int count = 0;
+		for (FailureCounter counter : this.counters.values()) {
+			if (counter.isBlocked(now)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Determines the address of the client that sent a login request. If a
+	 * {@link #CLIENT_ADDRESS_HEADER} is configured, the address forwarded by
+	 * the reverse proxy is used.
+	 * 
+	 * @param details
+	 *            The details of the authentication request. May be
+	 *            <code>null</code>.
+	 * @param request
+	 *            The login request. May be <code>null</code> if unknown.
+	 * @return The client address or <code>null</code> if it is unknown.
+	 */
+	public static String getClientAddress(Object details, HttpServletRequest request) {
+		if (null != CLIENT_ADDRESS_HEADER && null != request) {
+			String forwarded = getForwardedAddress(request.getHeader(CLIENT_ADDRESS_HEADER));
+			if (null != forwarded) {
+				return forwarded;
+			}
+		}
+		if (details instanceof WebAuthenticationDetails) {
+			return ((WebAuthenticationDetails) details).getRemoteAddress();
+		}
+		return null != request ? request.getRemoteAddr() : null;
+	}
+
+	/**
+	 * Extracts the address added by the closest proxy from a forwarding
+	 * header.
+	 * 
+	 * @param header
+	 *            The value of the header, a comma separated list of addresses.
+	 *            May be <code>null</code>.
+	 * @return The last address of the list or <code>null</code> if there's
+	 *         none.
+	 */
+	static String getForwardedAddress(String header) {
+		if (null == header) {
+			return null;
+		}
+		int start = header.lastIndexOf(',') + 1;
+		String address = header.substring(start).trim();
+		return address.isEmpty() ? null : address;
+	}
+
+	private boolean isBlocked(String key, long now) {
+		FailureCounter counter = this.counters.get(key);
+		return null != counter && counter.isBlocked(now);
+	}
+
+	private FailureCounter counter(String key) {
+		FailureCounter counter = this.counters.get(key);
+		if (null == counter) {
+			FailureCounter newCounter = new FailureCounter();
+			counter = this.counters.putIfAbsent(key, newCounter);
+			if (null == counter) {
+				counter = newCounter;
+			}
+		}
+		return counter;
+	}
+
+	private static String userKey(String username) {
+		return "u:" + CrowdIdentifiers.canonical(username);
+	}
+
+	private static String addressKey(String clientAddress) {
+		return "a:" + clientAddress;
+	}
+
+	/**
+	 * The sliding-window failure counter of a single key.
+	 */
+	private static final class FailureCounter {
+		/**
+		 * The sub-window buckets; each holds the sub-window number in the
+		 * upper and the count in the lower {@link CrowdLoginThrottle#COUNT_BITS}
+		 * bits.
+		 */
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+		/** Until when further attempts are rejected. */
+		private final AtomicLong blockedUntil = new AtomicLong();
+
+		/**
+		 * Records a failure and blocks the key when the threshold is crossed.
+		 * 
+		 * @param now
+		 *            The current time in milliseconds.
+		 * @param threshold
+		 *            The maximum number of failures within the window.
+		 */
+		void recordFailure(long now, int threshold) {
+			long window = now / BUCKET_LENGTH;
+			int index = (int) (window % BUCKETS);
+			while (true) {
+				long current = this.buckets.get(index);
+				long updated = (current >>> COUNT_BITS) == window
+						? current + ((current & COUNT_MASK) < COUNT_MASK ? 1 : 0)
+						: (window << COUNT_BITS) | 1;
+				if (this.buckets.compareAndSet(index, current, updated)) {
+					break;
+				}
+			}
+
+			int excess = count(now) - threshold;
+			if (excess > 0) {
+				long backoff = Math.min(MAX_BACKOFF, BASE_BACKOFF << Math.min(excess - 1, 30));
+				long until = now + backoff;
+				long current = this.blockedUntil.get();
+				while (current < until && !this.blockedUntil.compareAndSet(current, until)) {
+					current = this.blockedUntil.get();
+				}
+			}
+		}
+
+		/**
+		 * Returns the number of failures within the sliding window.
+		 * 
+		 * @param now
+		 *            The current time in milliseconds.
+		 * @return The number of failures.
+		 */
+		int count(long now) {
+			long window = now / BUCKET_LENGTH;
+			int count = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				long bucket = this.buckets.get(i);
+				if (window - (bucket >>> COUNT_BITS) < BUCKETS) {
+					count += (int) (bucket & COUNT_MASK);
+				}
+			}
+			return count;
+		}
+
+		boolean isBlocked(long now) {
+			return this.blockedUntil.get() > now;
+		}
+	}
+}
@@ -0,0 +1,317 @@
+/*
+ * @(#)CrowdManagementLink.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2011 Thorsten Heit.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import hudson.security.SecurityRealm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.ServletException;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+/**
+ * This class provides the administration page of the Crowd security realm
+ * under "Manage Jenkins". It shows diagnostic information about the
+ * communication with the remote Crowd server and the caches, and lets
+ * administrators inspect, evict and warm the cached data of single users and
+ * groups.
+ * 
+ * @since 18.10.2026
+ * @version $Id$
+ */
+@Extension
+public class CrowdManagementLink extends ManagementLink {
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * @see hudson.model.Action#getIconFileName()
+	 */
+	@Override
+	public String getIconFileName() {
+		if (null == getConfiguration()) {
+			// the Crowd security realm isn't active
+			return null;
+		}
+		return "secure.png";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * @see hudson.model.Action#getUrlName()
+	 */
+	@Override
+	public String getUrlName() {
+		return "crowd";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * @see hudson.model.Action#getDisplayName()
+	 */
+	@Override
+	public String getDisplayName() {
+		return "Crowd 2";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * @see hudson.model.ManagementLink#getDescription()
+	 */
+	@Override
+	public String getDescription() {
+		return "Diagnostics of the connection to the Crowd server.";
+	}
+
+	/**
+	 * Returns the configuration of the active Crowd security realm.
+	 * 
+	 * @return The configuration or <code>null</code> if the Crowd security
+	 *         realm isn't active.
+	 */
+	public CrowdConfigurationService getConfiguration() {
+		Jenkins jenkins = Jenkins.getInstance();
+		SecurityRealm realm = null != jenkins ? jenkins.getSecurityRealm() : null;
+		if (realm instanceof CrowdSecurityRealm) {
+			return ((CrowdSecurityRealm) realm).getConfiguration();
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the login throttle of the active Crowd security realm.
+	 * 
+	 * @return The login throttle or <code>null</code> if the Crowd security
+	 *         realm isn't active.
+	 */
+	public CrowdLoginThrottle getLoginThrottle() {
+		CrowdConfigurationService configuration = getConfiguration();
+		return null != configuration ? configuration.loginThrottle : null;
+	}
+
+	/**
+	 * Returns the number of background tasks that were dropped because the
+	 * Crowd executor was saturated.
+	 * 
+	 * @return The number of dropped tasks.
+	 */
+	public long getDroppedTasks() {
+		return CrowdExecutors.getDroppedTasks();
+	}
+
+	/**
+	 * Returns the SSO token cache of the active Crowd security realm.
+	 * 
+	 * @return The token cache or <code>null</code> if the Crowd security realm
+	 *         isn't active.
+	 */
+	public CrowdTokenStore getTokenStore() {
+		CrowdConfigurationService configuration = getConfiguration();
+		return null != configuration ? configuration.tokenStore : null;
+	}
+
+	/**
+	 * Returns the off-heap second level of the caches.
+	 * 
+	 * @return The off-heap store or <code>null</code> if the Crowd security
+	 *         realm isn't active or the store is disabled.
+	 */
+	public CrowdOffHeapStore getOffHeapStore() {
+		CrowdConfigurationService configuration = getConfiguration();
+		return null != configuration ? configuration.offHeapStore : null;
+	}
+
+	/**
+	 * Returns the controller adapting the cache expiry to the health of
+	 * Crowd.
+	 * 
+	 * @return The controller or <code>null</code> if the Crowd security realm
+	 *         isn't active.
+	 */
+	public CrowdTtlController getTtlController() {
+		CrowdConfigurationService configuration = getConfiguration();
+		return null != configuration ? configuration.ttlController : null;
+	}
+
+	/**
+	 * Returns the client distributing the calls over the Crowd nodes.
+	 * 
+	 * @return The cluster client or <code>null</code> if the Crowd security
+	 *         realm isn't active or only one Crowd URL is configured.
+	 */
+	public CrowdClusterClient getCluster() {
+		CrowdConfigurationService configuration = getConfiguration();
+		return null != configuration ? configuration.cluster : null;
+	}
+
+	/**
+	 * Returns the local copy of the nested group hierarchy.
+	 * 
+	 * @return The hierarchy or <code>null</code> if the Crowd security realm
+	 *         isn't active, nested groups aren't used or the copy is disabled.
+	 */
+	public CrowdGroupHierarchy getGroupHierarchy() {
+		CrowdConfigurationService configuration = getConfiguration();
+		return null != configuration ? configuration.groupHierarchy : null;
+	}
+
+	/**
+	 * Returns the local mirror of the Crowd users.
+	 * 
+	 * @return The mirror or <code>null</code> if the Crowd security realm isn't
+	 *         active or the mirror is disabled.
+	 */
+	public CrowdUserDirectory getUserDirectory() {
+		CrowdConfigurationService configuration = getConfiguration();
+		return null != configuration ? configuration.userDirectory : null;
+	}
+
+	/**
+	 * Returns the most recent requests that spent much time in Crowd calls.
+	 * 
+	 * @return The traces of the slow requests, newest first. Never
+	 *         <code>null</code>.
+	 */
+	public List<CrowdCallTracer.RequestTrace> getSlowTraces() {
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+		return CrowdCallTracer.getSlowTraces();
+	}
+
+	/**
+	 * Returns the total number of slow requests since startup.
+	 * 
+	 * @return The number of slow requests.
+	 */
+	public long getSlowCount() {
+		return CrowdCallTracer.getSlowCount();
+	}
+
+	/**
+	 * Returns the threshold for slow requests.
+	 * 
+	 * @return The threshold in milliseconds.
+	 */
+	public long getSlowThreshold() {
+		return CrowdCallTracer.getSlowThreshold();
+	}
+
+	/**
+	 * Shows what is cached for a single user.
+	 * 
+	 * @param req
+	 *            The current request.
+	 * @param rsp
+	 *            The response.
+	 * @param username
+	 *            The name of the user.
+	 * @throws IOException
+	 *             If the page couldn't be rendered.
+	 * @throws ServletException
+	 *             If the page couldn't be rendered.
+	 */
+	public void doLookup(StaplerRequest req, StaplerResponse rsp, @QueryParameter String username)
+			throws IOException, ServletException {
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+		CrowdConfigurationService configuration = getConfiguration();
+		if (null == configuration || null == username || username.trim().length() == 0) {
+			rsp.sendRedirect2(".");
+			return;
+		}
+		req.setAttribute("state", configuration.inspectUser(username.trim()));
+		req.getView(this, "lookup.jelly").forward(req, rsp);
+	}
+
+	/**
+	 * Removes everything cached for a user.
+	 * 
+	 * @param username
+	 *            The name of the user.
+	 * @return Redirects back to the administration page.
+	 */
+	@RequirePOST
+	public HttpResponse doEvictUser(@QueryParameter String username) {
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+		CrowdConfigurationService configuration = getConfiguration();
+		if (null != configuration && null != username && username.trim().length() > 0) {
+			configuration.evictUser(username.trim());
+		}
+		return HttpResponses.redirectToDot();
+	}
+
+	/**
+	 * Removes everything cached for a group.
+	 * 
+	 * @param group
+	 *            The name of the group.
+	 * @return Redirects back to the administration page.
+	 */
+	@RequirePOST
+	public HttpResponse doEvictGroup(@QueryParameter String group) {
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+		CrowdConfigurationService configuration = getConfiguration();
+		if (null != configuration && null != group && group.trim().length() > 0) {
+			configuration.evictGroup(group.trim());
+		}
+		return HttpResponses.redirectToDot();
+	}
+
+	/**
+	 * Loads the given users into the caches in the background.
+	 * 
+	 * @param usernames
+	 *            The names of the users, separated by whitespace or commas.
+	 * @return Redirects back to the administration page.
+	 */
+	@RequirePOST
+	public HttpResponse doWarm(@QueryParameter String usernames) {
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+		CrowdConfigurationService configuration = getConfiguration();
+		if (null != configuration && null != usernames) {
+			List<String> names = new ArrayList<String>();
+			for (String name : usernames.split("[\\s,]+")) {
+				if (name.length() > 0) {
+					names.add(name);
+				}
+			}
+			configuration.warmUsers(names);
+		}
+		return HttpResponses.redirectToDot();
+	}
+}
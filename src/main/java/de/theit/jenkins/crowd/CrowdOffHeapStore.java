@@ -0,0 +1,703 @@
+/*
+ * @(#)CrowdOffHeapStore.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2011 Thorsten Heit.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * This class is the second level behind the on-heap caches of the Crowd
+ * security realm. It keeps serialized entries in direct byte buffers outside
+ * of the Java heap, so that the caches can hold the whole user population
+ * without enlarging the heap and the garbage collection pauses.
+ * <p>
+ * The memory is divided into slabs of one megabyte, which are allocated when
+ * they are first needed. The slabs are split into up to
+ * {@link #MAX_PARTITIONS} partitions with separate locks, selected by the
+ * upper bits of the 64-bit hash of a key, so that threads working with
+ * different keys rarely wait for each other. Within a partition the slabs are
+ * used as a ring: entries are appended to the current slab, and when it is
+ * full the oldest slab is emptied and reused. An on-heap open-addressing hash
+ * table of primitive arrays maps the hash of each key to the position of its
+ * latest entry; the key is stored with the entry and compared on reads. Each cache uses its own
+ * {@link Region}; clearing a region makes its entries unreachable, their
+ * memory is reclaimed when their slab is reused.
+ * <p>
+ * The store is disabled unless a memory budget is set with the system
+ * property <code>de.theit.jenkins.crowd.CrowdOffHeapStore.maxMegabytes</code>.
+ * Direct memory is limited by the JVM option
+ * <code>-XX:MaxDirectMemorySize</code>, which has to leave room for the
+ * budget.
+ * 
+ * @since 18.10.2026
+ * @version $Id$
+ */
+public class CrowdOffHeapStore {
+	/** Used for logging purposes. */
+	private static final Logger LOG = Logger.getLogger(CrowdOffHeapStore.class.getName());
+
+	/** The memory budget in megabytes; <code>0</code> disables the store. */
+	static final int MAX_MEGABYTES = Integer.getInteger(CrowdOffHeapStore.class.getName() + ".maxMegabytes", 0);
+
+	/** Whether the store is enabled. */
+	static final boolean ENABLED = MAX_MEGABYTES > 0;
+
+	/** The size of a slab in bytes. */
+	private static final int SLAB_SIZE = 1 << 20;
+
+	/**
+	 * The size of the header of an entry: length, hash, region, generation
+	 * and creation time of the entry, and length of the key.
+	 */
+	private static final int HEADER_SIZE = 32;
+
+	/** The initial number of slots of each index; must be a power of two. */
+	private static final int INITIAL_SLOTS = 1024;
+
+	/**
+	 * The maximum number of partitions with separate locks; must be a power
+	 * of two.
+	 */
+	private static final int MAX_PARTITIONS = 16;
+
+	/** Shares equal strings, e.g. group names, between decoded entries. */
+	private static final Interner<String> STRINGS = Interners.newWeakInterner();
+
+	/** Encodes cached flags. */
+	public static final Codec<Boolean> BOOLEAN = new Codec<Boolean>() {
+		@Override
+		public void write(DataOutput out, Boolean value) throws IOException {
+			out.writeBoolean(value);
+		}
+
+		@Override
+		public Boolean read(DataInput in) throws IOException {
+			return in.readBoolean();
+		}
+	};
+
+	/** Encodes cached sets of names, e.g. the groups of a user. */
+	public static final Codec<Set<String>> STRING_SET = new Codec<Set<String>>() {
+		@Override
+		public void write(DataOutput out, Set<String> value) throws IOException {
+			out.writeInt(value.size());
+			for (String name : value) {
+				out.writeUTF(name);
+			}
+		}
+
+		@Override
+		public Set<String> read(DataInput in) throws IOException {
+			int size = in.readInt();
+			Set<String> value = new HashSet<String>(Math.max(4, size * 4 / 3 + 1));
+			for (int i = 0; i < size; i++) {
+				value.add(STRINGS.intern(in.readUTF()));
+			}
+			return value;
+		}
+	};
+
+	/** The partitions, selected by the upper bits of the hash of a key. */
+	private final Partition[] partitions;
+
+	/** The number of regions created so far. */
+	private final AtomicInteger regionCount = new AtomicInteger();
+
+	/** The number of reads that found an entry. */
+	private final AtomicLong hits = new AtomicLong();
+
+	/** The number of reads that didn't find an entry. */
+	private final AtomicLong misses = new AtomicLong();
+
+	/** The number of entries that were dropped to make room for new ones. */
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Creates a new store.
+	 * 
+	 * @param megabytes
+	 *            The memory budget in megabytes; at least 1.
+	 */
+	public CrowdOffHeapStore(int megabytes) {
+		int slabs = Math.max(1, megabytes);
+		// every partition needs at least one slab
+		this.partitions = new Partition[Integer.highestOneBit(Math.min(MAX_PARTITIONS, slabs))];
+		for (int i = 0; i < this.partitions.length; i++) {
+			this.partitions[i] = new Partition(slabs / this.partitions.length);
+		}
+	}
+
+	/**
+	 * Creates a region for the entries of one cache.
+	 * 
+	 * @param <V>
+	 *            The type of the values.
+	 * @param codec
+	 *            Encodes the values. May not be <code>null</code>.
+	 * @return The region. Never <code>null</code>.
+	 */
+	public <V> Region<V> region(Codec<V> codec) {
+		return new Region<V>(this.regionCount.incrementAndGet(), codec);
+	}
+
+	/**
+	 * Releases the memory. Later reads find nothing and writes are ignored.
+	 */
+	public void close() {
+		for (Partition partition : this.partitions) {
+			partition.close();
+		}
+	}
+
+	/**
+	 * Returns the number of entries.
+	 * 
+	 * @return The number of reachable entries, including the ones of cleared
+	 *         regions that weren't removed yet.
+	 */
+	public int getSize() {
+		int size = 0;
+		for (Partition partition : this.partitions) {
+			size += partition.getSize();
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the memory budget.
+	 * 
+	 * @return The number of bytes the store may use.
+	 */
+	public long getCapacity() {
+		long capacity = 0L;
+		for (Partition partition : this.partitions) {
+			capacity += (long) partition.limits.length * SLAB_SIZE;
+		}
+		return capacity;
+	}
+
+	/**
+	 * Returns the memory that is currently allocated.
+	 * 
+	 * @return The number of bytes of the allocated slabs.
+	 */
+	public long getAllocatedBytes() {
+		long bytes = 0L;
+		for (Partition partition : this.partitions) {
+			bytes += partition.getAllocatedBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns the number of partitions with separate locks.
+	 * 
+	 * @return The number of partitions.
+	 */
+	int getPartitionCount() {
+		return this.partitions.length;
+	}
+
+	/**
+	 * Returns the number of reads that found an entry.
+	 * 
+	 * @return The number of hits.
+	 */
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	/**
+	 * Returns the number of reads that didn't find an entry.
+	 * 
+	 * @return The number of misses.
+	 */
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	/**
+	 * Returns the number of entries that were dropped when their slab was
+	 * reused.
+	 * 
+	 * @return The number of evictions.
+	 */
+	public long getEvictionCount() {
+		return this.evictions.get();
+	}
+
+	private Partition partitionFor(long hash) {
+		return this.partitions[(int) (hash >>> 58) & (this.partitions.length - 1)];
+	}
+
+	/**
+	 * Returns the entry for a key.
+	 * 
+	 * @return The encoded value or <code>null</code> if there is no entry.
+	 */
+	private Stored<byte[]> get(long hash, int region, int generation, byte[] key) {
+		Stored<byte[]> entry = partitionFor(hash).get(hash, region, generation, key);
+		(null != entry ? this.hits : this.misses).incrementAndGet();
+		return entry;
+	}
+
+	/**
+	 * A part of the store with its own slabs, index and lock. The slabs of a
+	 * partition are used as a ring.
+	 */
+	private final class Partition {
+		/** The slabs; <code>null</code> until they are used. */
+		private ByteBuffer[] slabs;
+
+		/** The number of bytes used in each slab. */
+		final int[] limits;
+
+		/** The slab entries are appended to. */
+		private int current;
+
+		/** The position in the current slab. */
+		private int position;
+
+		/** The hashes of the keys; 0 marks an empty slot. */
+		private long[] hashes;
+
+		/** The positions of the entries: slab in the upper, offset in the lower half. */
+		private long[] addresses;
+
+		/** The number of used slots of the index. */
+		private int size;
+
+		Partition(int slabCount) {
+			this.slabs = new ByteBuffer[slabCount];
+			this.limits = new int[slabCount];
+			allocateIndex(INITIAL_SLOTS);
+		}
+
+		synchronized void close() {
+			// the direct buffers are freed when they are garbage collected
+			this.slabs = null;
+			allocateIndex(INITIAL_SLOTS);
+		}
+
+		synchronized int getSize() {
+			return this.size;
+		}
+
+		synchronized long getAllocatedBytes() {
+			if (null == this.slabs) {
+				return 0L;
+			}
+			long bytes = 0L;
+			for (ByteBuffer slab : this.slabs) {
+				if (null != slab) {
+					bytes += slab.capacity();
+				}
+			}
+			return bytes;
+		}
+
+		/**
+		 * Appends an entry and makes it the one found for its key.
+		 */
+		synchronized void put(long hash, int region, int generation, byte[] key, byte[] value, long created) {
+			int length = HEADER_SIZE + key.length + value.length;
+			if (null == this.slabs || length > SLAB_SIZE) {
+				return;
+			}
+			if (this.position + length > SLAB_SIZE) {
+				this.limits[this.current] = this.position;
+				this.current = (this.current + 1) % this.slabs.length;
+				evict(this.current);
+				this.position = 0;
+			}
+			ByteBuffer slab = this.slabs[this.current];
+			if (null == slab) {
+				slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+				this.slabs[this.current] = slab;
+			}
+			int offset = this.position;
+			slab.position(offset);
+			slab.putInt(length).putLong(hash).putInt(region).putInt(generation).putLong(created).putInt(key.length);
+			slab.put(key).put(value);
+			this.position += length;
+			this.limits[this.current] = this.position;
+			index(hash, ((long) this.current << 32) | offset);
+		}
+
+		/**
+		 * Returns the entry for a key.
+		 * 
+		 * @return The encoded value or <code>null</code> if there is no
+		 *         entry.
+		 */
+		synchronized Stored<byte[]> get(long hash, int region, int generation, byte[] key) {
+			int i = find(hash);
+			if (i < 0) {
+				return null;
+			}
+			ByteBuffer slab = this.slabs[(int) (this.addresses[i] >>> 32)];
+			int offset = (int) this.addresses[i];
+			int length = slab.getInt(offset);
+			if (slab.getInt(offset + 12) != region || slab.getInt(offset + 16) != generation
+					|| slab.getInt(offset + 28) != key.length) {
+				if (slab.getInt(offset + 12) == region) {
+					// an entry of a cleared region
+					removeAt(i);
+				}
+				return null;
+			}
+			byte[] storedKey = new byte[key.length];
+			slab.position(offset + HEADER_SIZE);
+			slab.get(storedKey);
+			if (!Arrays.equals(key, storedKey)) {
+				return null;
+			}
+			byte[] value = new byte[length - HEADER_SIZE - key.length];
+			slab.get(value);
+			return new Stored<byte[]>(value, slab.getLong(offset + 20));
+		}
+
+		synchronized void remove(long hash) {
+			int i = find(hash);
+			if (i >= 0) {
+				removeAt(i);
+			}
+		}
+
+		/**
+		 * Removes the entries of a slab that is about to be reused from the
+		 * index.
+		 */
+		private void evict(int slabIndex) {
+			ByteBuffer slab = this.slabs[slabIndex];
+			if (null == slab) {
+				return;
+			}
+			int evicted = 0;
+			int offset = 0;
+			while (offset < this.limits[slabIndex]) {
+				int i = find(slab.getLong(offset + 4));
+				if (i >= 0 && this.addresses[i] == (((long) slabIndex << 32) | offset)) {
+					removeAt(i);
+					evicted++;
+				}
+				offset += slab.getInt(offset);
+			}
+			this.limits[slabIndex] = 0;
+			evictions.addAndGet(evicted);
+			if (evicted > 0 && LOG.isLoggable(Level.FINER)) {
+				LOG.finer("Evicted " + evicted + " off-heap cache entries");
+			}
+		}
+
+		private void allocateIndex(int slots) {
+			this.hashes = new long[slots];
+			this.addresses = new long[slots];
+			this.size = 0;
+		}
+
+		private int home(long hash) {
+			return (int) (hash ^ (hash >>> 32)) & (this.hashes.length - 1);
+		}
+
+		private int find(long hash) {
+			int mask = this.hashes.length - 1;
+			for (int i = home(hash); this.hashes[i] != 0; i = (i + 1) & mask) {
+				if (this.hashes[i] == hash) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private void index(long hash, long address) {
+			int i = find(hash);
+			if (i < 0) {
+				if ((this.size + 1) * 2 > this.hashes.length) {
+					resizeIndex();
+				}
+				int mask = this.hashes.length - 1;
+				for (i = home(hash); this.hashes[i] != 0; i = (i + 1) & mask) {
+					// find the first empty slot
+				}
+				this.hashes[i] = hash;
+				this.size++;
+			}
+			this.addresses[i] = address;
+		}
+
+		private void resizeIndex() {
+			long[] oldHashes = this.hashes;
+			long[] oldAddresses = this.addresses;
+			allocateIndex(oldHashes.length * 2);
+			int mask = this.hashes.length - 1;
+			for (int j = 0; j < oldHashes.length; j++) {
+				if (oldHashes[j] != 0) {
+					int i = home(oldHashes[j]);
+					while (this.hashes[i] != 0) {
+						i = (i + 1) & mask;
+					}
+					this.hashes[i] = oldHashes[j];
+					this.addresses[i] = oldAddresses[j];
+					this.size++;
+				}
+			}
+		}
+
+		/**
+		 * Removes the index entry in the given slot and shifts the following
+		 * entries of the probe sequence back.
+		 */
+		private void removeAt(int i) {
+			int mask = this.hashes.length - 1;
+			int j = i;
+			while (true) {
+				this.hashes[i] = 0;
+				while (true) {
+					j = (j + 1) & mask;
+					if (this.hashes[j] == 0) {
+						this.size--;
+						return;
+					}
+					int k = home(this.hashes[j]);
+					// the entry in j may stay if its home slot lies
+					// cyclically in (i, j]
+					boolean stays = i <= j ? (i < k && k <= j) : (i < k || k <= j);
+					if (!stays) {
+						break;
+					}
+				}
+				this.hashes[i] = this.hashes[j];
+				this.addresses[i] = this.addresses[j];
+				i = j;
+			}
+		}
+	}
+
+	/**
+	 * Returns the hash of a key within a region; never 0 because 0 marks
+	 * empty slots.
+	 */
+	private static long hash(int region, String key) {
+		long hash = 0xcbf29ce484222325L ^ region;
+		for (int i = 0; i < key.length(); i++) {
+			hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+		}
+		// spread the bits (finalizer of MurmurHash3)
+		hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+		hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return 0 != hash ? hash : 1L;
+	}
+
+	/**
+	 * Writes a string that may be <code>null</code>.
+	 * 
+	 * @param out
+	 *            The output. May not be <code>null</code>.
+	 * @param value
+	 *            The string. May be <code>null</code>.
+	 * @throws IOException
+	 *             If writing fails.
+	 */
+	static void writeString(DataOutput out, String value) throws IOException {
+		out.writeBoolean(null != value);
+		if (null != value) {
+			out.writeUTF(value);
+		}
+	}
+
+	/**
+	 * Reads a string written by {@link #writeString(DataOutput, String)}.
+	 * 
+	 * @param in
+	 *            The input. May not be <code>null</code>.
+	 * @return The string. May be <code>null</code>.
+	 * @throws IOException
+	 *             If reading fails.
+	 */
+	static String readString(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	/**
+	 * Converts values to and from their compact binary form.
+	 * 
+	 * @param <V>
+	 *            The type of the values.
+	 */
+	public interface Codec<V> {
+		/**
+		 * Writes a value.
+		 * 
+		 * @param out
+		 *            The output. Never <code>null</code>.
+		 * @param value
+		 *            The value. Never <code>null</code>.
+		 * @throws IOException
+		 *             If the value can't be written; it isn't stored then.
+		 */
+		void write(DataOutput out, V value) throws IOException;
+
+		/**
+		 * Reads a value.
+		 * 
+		 * @param in
+		 *            The input. Never <code>null</code>.
+		 * @return The value. Never <code>null</code>.
+		 * @throws IOException
+		 *             If the value can't be read.
+		 */
+		V read(DataInput in) throws IOException;
+	}
+
+	/**
+	 * The entries of one cache.
+	 * 
+	 * @param <V>
+	 *            The type of the values.
+	 */
+	public final class Region<V> {
+		/** The identifier of the region. */
+		private final int id;
+
+		/** Encodes the values. */
+		private final Codec<V> codec;
+
+		/** Incremented when the region is cleared. */
+		private final AtomicInteger generation = new AtomicInteger();
+
+		Region(int pId, Codec<V> pCodec) {
+			this.id = pId;
+			this.codec = pCodec;
+		}
+
+		/**
+		 * Returns the entry for a key.
+		 * 
+		 * @param key
+		 *            The key. May not be <code>null</code>.
+		 * @return The entry or <code>null</code> if there is none.
+		 */
+		public Stored<V> get(String key) {
+			Stored<byte[]> entry = CrowdOffHeapStore.this.get(hash(this.id, key), this.id, this.generation.get(),
+					key.getBytes(StandardCharsets.UTF_8));
+			if (null == entry) {
+				return null;
+			}
+			try {
+				V value = this.codec.read(new DataInputStream(new ByteArrayInputStream(entry.value)));
+				return new Stored<V>(value, entry.created);
+			} catch (IOException ex) {
+				LOG.log(Level.WARNING, "Failed to decode off-heap cache entry", ex);
+				remove(key);
+				return null;
+			}
+		}
+
+		/**
+		 * Stores a value.
+		 * 
+		 * @param key
+		 *            The key. May not be <code>null</code>.
+		 * @param value
+		 *            The value. May not be <code>null</code>.
+		 * @param created
+		 *            When the value was retrieved from Crowd, in
+		 *            milliseconds.
+		 */
+		public void put(String key, V value, long created) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+			try {
+				this.codec.write(new DataOutputStream(bytes), value);
+			} catch (IOException ex) {
+				if (LOG.isLoggable(Level.FINE)) {
+					LOG.fine("Value for " + key + " not stored off-heap: " + ex);
+				}
+				remove(key);
+				return;
+			}
+			long hash = hash(this.id, key);
+			partitionFor(hash).put(hash, this.id, this.generation.get(), key.getBytes(StandardCharsets.UTF_8),
+					bytes.toByteArray(), created);
+		}
+
+		/**
+		 * Removes the entry for a key.
+		 * 
+		 * @param key
+		 *            The key. May not be <code>null</code>.
+		 */
+		public void remove(String key) {
+			long hash = hash(this.id, key);
+			partitionFor(hash).remove(hash);
+		}
+
+		/**
+		 * Removes all entries of the region.
+		 */
+		public void clear() {
+			this.generation.incrementAndGet();
+		}
+	}
+
+	/**
+	 * A value read from the store together with the time it was retrieved
+	 * from Crowd.
+	 * 
+	 * @param <V>
+	 *            The type of the value.
+	 */
+	public static final class Stored<V> {
+		/** The value. */
+		final V value;
+
+		/** When the value was retrieved from Crowd, in milliseconds. */
+		final long created;
+
+		Stored(V pValue, long pCreated) {
+			this.value = pValue;
+			this.created = pCreated;
+		}
+	}
+}
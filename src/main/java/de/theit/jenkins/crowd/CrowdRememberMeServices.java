@@ -43,7 +43,6 @@ import java.util.logging.Logger;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import jenkins.model.Jenkins;
 import org.acegisecurity.Authentication;
 import org.acegisecurity.GrantedAuthority;
 import org.acegisecurity.ui.rememberme.RememberMeServices;
@@ -55,9 +54,6 @@ import com.atlassian.crowd.exception.InactiveAccountException;
 import com.atlassian.crowd.exception.InvalidAuthenticationException;
 import com.atlassian.crowd.exception.InvalidTokenException;
 import com.atlassian.crowd.exception.OperationFailedException;
-import com.atlassian.crowd.model.authentication.ValidationFactor;
-import com.atlassian.crowd.model.user.User;
-import org.acegisecurity.userdetails.UserDetails;
 
 /**
  * An implementation of the {@link RememberMeServices} to use SSO with Crowd.
@@ -99,9 +95,6 @@ public class CrowdRememberMeServices implements RememberMeServices {
 		Authentication result = null;
 
         if (configuration.useSSO){
-            List<ValidationFactor> validationFactors = this.configuration.tokenHelper
-                    .getValidationFactorExtractor().getValidationFactors(request);
-
             // check whether a SSO token is available
             if (LOG.isLoggable(Level.FINER)) {
                 LOG.finer("Checking whether a SSO token is available...");
@@ -116,15 +109,11 @@ public class CrowdRememberMeServices implements RememberMeServices {
                     if (LOG.isLoggable(Level.FINER)) {
                         LOG.finer("SSO token available => check whether it is still valid...");
                     }
-                    this.configuration.crowdClient.validateSSOAuthentication(
-                            ssoToken, validationFactors);
-
-                    // retrieve the user that is logged in via SSO
-                    if (LOG.isLoggable(Level.FINER)) {
-                        LOG.finer("Retrieving SSO user...");
-                    }
-                    User user = this.configuration.crowdClient
-                            .findUserFromSSOToken(ssoToken);
+                    // and retrieve the user that is logged in via SSO; the
+                    // servlet filter may have done this already for this
+                    // request
+                    CrowdUserSnapshot user = this.configuration.cacheUser(
+                            this.configuration.validateSSOSession(request, ssoToken).getUser());
                     CrowdAuthenticationToken.updateUserInfo(user);
                     // check whether the user is a member of the user group in Crowd
                     // that specifies who is allowed to login
@@ -138,7 +127,7 @@ public class CrowdRememberMeServices implements RememberMeServices {
                         List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>();
                         authorities.add(SecurityRealm.AUTHENTICATED_AUTHORITY);
                         authorities.addAll(this.configuration.getAuthoritiesForUser(user.getName()));
-                        result = new CrowdAuthenticationToken(user.getName(), null, authorities, ssoToken);
+                        result = new CrowdAuthenticationToken(new CrowdUser(user, authorities), null, authorities, ssoToken);
                     }
                 } catch (InvalidTokenException ex) {
                     // LOG.log(Level.INFO, invalidToken(), ex);
@@ -194,8 +183,6 @@ public class CrowdRememberMeServices implements RememberMeServices {
 		}
 		CrowdAuthenticationToken crowdAuthenticationToken = (CrowdAuthenticationToken) successfulAuthentication;
 
-		List<ValidationFactor> validationFactors = this.configuration.tokenHelper.getValidationFactorExtractor().getValidationFactors(request);
-
 		// check if there's already a SSO token in the authentication object
 		String ssoToken = crowdAuthenticationToken.getSSOToken();
 
@@ -217,6 +204,15 @@ public class CrowdRememberMeServices implements RememberMeServices {
 				}
 				ssoToken = this.configuration.tokenHelper.getCrowdToken(request,
                         this.configuration.clientProperties.getCookieTokenKey());
+			} else if (!ssoToken.equals(this.configuration.tokenHelper.getCrowdToken(request,
+					this.configuration.clientProperties.getCookieTokenKey()))) {
+				// the SSO token was created while authenticating the user
+				// => only the cookie is missing
+				if (LOG.isLoggable(Level.FINER)) {
+					LOG.finer("Set SSO cookie...");
+				}
+				this.configuration.tokenHelper.setCrowdToken(request, response, ssoToken,
+						this.configuration.clientProperties, this.configuration.getCookieConfiguration());
 			}
 
 			if (null == ssoToken) {
@@ -226,11 +222,19 @@ public class CrowdRememberMeServices implements RememberMeServices {
 				return;
 			}
 
-			// validate the SSO authentication
-			if (LOG.isLoggable(Level.FINE)) {
-				LOG.fine("Validate the SSO authentication...");
+			if (this.configuration.tokenStore.isValidated(ssoToken)) {
+				// the token was just issued by Crowd; no need to ask again
+				if (LOG.isLoggable(Level.FINE)) {
+					LOG.fine("SSO token already validated");
+				}
+			} else {
+				// validate the SSO authentication
+				if (LOG.isLoggable(Level.FINE)) {
+					LOG.fine("Validate the SSO authentication...");
+				}
+				this.configuration.validateSSOSession(request, ssoToken);
+				this.configuration.tokenStore.setValidated(ssoToken);
 			}
-			this.configuration.crowdClient.validateSSOAuthentication(ssoToken, validationFactors);
 
 			// alright, we're successfully authenticated via SSO
 			if (LOG.isLoggable(Level.FINE)) {
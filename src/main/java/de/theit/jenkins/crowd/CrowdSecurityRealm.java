@@ -38,6 +38,8 @@ import static de.theit.jenkins.crowd.ErrorMessages.specifySessionValidationInter
 import static de.theit.jenkins.crowd.ErrorMessages.userNotFound;
 import static de.theit.jenkins.crowd.ErrorMessages.userNotValid;
 import hudson.Extension;
+import hudson.Util;
+import hudson.model.AutoCompletionCandidates;
 import hudson.model.Descriptor;
 import hudson.model.Hudson;
 import hudson.security.AbstractPasswordBasedSecurityRealm;
@@ -46,15 +48,25 @@ import hudson.security.SecurityRealm;
 import hudson.util.FormValidation;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
 
 import org.acegisecurity.AccountExpiredException;
 import org.acegisecurity.AuthenticationException;
@@ -66,10 +78,15 @@ import org.acegisecurity.InsufficientAuthenticationException;
 import org.acegisecurity.userdetails.UserDetails;
 import org.acegisecurity.userdetails.UserDetailsService;
 import org.acegisecurity.userdetails.UsernameNotFoundException;
+import org.apache.commons.io.IOUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.Stapler;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DataRetrievalFailureException;
 
@@ -80,12 +97,8 @@ import com.atlassian.crowd.exception.InactiveAccountException;
 import com.atlassian.crowd.exception.InvalidAuthenticationException;
 import com.atlassian.crowd.exception.OperationFailedException;
 import com.atlassian.crowd.exception.UserNotFoundException;
-import com.atlassian.crowd.integration.http.CrowdHttpAuthenticatorImpl;
-import com.atlassian.crowd.integration.http.util.CrowdHttpTokenHelperImpl;
-import com.atlassian.crowd.integration.http.util.CrowdHttpValidationFactorExtractorImpl;
 import com.atlassian.crowd.integration.rest.service.factory.RestCrowdClientFactory;
 import com.atlassian.crowd.model.group.Group;
-import com.atlassian.crowd.model.user.User;
 import com.atlassian.crowd.service.client.ClientPropertiesImpl;
 
 /**
@@ -100,6 +113,15 @@ public class CrowdSecurityRealm extends AbstractPasswordBasedSecurityRealm {
 	/** Used for logging purposes. */
 	private static final Logger LOG = Logger.getLogger(CrowdSecurityRealm.class.getName());
 
+	/**
+	 * The system property holding the shared secret that allows to invalidate
+	 * the caches without being logged in.
+	 */
+	static final String INVALIDATION_SECRET_PROPERTY = CrowdSecurityRealm.class.getName() + ".invalidationSecret";
+
+	/** The HTTP header carrying the shared secret for invalidation messages. */
+	static final String INVALIDATION_SECRET_HEADER = "X-Crowd-Invalidation-Secret";
+
 	/** Contains the Crowd server URL. */
 	public final String url;
 
@@ -154,7 +176,7 @@ public class CrowdSecurityRealm extends AbstractPasswordBasedSecurityRealm {
 	 * The configuration data necessary for accessing the services on the remote
 	 * Crowd server.
 	 */
-	transient private CrowdConfigurationService configuration;
+	transient private volatile CrowdConfigurationService configuration;
 
 	/**
 	 * Default constructor. Fields in config.jelly must match the parameter
@@ -214,21 +236,50 @@ public class CrowdSecurityRealm extends AbstractPasswordBasedSecurityRealm {
 	}
 
     /**
-	 * Initializes all objects necessary to talk to / with Crowd.
+	 * Initializes all objects necessary to talk to / with Crowd. If the
+	 * connection settings didn't change since the last realm was created, the
+	 * existing client and caches are reused.
+	 * 
+	 * @return The configuration to access the remote Crowd server. Never
+	 *         <code>null</code>.
 	 */
-	private void initializeConfiguration() {
-        configuration = new CrowdConfigurationService(group, nestedGroups);
-        configuration.useSSO = useSSO;
+	private CrowdConfigurationService initializeConfiguration() {
         Properties props = CrowdConfigurationService.getProperties(url, applicationName, password, sessionValidationInterval,
                 useSSO, cookieDomain, cookieTokenkey, useProxy, httpProxyHost, httpProxyPort, httpProxyUsername,
                 httpProxyPassword, socketTimeout, httpTimeout, httpMaxConnections);
-        configuration.clientProperties = ClientPropertiesImpl.newInstanceFromProperties(props);
-        configuration.crowdClient = new RestCrowdClientFactory().newInstance(configuration.clientProperties);
-        configuration.tokenHelper = CrowdHttpTokenHelperImpl.getInstance(CrowdHttpValidationFactorExtractorImpl.getInstance());
-        configuration.crowdHttpAuthenticator = new CrowdHttpAuthenticatorImpl(
-                configuration.crowdClient,
-                configuration.clientProperties,
-                configuration.tokenHelper);
+        return CrowdConfigurationRegistry.getInstance().obtain(group, nestedGroups, useSSO, props);
+	}
+
+	/**
+	 * Returns the configuration to access the remote Crowd server and
+	 * initializes it on first use.
+	 * 
+	 * @return The configuration. Never <code>null</code>.
+	 */
+	CrowdConfigurationService getConfiguration() {
+		CrowdConfigurationService result = this.configuration;
+		if (null == result) {
+			synchronized (this) {
+				result = this.configuration;
+				if (null == result) {
+					result = initializeConfiguration();
+					this.configuration = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Uses the given configuration instead of one obtained from the
+	 * {@link CrowdConfigurationRegistry}, e.g. to replay recorded traffic
+	 * against a fake Crowd server.
+	 * 
+	 * @param pConfiguration
+	 *            The configuration. May not be <code>null</code>.
+	 */
+	void setConfiguration(CrowdConfigurationService pConfiguration) {
+		this.configuration = pConfiguration;
 	}
 
 	/**
@@ -238,9 +289,7 @@ public class CrowdSecurityRealm extends AbstractPasswordBasedSecurityRealm {
 	 */
 	@Override
 	public SecurityComponents createSecurityComponents() {
-		if (null == configuration) {
-			initializeConfiguration();
-		}
+		CrowdConfigurationService configuration = getConfiguration();
 
 		AuthenticationManager crowdAuthenticationManager = new CrowdAuthenticationManager(configuration);
 		UserDetailsService crowdUserDetails = new CrowdUserDetailsService(configuration);
@@ -274,6 +323,94 @@ public class CrowdSecurityRealm extends AbstractPasswordBasedSecurityRealm {
 		super.doLogout(req, rsp);
 	}
 
+	/**
+	 * Invalidates cached data after users or groups were changed in Crowd.
+	 * The endpoint is <code>/securityRealm/invalidate</code>; it accepts a
+	 * JSON object like
+	 * 
+	 * <pre>
+	 * {"users": ["alice"], "groups": ["developers"], "all": false, "refresh": true}
+	 * </pre>
+	 * 
+	 * where all members are optional. The caller must either be an
+	 * administrator or send the shared secret configured with the system
+	 * property {@link #INVALIDATION_SECRET_PROPERTY} in the header
+	 * {@link #INVALIDATION_SECRET_HEADER}. Messages are applied
+	 * asynchronously; bursts are merged into one pass over the caches.
+	 * 
+	 * @param req
+	 *            The current request.
+	 * @return <code>202 Accepted</code> if the message was queued.
+	 * @throws IOException
+	 *             If the request body couldn't be read.
+	 */
+	@RequirePOST
+	public HttpResponse doInvalidate(StaplerRequest req) throws IOException {
+		if (!isInvalidationAllowed(req)) {
+			return HttpResponses.error(HttpServletResponse.SC_FORBIDDEN, "Not allowed to invalidate the Crowd caches");
+		}
+
+		JSONObject message;
+		try {
+			message = JSONObject.fromObject(IOUtils.toString(req.getReader()));
+		} catch (JSONException ex) {
+			return HttpResponses.error(HttpServletResponse.SC_BAD_REQUEST, "Invalid invalidation message: " + ex.getMessage());
+		}
+
+		List<String> users = new ArrayList<String>();
+		List<String> groups = new ArrayList<String>();
+		if (message.has("users")) {
+			for (Object user : message.getJSONArray("users")) {
+				users.add(user.toString());
+			}
+		}
+		if (message.has("groups")) {
+			for (Object group : message.getJSONArray("groups")) {
+				groups.add(group.toString());
+			}
+		}
+		getConfiguration().invalidator.submit(users, groups, message.optBoolean("all"), message.optBoolean("refresh"));
+		return HttpResponses.status(HttpServletResponse.SC_ACCEPTED);
+	}
+
+	/**
+	 * Checks whether the caller may invalidate the caches.
+	 * 
+	 * @param req
+	 *            The current request.
+	 * @return <code>true</code> if the caller is an administrator or has sent
+	 *         the shared secret.
+	 */
+	private static boolean isInvalidationAllowed(StaplerRequest req) {
+		String secret = System.getProperty(INVALIDATION_SECRET_PROPERTY);
+		if (null != secret && secret.length() > 0 && null != req.getHeader(INVALIDATION_SECRET_HEADER)) {
+			return hasInvalidationSecret(req);
+		}
+		return Hudson.getInstance().hasPermission(Hudson.ADMINISTER);
+	}
+
+	/**
+	 * Checks whether the request carries the shared secret for invalidation
+	 * messages. The secret is compared in constant time.
+	 * 
+	 * @param req
+	 *            The request. May not be <code>null</code>.
+	 * @return <code>true</code> if a secret is configured and the request
+	 *         sent exactly this secret, <code>false</code> else.
+	 */
+	static boolean hasInvalidationSecret(HttpServletRequest req) {
+		String secret = System.getProperty(INVALIDATION_SECRET_PROPERTY);
+		String given = req.getHeader(INVALIDATION_SECRET_HEADER);
+		if (null == secret || secret.length() == 0 || null == given) {
+			return false;
+		}
+		try {
+			return MessageDigest.isEqual(secret.getBytes("UTF-8"), given.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException ex) {
+			return false;
+		}
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * 
@@ -281,17 +418,10 @@ public class CrowdSecurityRealm extends AbstractPasswordBasedSecurityRealm {
 	 */
 	@Override
 	public Filter createFilter(FilterConfig filterConfig) {
-		if (null == this.configuration) {
-			initializeConfiguration();
-		}
-
 		Filter defaultFilter = super.createFilter(filterConfig);
 
-		if (!useSSO) {
-			return defaultFilter;
-		}
-
-		return new CrowdServletFilter(this, this.configuration, defaultFilter);
+		// the filter is also needed without SSO for tracing the Crowd calls
+		return new CrowdServletFilter(this, getConfiguration(), defaultFilter);
 	}
 
 	/**
@@ -319,7 +449,7 @@ public class CrowdSecurityRealm extends AbstractPasswordBasedSecurityRealm {
 			if (LOG.isLoggable(Level.FINER)) {
 				LOG.finer("Trying to load group: " + groupname);
 			}
-			final Group crowdGroup = this.configuration.crowdClient
+			final Group crowdGroup = getConfiguration().crowdClient
 					.getGroup(groupname);
 
 			return new GroupDetails() {
@@ -354,16 +484,73 @@ public class CrowdSecurityRealm extends AbstractPasswordBasedSecurityRealm {
 	@Override
 	protected UserDetails authenticate(String pUsername, String pPassword)
 			throws AuthenticationException {
-		if (! this.configuration.allowedGroupNames.isEmpty()) {
+		if (!CrowdTrafficRecorder.isEnabled()) {
+			return authenticateWithCrowd(pUsername, pPassword);
+		}
+		long start = System.nanoTime();
+		int calls = CrowdCallTracer.getCurrentCallCount();
+		UserDetails details = null;
+		try {
+			details = authenticateWithCrowd(pUsername, pPassword);
+			return details;
+		} finally {
+			CrowdTrafficRecorder.recordLogin(pUsername, details, start,
+					CrowdCallTracer.getCurrentCallCount() - calls);
+		}
+	}
+
+	/**
+	 * Authenticates a user with user name and password against Crowd.
+	 * 
+	 * @param pUsername
+	 *            The user name. May not be <code>null</code>.
+	 * @param pPassword
+	 *            The password. May be <code>null</code>.
+	 * @return The details of the authenticated user. Never <code>null</code>.
+	 * @throws AuthenticationException
+	 *             If the user can't be authenticated.
+	 */
+	private UserDetails authenticateWithCrowd(String pUsername, String pPassword)
+			throws AuthenticationException {
+		CrowdConfigurationService configuration = getConfiguration();
+
+		// reject the attempt locally if there were too many failures
+		HttpServletRequest request = CrowdServletFilter.getCurrentRequest();
+		if (null == request) {
+			request = Stapler.getCurrentRequest();
+		}
+		String clientAddress = CrowdLoginThrottle.getClientAddress(null, request);
+		CrowdLoginThrottle loginThrottle = configuration.loginThrottle;
+		Object stage = CrowdFlightRecorder.begin(CrowdFlightRecorder.LOGIN_STAGE);
+		String outcome = "rejected";
+		try {
+			loginThrottle.checkAllowed(pUsername, clientAddress);
+			outcome = "passed";
+		} finally {
+			CrowdFlightRecorder.commit(stage, "throttle", outcome);
+		}
+
+		if (! configuration.allowedGroupNames.isEmpty()) {
 			// ensure that the group is available, active and that the user
 			// is a member of it
-			if (!this.configuration.isGroupMember(pUsername)) {
+			stage = CrowdFlightRecorder.begin(CrowdFlightRecorder.LOGIN_STAGE);
+			Boolean member = configuration.getGroupMembership(pUsername);
+			CrowdFlightRecorder.commit(stage, "membership",
+					null == member ? "unknown" : member.booleanValue() ? "member" : "no member");
+			if (null == member) {
+				// Crowd couldn't be asked => not the user's fault
+				throw new AuthenticationServiceException(operationFailed());
+			}
+			if (!member.booleanValue()) {
+				loginThrottle.recordFailure(pUsername, clientAddress);
 				throw new InsufficientAuthenticationException(userNotValid(
-						pUsername, this.configuration.allowedGroupNames));
+						pUsername, configuration.allowedGroupNames));
 			}
 		}
 
-		User user;
+		CrowdUserSnapshot user;
+		stage = CrowdFlightRecorder.begin(CrowdFlightRecorder.LOGIN_STAGE);
+		outcome = "failed";
 		try {
 			// authenticate user
 			if (LOG.isLoggable(Level.FINE)) {
@@ -373,8 +560,10 @@ public class CrowdSecurityRealm extends AbstractPasswordBasedSecurityRealm {
 						+ (null != pPassword ? "<available>'"
 								: "<not specified>'"));
 			}
-			user = this.configuration.crowdClient.authenticateUser(pUsername, pPassword);
+			user = configuration.cacheUser(configuration.crowdClient.authenticateUser(pUsername, pPassword));
+			outcome = "authenticated";
 		} catch (UserNotFoundException ex) {
+			loginThrottle.recordFailure(pUsername, clientAddress);
 			if (LOG.isLoggable(Level.INFO)) {
 				LOG.info(userNotFound(pUsername));
 			}
@@ -390,13 +579,19 @@ public class CrowdSecurityRealm extends AbstractPasswordBasedSecurityRealm {
 			throw new AuthenticationServiceException(applicationPermission(),
 					ex);
 		} catch (InvalidAuthenticationException ex) {
+			// Crowd reports a wrong password this way, but also wrong
+			// application credentials => not necessarily the user's fault
+			loginThrottle.recordAddressFailure(clientAddress);
 			LOG.warning(invalidAuthentication());
 			throw new AuthenticationServiceException(invalidAuthentication(),
 					ex);
 		} catch (OperationFailedException ex) {
 			LOG.log(Level.SEVERE, operationFailed(), ex);
 			throw new AuthenticationServiceException(operationFailed(), ex);
+		} finally {
+			CrowdFlightRecorder.commit(stage, "authenticate", outcome);
 		}
+		loginThrottle.recordSuccess(pUsername);
 
 		// create the list of granted authorities
 		List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>();
@@ -404,7 +599,9 @@ public class CrowdSecurityRealm extends AbstractPasswordBasedSecurityRealm {
 		// authorities...
 		authorities.add(SecurityRealm.AUTHENTICATED_AUTHORITY);
 		// ..and all authorities retrieved from the Crowd server
-		authorities.addAll(this.configuration.getAuthoritiesForUser(pUsername));
+		stage = CrowdFlightRecorder.begin(CrowdFlightRecorder.LOGIN_STAGE);
+		authorities.addAll(configuration.getAuthoritiesForUser(pUsername));
+		CrowdFlightRecorder.commit(stage, "authorities", String.valueOf(authorities.size() - 1));
 
 		return new CrowdUser(user, authorities);
 	}
@@ -518,6 +715,31 @@ public class CrowdSecurityRealm extends AbstractPasswordBasedSecurityRealm {
 			return FormValidation.ok();
 		}
 
+		/**
+		 * Suggests user and group names for the given prefix, e.g. while
+		 * entering them into the authorization settings. The suggestions come
+		 * from a local index; no request is sent to Crowd. Since they list the
+		 * whole directory, they are only given to administrators, the only
+		 * users that can change the authorization settings.
+		 * 
+		 * @param value
+		 *            The prefix typed so far.
+		 * @return The matching user and group names. This is sent to the
+		 *         browser.
+		 */
+		public AutoCompletionCandidates doAutoCompleteSid(@QueryParameter final String value) {
+			AutoCompletionCandidates candidates = new AutoCompletionCandidates();
+			SecurityRealm realm = Hudson.getInstance().getSecurityRealm();
+			if (!(realm instanceof CrowdSecurityRealm) || !Hudson.getInstance().hasPermission(Hudson.ADMINISTER)) {
+				return candidates;
+			}
+
+			for (String name : ((CrowdSecurityRealm) realm).getConfiguration().sidIndex.suggest(value)) {
+				candidates.add(name);
+			}
+			return candidates;
+		}
+
 		/**
 		 * Checks whether the connection to the Crowd server can be established
 		 * using the given credentials.
@@ -545,38 +767,165 @@ public class CrowdSecurityRealm extends AbstractPasswordBasedSecurityRealm {
 
 //			Logger log = Logger.getLogger(getClass().getName());
 
-			CrowdConfigurationService tConfiguration = new CrowdConfigurationService(group, false);
             Properties props = CrowdConfigurationService.getProperties(url, applicationName, password, sessionValidationInterval,
                     useSSO, cookieDomain, cookieTokenkey, useProxy, httpProxyHost, httpProxyPort, httpProxyUsername,
                     httpProxyPassword, socketTimeout, httpTimeout, httpMaxConnections);
+
+			// with several Crowd nodes each of them has to be reachable
+			String clusterUrls = props.getProperty(CrowdConfigurationService.CLUSTER_URLS_PROPERTY);
+			if (null != clusterUrls) {
+				for (String nodeUrl : clusterUrls.split(",")) {
+					FormValidation result = testConnection(
+							CrowdConfigurationRegistry.nodeProperties(props, nodeUrl), group, nodeUrl + ": ");
+					if (result.kind != FormValidation.Kind.OK) {
+						return result;
+					}
+				}
+				return FormValidation.ok("OK");
+			}
+			return testConnection(props, group, "");
+		}
+
+		/**
+		 * Checks whether the connection to a single Crowd server can be
+		 * established.
+		 * 
+		 * @param props
+		 *            The client properties for the server. May not be
+		 *            <code>null</code>.
+		 * @param group
+		 *            The Crowd groups users have to belong to if specified.
+		 * @param prefix
+		 *            The prefix for error messages. May not be
+		 *            <code>null</code>.
+		 * @return Indicates the outcome of the validation.
+		 */
+		private static FormValidation testConnection(Properties props, String group, String prefix) {
+			CrowdConfigurationService tConfiguration = new CrowdConfigurationService(group, false);
             tConfiguration.clientProperties = ClientPropertiesImpl.newInstanceFromProperties(props);
             tConfiguration.crowdClient = new RestCrowdClientFactory().newInstance(tConfiguration.clientProperties);
 
+			List<Future<Boolean>> groupChecks = new ArrayList<Future<Boolean>>();
 			try {
                 tConfiguration.crowdClient.testConnection();
 
-				// ensure that the given group names are available and active
-				for (String groupName : tConfiguration.allowedGroupNames) {
-					if (!tConfiguration.isGroupActive(groupName)) {
-						return FormValidation.error(groupNotFound(groupName));
+				// ensure that the given group names are available and active;
+				// the groups are checked concurrently
+				List<String> groupNames = tConfiguration.allowedGroupNames;
+				for (final String groupName : groupNames) {
+					final CrowdConfigurationService checkConfiguration = tConfiguration;
+					groupChecks.add(CrowdExecutors.submit(new Callable<Boolean>() {
+						@Override
+						public Boolean call() throws Exception {
+							return checkConfiguration.isGroupActive(groupName);
+						}
+					}));
+				}
+				for (int i = 0; i < groupChecks.size(); i++) {
+					if (!awaitGroupCheck(groupChecks.get(i))) {
+						return FormValidation.error(prefix + groupNotFound(groupNames.get(i)));
 					}
 				}
 
 				return FormValidation.ok("OK");
 			} catch (InvalidAuthenticationException ex) {
 				LOG.log(Level.WARNING, invalidAuthentication(), ex);
-				return FormValidation.error(invalidAuthentication());
+				return FormValidation.error(prefix + invalidAuthentication());
 			} catch (ApplicationPermissionException ex) {
                 LOG.log(Level.WARNING, applicationPermission(), ex);
-				return FormValidation.error(applicationPermission());
+				return FormValidation.error(prefix + applicationPermission());
 			} catch (OperationFailedException ex) {
                 LOG.log(Level.SEVERE, operationFailed(), ex);
-				return FormValidation.error(operationFailed());
+				return FormValidation.error(prefix + operationFailed());
 			} finally {
+				for (Future<Boolean> groupCheck : groupChecks) {
+					groupCheck.cancel(true);
+				}
 				tConfiguration.crowdClient.shutdown();
 			}
 		}
 
+		/**
+		 * Waits for the check whether a group is active.
+		 * 
+		 * @param groupCheck
+		 *            The running check. May not be <code>null</code>.
+		 * @return <code>true</code> if the group exists and is active.
+		 * @throws InvalidAuthenticationException
+		 *             If the application and password are not valid.
+		 * @throws ApplicationPermissionException
+		 *             If the application is not permitted to perform the
+		 *             requested operation on the server.
+		 * @throws OperationFailedException
+		 *             If the operation has failed for any other reason.
+		 */
+		private static boolean awaitGroupCheck(Future<Boolean> groupCheck) throws InvalidAuthenticationException,
+				ApplicationPermissionException, OperationFailedException {
+			try {
+				return groupCheck.get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new OperationFailedException(ex);
+			} catch (ExecutionException ex) {
+				Throwable cause = ex.getCause();
+				if (cause instanceof InvalidAuthenticationException) {
+					throw (InvalidAuthenticationException) cause;
+				} else if (cause instanceof ApplicationPermissionException) {
+					throw (ApplicationPermissionException) cause;
+				} else if (cause instanceof OperationFailedException) {
+					throw (OperationFailedException) cause;
+				}
+				throw new OperationFailedException(cause);
+			}
+		}
+
+		/**
+		 * Measures the latency of the core Crowd operations with the given
+		 * settings and recommends timeouts and a connection pool size.
+		 * 
+		 * @param url
+		 *            The URL of the Crowd server.
+		 * @param applicationName
+		 *            The application name.
+		 * @param password
+		 *            The application's password.
+		 * @param group
+		 *            The Crowd groups users have to belong to if specified.
+		 * @param probeIterations
+		 *            The number of times each operation is measured.
+		 * 
+		 * @return The measurements. This is sent to the browser.
+		 */
+		@RequirePOST
+		public FormValidation doProbeConnection(@QueryParameter String url, @QueryParameter String applicationName,
+				@QueryParameter String password, @QueryParameter String group, @QueryParameter boolean useSSO,
+				@QueryParameter String cookieDomain, @QueryParameter int sessionValidationInterval,
+				@QueryParameter String cookieTokenkey, @QueryParameter Boolean useProxy, @QueryParameter String httpProxyHost,
+				@QueryParameter String httpProxyPort, @QueryParameter String httpProxyUsername,
+				@QueryParameter String httpProxyPassword, @QueryParameter String socketTimeout,
+				@QueryParameter String httpTimeout, @QueryParameter String httpMaxConnections,
+				@QueryParameter int probeIterations) {
+			Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+
+			Properties props = CrowdConfigurationService.getProperties(url, applicationName, password, sessionValidationInterval,
+					useSSO, cookieDomain, cookieTokenkey, useProxy, httpProxyHost, httpProxyPort, httpProxyUsername,
+					httpProxyPassword, socketTimeout, httpTimeout, httpMaxConnections);
+			String clusterUrls = props.getProperty(CrowdConfigurationService.CLUSTER_URLS_PROPERTY);
+			if (null == clusterUrls) {
+				return new CrowdConnectionProbe(props, group, probeIterations).run();
+			}
+			StringBuilder html = new StringBuilder();
+			for (String nodeUrl : clusterUrls.split(",")) {
+				FormValidation result = new CrowdConnectionProbe(
+						CrowdConfigurationRegistry.nodeProperties(props, nodeUrl), group, probeIterations).run();
+				if (result.kind != FormValidation.Kind.OK) {
+					return result;
+				}
+				html.append("<h4>").append(Util.escape(nodeUrl)).append("</h4>").append(result.renderHtml());
+			}
+			return FormValidation.okWithMarkup(html.toString());
+		}
+
 		/**
 		 * {@inheritDoc}
 		 * 
@@ -25,9 +25,10 @@
  */
 package de.theit.jenkins.crowd;
 
+import com.atlassian.crowd.exception.ApplicationPermissionException;
+import com.atlassian.crowd.exception.InvalidAuthenticationException;
+import com.atlassian.crowd.exception.InvalidTokenException;
 import com.atlassian.crowd.exception.OperationFailedException;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import org.acegisecurity.Authentication;
 import org.acegisecurity.context.SecurityContext;
 import org.acegisecurity.context.SecurityContextHolder;
@@ -45,10 +46,11 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import java.io.IOException;
-import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import static de.theit.jenkins.crowd.ErrorMessages.applicationPermission;
+import static de.theit.jenkins.crowd.ErrorMessages.invalidAuthentication;
 import static de.theit.jenkins.crowd.ErrorMessages.operationFailed;
 import static org.acegisecurity.ui.rememberme.TokenBasedRememberMeServices.ACEGI_SECURITY_HASHED_REMEMBER_ME_COOKIE_KEY;
 
@@ -56,7 +58,9 @@ import static org.acegisecurity.ui.rememberme.TokenBasedRememberMeServices.ACEGI
  * This class realizes a servlet filter that checks on each request the status
  * of the SSO session. If the session isn't valid anymore, the user is logged
  * out automatically, and vice-versa: If there's a SSO session but the user
- * isn't logged in, (s)he is automatically logged in.
+ * isn't logged in, (s)he is automatically logged in. Additionally the filter
+ * traces the Crowd calls made while serving a request, see
+ * {@link CrowdCallTracer}.
  *
  * @author <a href="mailto:theit@gmx.de">Thorsten Heit (theit@gmx.de)</a>
  * @version $Id$
@@ -90,10 +94,18 @@ public class CrowdServletFilter implements Filter {
      */
     private CrowdRememberMeServices rememberMe;
 
-    private Cache<String, Boolean> validationCache;
-    private Cache<String, Authentication> authenticationCache;
+    /**
+     * The SSO token cache. It belongs to the configuration so that it
+     * survives the re-creation of the filter.
+     */
+    private CrowdTokenStore tokenStore;
 
-    private static final int MAX_CACHE_SIZE = 2500;
+    /**
+     * The request passed to the default filter by the current thread. Lets the
+     * {@link CrowdAuthenticationManager} build the SSO validation factors
+     * while the user logs in with name and password.
+     */
+    private static final ThreadLocal<HttpServletRequest> CURRENT_REQUEST = new ThreadLocal<HttpServletRequest>();
 
     /**
      * Creates a new instance of this class.
@@ -117,8 +129,7 @@ public class CrowdServletFilter implements Filter {
             this.rememberMe = (CrowdRememberMeServices) this.securityRealm.getSecurityComponents().rememberMe;
         }
 
-        validationCache = CacheBuilder.newBuilder().maximumSize(MAX_CACHE_SIZE).expireAfterWrite(this.configuration.clientProperties.getSessionValidationInterval(), TimeUnit.MINUTES).build();
-        authenticationCache = CacheBuilder.newBuilder().maximumSize(MAX_CACHE_SIZE).expireAfterAccess(15, TimeUnit.MINUTES).build();
+        tokenStore = this.configuration.tokenStore;
     }
 
     /**
@@ -140,19 +151,84 @@ public class CrowdServletFilter implements Filter {
     @Override
     public void doFilter(ServletRequest request, ServletResponse response,
                          FilterChain chain) throws IOException, ServletException {
-        if (request instanceof HttpServletRequest
-                && response instanceof HttpServletResponse) {
-            HttpServletRequest req = (HttpServletRequest) request;
-            HttpServletResponse res = (HttpServletResponse) response;
+        CrowdCallTracer.RequestTrace trace = CrowdCallTracer.begin(request);
+        try {
+            if (this.securityRealm.useSSO
+                    && request instanceof HttpServletRequest
+                    && response instanceof HttpServletResponse) {
+                HttpServletRequest req = (HttpServletRequest) request;
+                HttpServletResponse res = (HttpServletResponse) response;
 
-            if (isValidated(req, res)) {
-                setAuthentication(req, res);
-            } else {
-                removeAuthentication(req, res);
+                long start = System.nanoTime();
+                Object event = CrowdFlightRecorder.begin(CrowdFlightRecorder.FILTER_DECISION);
+                boolean validated = isValidated(req, res);
+                if (validated) {
+                    setAuthentication(req, res);
+                    CrowdFlightRecorder.commit(event, "validated");
+                } else {
+                    removeAuthentication(req, res);
+                    CrowdFlightRecorder.commit(event, "logged out");
+                }
+                if (CrowdTrafficRecorder.isEnabled()) {
+                    recordTraffic(req, start, trace, validated);
+                }
             }
+
+            if (request instanceof HttpServletRequest) {
+                CURRENT_REQUEST.set((HttpServletRequest) request);
+            }
+            this.defaultFilter.doFilter(request, response, chain);
+        } finally {
+            CURRENT_REQUEST.remove();
+            CrowdCallTracer.end(trace);
+        }
+    }
+
+    /**
+     * Returns the request that is currently processed by the default filter
+     * in this thread.
+     *
+     * @return The request or <code>null</code> if the current thread doesn't
+     * process a request.
+     */
+    static HttpServletRequest getCurrentRequest() {
+        return CURRENT_REQUEST.get();
+    }
+
+    /**
+     * Binds a request to the current thread as if the default filter
+     * processed it, e.g. for tests of the classes that need the current
+     * request.
+     *
+     * @param request The request or <code>null</code> to unbind the current
+     *                request.
+     */
+    static void setCurrentRequest(HttpServletRequest request) {
+        if (null == request) {
+            CURRENT_REQUEST.remove();
+        } else {
+            CURRENT_REQUEST.set(request);
         }
+    }
 
-        this.defaultFilter.doFilter(request, response, chain);
+    /**
+     * Records a request with an SSO cookie for {@link CrowdTrafficRecorder}.
+     *
+     * @param request   The servlet request. May not be <code>null</code>.
+     * @param start     When the SSO checks started.
+     * @param trace     The trace of the request. May not be <code>null</code>.
+     * @param validated Whether the SSO token was valid.
+     */
+    private void recordTraffic(HttpServletRequest request, long start, CrowdCallTracer.RequestTrace trace,
+                               boolean validated) {
+        String token = this.configuration.tokenHelper.getCrowdToken(request, this.configuration.clientProperties.getCookieTokenKey());
+        if (StringUtils.isBlank(token)) {
+            return;
+        }
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        String username = null != auth ? auth.getName() : null;
+        int groups = null != auth && null != auth.getAuthorities() ? Math.max(0, auth.getAuthorities().length - 1) : 0;
+        CrowdTrafficRecorder.recordSso(username, token, groups, start, trace.getCallCount(), validated);
     }
 
     private boolean isValidated(HttpServletRequest request, HttpServletResponse response) {
@@ -160,16 +236,22 @@ public class CrowdServletFilter implements Filter {
         String token =  this.configuration.tokenHelper.getCrowdToken(request, this.configuration.clientProperties.getCookieTokenKey());
 
         if (StringUtils.isNotBlank(token)) {
-            if (validationCache.getIfPresent(token) != null) {
+            if (tokenStore.isValidated(token)) {
                 LOG.fine("Validation found in cache.");
                 isValidated = true;
             } else {
                 LOG.fine("Validation not found in cache, checking authentication with Crowd.");
                 try {
-                    isValidated = this.configuration.crowdHttpAuthenticator.checkAuthenticated(request, response).isAuthenticated();
-                    if (isValidated) {
-                        validationCache.put(token, true);
-                    }
+                    // the session is kept for the auto-login of this request
+                    this.configuration.validateSSOSession(request, token);
+                    isValidated = true;
+                    tokenStore.setValidated(token);
+                } catch (InvalidTokenException ex) {
+                    LOG.fine("SSO token is not valid (anymore).");
+                } catch (ApplicationPermissionException ex) {
+                    LOG.warning(applicationPermission());
+                } catch (InvalidAuthenticationException ex) {
+                    LOG.warning(invalidAuthentication());
                 } catch (OperationFailedException ex) {
                     LOG.log(Level.SEVERE, operationFailed(), ex);
                 }
@@ -185,7 +267,7 @@ public class CrowdServletFilter implements Filter {
         if (sc.getAuthentication() instanceof CrowdAuthenticationToken) {
             return;
         } else {
-            Authentication auth = authenticationCache.getIfPresent(token);
+            Authentication auth = tokenStore.getAuthentication(token);
 
             if (auth == null) {
                 LOG.fine("User session NOT found in cache, trying to get info from crowd.");
@@ -197,7 +279,9 @@ public class CrowdServletFilter implements Filter {
                         LOG.fine("User is logged in via Crowd, but no authentication token available; trying auto-login...");
                     }
                     auth = this.rememberMe.autoLogin(request, response);
-                    authenticationCache.put(token, auth);
+                    if (null != auth) {
+                        tokenStore.putAuthentication(token, auth);
+                    }
                 }
             } else {
                 LOG.fine("Found user session in cache, skipping calling crowd for attributes.");
@@ -239,8 +323,7 @@ public class CrowdServletFilter implements Filter {
         String token = this.configuration.tokenHelper.getCrowdToken(request, this.configuration.clientProperties.getCookieTokenKey());
         if (StringUtils.isNotBlank(token)) {
             LOG.fine("Removing cached values for token (" + token + ") for validation and authentication caches.");
-            validationCache.invalidate(token);
-            authenticationCache.invalidate(token);
+            tokenStore.invalidate(token);
         }
     }
 
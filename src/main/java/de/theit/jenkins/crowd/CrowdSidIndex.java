@@ -0,0 +1,371 @@
+/*
+ * @(#)CrowdSidIndex.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2011 Thorsten Heit.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.atlassian.crowd.exception.CrowdException;
+import com.atlassian.crowd.model.user.User;
+import com.atlassian.crowd.search.query.entity.restriction.NullRestrictionImpl;
+import com.atlassian.crowd.service.client.CrowdClient;
+
+/**
+ * This class provides suggestions for user and group names while they are
+ * typed, e.g. into the authorization settings. The suggestions are taken from
+ * an in-memory index of all user names, display names and group names that is
+ * rebuilt periodically in the background, so that no request to Crowd is
+ * made per keystroke.
+ * <p>
+ * The index is built when the configuration is started and then every
+ * {@link #REFRESH_INTERVAL} milliseconds; suggestions never trigger a build.
+ * A failed build is retried with an exponentially growing delay, starting at
+ * {@link #RETRY_DELAY}. Without the local user mirror every build pages
+ * through all users, so the index can be disabled with the system property
+ * <code>de.theit.jenkins.crowd.CrowdSidIndex.enabled=false</code>.
+ * <p>
+ * The index is a sorted array of lower-case search keys; all keys starting
+ * with a prefix are found with a binary search.
+ * 
+ * @since 18.10.2026
+ * @version $Id$
+ */
+public class CrowdSidIndex {
+	/** Used for logging purposes. */
+	private static final Logger LOG = Logger.getLogger(CrowdSidIndex.class.getName());
+
+	/** Whether the index is enabled. */
+	static final boolean ENABLED = Boolean.parseBoolean(System.getProperty(CrowdSidIndex.class.getName() + ".enabled", "true"));
+
+	/** The number of milliseconds after which the index is rebuilt. */
+	private static final long REFRESH_INTERVAL = Long.getLong(CrowdSidIndex.class.getName() + ".refreshInterval", TimeUnit.MINUTES.toMillis(15));
+
+	/** The number of milliseconds after which a failed build is retried first. */
+	private static final long RETRY_DELAY = Long.getLong(CrowdSidIndex.class.getName() + ".retryDelay", TimeUnit.SECONDS.toMillis(30));
+
+	/** The maximum number of suggestions returned. */
+	private static final int MAX_SUGGESTIONS = Integer.getInteger(CrowdSidIndex.class.getName() + ".maxSuggestions", 20);
+
+	/** The number of entries retrieved per request. */
+	private static final int PAGE_SIZE = 1000;
+
+	/** The configuration to access the remote Crowd server. */
+	private final CrowdConfigurationService configuration;
+
+	/** The current index. Empty until the first build. */
+	private volatile Index index = new Index(new String[0], new String[0]);
+
+	/** When the index was last built. */
+	private volatile long lastBuild;
+
+	/** The number of builds that failed since the last successful one. */
+	private volatile int failures;
+
+	/** When the last build failed. */
+	private volatile long lastFailure;
+
+	/** The next scheduled build. <code>null</code> if stopped. */
+	private ScheduledFuture<?> task;
+
+	/**
+	 * Creates a new index.
+	 * 
+	 * @param pConfiguration
+	 *            The configuration to access the services on the remote Crowd
+	 *            server. May not be <code>null</code>.
+	 */
+	public CrowdSidIndex(CrowdConfigurationService pConfiguration) {
+		this.configuration = pConfiguration;
+	}
+
+	/**
+	 * Returns the user and group names matching the given prefix. The prefix
+	 * is matched case-insensitively against the user names, every word of the
+	 * users' display names and the group names.
+	 * <p>
+	 * This method never calls Crowd.
+	 * 
+	 * @param prefix
+	 *            The prefix typed so far. May be <code>null</code>.
+	 * @return The matching user and group names. Never <code>null</code>.
+	 */
+	public List<String> suggest(String prefix) {
+		if (null == prefix || prefix.trim().length() == 0) {
+			return Collections.emptyList();
+		}
+		return this.index.find(CrowdIdentifiers.canonical(prefix.trim()), MAX_SUGGESTIONS);
+	}
+
+	/**
+	 * Returns the number of entries in the index.
+	 * 
+	 * @return The number of search keys.
+	 */
+	public int size() {
+		return this.index.keys.length;
+	}
+
+	/**
+	 * Returns the number of builds that failed since the last successful one.
+	 * 
+	 * @return The number of failed builds.
+	 */
+	public int getFailures() {
+		return this.failures;
+	}
+
+	/**
+	 * Returns when the index was last built.
+	 * 
+	 * @return The time in milliseconds or <code>0</code> if the index was
+	 *         never built.
+	 */
+	public long getLastBuild() {
+		return this.lastBuild;
+	}
+
+	/**
+	 * Returns when the last build failed.
+	 * 
+	 * @return The time in milliseconds or <code>0</code> if no build failed.
+	 */
+	public long getLastFailure() {
+		return this.lastFailure;
+	}
+
+	/**
+	 * Starts the periodic rebuild of the index. The first build starts right
+	 * away.
+	 */
+	synchronized void start() {
+		if (null == this.task) {
+			schedule(0L);
+		}
+	}
+
+	/**
+	 * Stops the periodic rebuild of the index.
+	 */
+	synchronized void stop() {
+		if (null != this.task) {
+			this.task.cancel(false);
+			this.task = null;
+		}
+	}
+
+	/**
+	 * Schedules the next build.
+	 * 
+	 * @param delay
+	 *            The delay in milliseconds.
+	 */
+	private void schedule(long delay) {
+		this.task = CrowdExecutors.getScheduler().schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (!CrowdExecutors.execute(new Runnable() {
+					@Override
+					public void run() {
+						reschedule(refresh());
+					}
+				})) {
+					reschedule(RETRY_DELAY);
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Schedules the next build unless the index was stopped in the meantime.
+	 */
+	private synchronized void reschedule(long delay) {
+		if (null != this.task) {
+			schedule(delay);
+		}
+	}
+
+	/**
+	 * Builds the index and records the outcome.
+	 * 
+	 * @return The number of milliseconds until the next build.
+	 */
+	long refresh() {
+		try {
+			build();
+			this.failures = 0;
+			return REFRESH_INTERVAL;
+		} catch (CrowdException ex) {
+			LOG.log(Level.WARNING, "Failed to build the Crowd autocompletion index", ex);
+		} catch (RuntimeException ex) {
+			LOG.log(Level.WARNING, "Failed to build the Crowd autocompletion index", ex);
+		}
+		this.lastFailure = System.currentTimeMillis();
+		return getRetryDelay(++this.failures);
+	}
+
+	/**
+	 * Returns the delay before the next build after failed builds.
+	 * 
+	 * @param failures
+	 *            The number of builds that failed in a row.
+	 * @return The delay in milliseconds; never more than
+	 *         {@link #REFRESH_INTERVAL}.
+	 */
+	static long getRetryDelay(int failures) {
+		return Math.min(REFRESH_INTERVAL, RETRY_DELAY << Math.min(Math.max(failures - 1, 0), 20));
+	}
+
+	/**
+	 * Builds the index from the users and groups in Crowd.
+	 * 
+	 * @throws CrowdException
+	 *             If the users or groups couldn't be retrieved.
+	 */
+	void build() throws CrowdException {
+		long start = System.currentTimeMillis();
+		List<String[]> entries = new ArrayList<String[]>();
+
+		// the local user mirror already knows all users
+		CrowdUserDirectory directory = this.configuration.userDirectory;
+		CrowdUserDirectory.Snapshot snapshot = null != directory ? directory.getSnapshot() : null;
+		if (null != snapshot) {
+			for (int i = 0; i < snapshot.size(); i++) {
+				addUser(entries, snapshot.names[i], snapshot.displayNames[i]);
+			}
+		} else {
+			for (int index = 0;; index += PAGE_SIZE) {
+				List<User> page = crowdClient().searchUsers(NullRestrictionImpl.INSTANCE, index, PAGE_SIZE);
+				for (User user : page) {
+					addUser(entries, user.getName(), user.getDisplayName());
+				}
+				if (page.size() < PAGE_SIZE) {
+					break;
+				}
+			}
+		}
+
+		for (int index = 0;; index += PAGE_SIZE) {
+			List<String> page = crowdClient().searchGroupNames(NullRestrictionImpl.INSTANCE, index, PAGE_SIZE);
+			for (String group : page) {
+				entries.add(new String[] { CrowdIdentifiers.canonical(group), group });
+			}
+			if (page.size() < PAGE_SIZE) {
+				break;
+			}
+		}
+
+		this.index = Index.build(entries);
+		this.lastBuild = start;
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine("Built Crowd autocompletion index with " + entries.size() + " entries in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+
+	private CrowdClient crowdClient() {
+		return this.configuration.crowdClient;
+	}
+
+	/**
+	 * Adds the search keys of a user: the user name and every word of the
+	 * display name.
+	 */
+	private static void addUser(List<String[]> entries, String username, String displayName) {
+		String key = CrowdIdentifiers.canonical(username);
+		entries.add(new String[] { key, username });
+		if (null != displayName) {
+			for (String word : CrowdIdentifiers.canonical(displayName).split("\\s+")) {
+				if (word.length() > 0 && !word.equals(key)) {
+					entries.add(new String[] { word, username });
+				}
+			}
+		}
+	}
+
+	/**
+	 * An immutable prefix index: the search keys sorted in ascending order and
+	 * the user or group name each key belongs to.
+	 */
+	private static final class Index {
+		/** The search keys, sorted. */
+		final String[] keys;
+
+		/** The user or group name for each key. */
+		final String[] values;
+
+		Index(String[] pKeys, String[] pValues) {
+			this.keys = pKeys;
+			this.values = pValues;
+		}
+
+		static Index build(List<String[]> entries) {
+			Collections.sort(entries, new Comparator<String[]>() {
+				@Override
+				public int compare(String[] o1, String[] o2) {
+					return o1[0].compareTo(o2[0]);
+				}
+			});
+			String[] keys = new String[entries.size()];
+			String[] values = new String[entries.size()];
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = entries.get(i)[0];
+				values[i] = entries.get(i)[1];
+			}
+			return new Index(keys, values);
+		}
+
+		/**
+		 * Returns the names whose keys start with the given prefix.
+		 */
+		List<String> find(String prefix, int max) {
+			int i = Arrays.binarySearch(this.keys, prefix);
+			if (i < 0) {
+				// the insertion point is the first key greater than the
+				// prefix
+				i = -i - 1;
+			} else {
+				// several entries may have the same key
+				while (i > 0 && this.keys[i - 1].equals(prefix)) {
+					i--;
+				}
+			}
+			Set<String> result = new LinkedHashSet<String>();
+			for (; i < this.keys.length && result.size() < max && this.keys[i].startsWith(prefix); i++) {
+				result.add(this.values[i]);
+			}
+			return new ArrayList<String>(result);
+		}
+	}
+}
@@ -0,0 +1,905 @@
+/*
+ * @(#)CrowdTokenStore.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2011 Thorsten Heit.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import hudson.security.SecurityRealm;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.acegisecurity.Authentication;
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.GrantedAuthorityImpl;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * This class caches the state of the SSO tokens seen by the
+ * {@link CrowdServletFilter}: whether a token was validated with Crowd and the
+ * authentication created for it by the auto-login.
+ * <p>
+ * The tokens themselves are not stored. Each token is reduced to a 128-bit
+ * fingerprint (the first half of its SHA-256 hash), which is the key into
+ * open-addressing hash tables of primitive arrays. The tables are split into
+ * segments with separate locks. Validations expire a fixed time after they
+ * were stored, authentications a fixed time after they were last used.
+ * Expired entries are removed by a hierarchical timing wheel that is advanced
+ * once per second, so that no per-entry timers or scans are needed; reads
+ * check the expiry times themselves and never return expired state.
+ * <p>
+ * If a {@link CrowdOffHeapStore} is enabled, the authentications are also
+ * written to it, so that they survive when the table is full or the entry has
+ * expired from it. Authentications found there are valid for the same time
+ * after they were stored. Neither the credentials nor the SSO token are
+ * written; the entries are keyed by the fingerprint, and the token of the
+ * request is put back into an authentication read from there. Invalidating
+ * users doesn't search the off-heap store: an authentication read from there
+ * is ignored if its user was invalidated after it was stored.
+ * 
+ * @since 18.10.2026
+ * @version $Id$
+ */
+public class CrowdTokenStore {
+	/** Used for logging purposes. */
+	private static final Logger LOG = Logger.getLogger(CrowdTokenStore.class.getName());
+
+	/** The number of segments; must be a power of two. */
+	private static final int SEGMENTS = 16;
+
+	/** The initial number of slots per segment; must be a power of two. */
+	private static final int INITIAL_SLOTS = 64;
+
+	/** The length of a tick of the timing wheel in milliseconds. */
+	private static final long TICK = 1000L;
+
+	/** The estimated number of bytes per entry, including the timing wheel. */
+	private static final int BYTES_PER_ENTRY = 120;
+
+	/** The segments, selected by the upper bits of the fingerprint. */
+	private final Segment[] segments = new Segment[SEGMENTS];
+
+	/** The timing wheel used to remove expired entries. */
+	private final TimingWheel wheel = new TimingWheel(System.currentTimeMillis() / TICK);
+
+	/** The maximum number of tokens per segment. */
+	private final int maxEntriesPerSegment;
+
+	/** The number of milliseconds a validation is valid. */
+	private volatile long validationTtl;
+
+	/** The number of milliseconds an unused authentication is kept. */
+	private final long authenticationTtl;
+
+	/** The number of lookups that found the requested state. */
+	private final AtomicLong hits = new AtomicLong();
+
+	/** The number of lookups that didn't find the requested state. */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Encodes the authentications created by the auto-login for the
+	 * {@link CrowdOffHeapStore}.
+	 */
+	static final CrowdOffHeapStore.Codec<Authentication> AUTHENTICATIONS = new CrowdOffHeapStore.Codec<Authentication>() {
+		@Override
+		public void write(DataOutput out, Authentication value) throws IOException {
+			if (!(value instanceof CrowdAuthenticationToken) || !(value.getPrincipal() instanceof CrowdUser)) {
+				throw new IOException("Unsupported authentication: " + value.getClass().getName());
+			}
+			CrowdAuthenticationToken token = (CrowdAuthenticationToken) value;
+			CrowdUserSnapshot.CODEC.write(out, ((CrowdUser) token.getPrincipal()).getSnapshot());
+			GrantedAuthority[] authorities = token.getAuthorities();
+			out.writeInt(authorities.length);
+			for (GrantedAuthority authority : authorities) {
+				out.writeUTF(authority.getAuthority());
+			}
+		}
+
+		@Override
+		public Authentication read(DataInput in) throws IOException {
+			CrowdUserSnapshot user = CrowdUserSnapshot.CODEC.read(in);
+			int count = in.readInt();
+			List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>(count);
+			for (int i = 0; i < count; i++) {
+				String authority = in.readUTF();
+				authorities.add(SecurityRealm.AUTHENTICATED_AUTHORITY.getAuthority().equals(authority)
+						? SecurityRealm.AUTHENTICATED_AUTHORITY : new GrantedAuthorityImpl(authority));
+			}
+			// the SSO token is set by the caller, who knows it
+			return new CrowdAuthenticationToken(new CrowdUser(user, authorities), null, authorities, null);
+		}
+	};
+
+	/**
+	 * The second level for the authentications. <code>null</code> if the
+	 * off-heap store is disabled.
+	 */
+	private volatile CrowdOffHeapStore.Region<Authentication> secondLevel;
+
+	/**
+	 * When users were last invalidated, by their canonical names. Kept as long
+	 * as authentications stored before may be found in the second level.
+	 */
+	private final Cache<String, Long> invalidatedUsers;
+
+	/**
+	 * The number of invalidated users remembered; if more are invalidated,
+	 * the second level is cleared instead.
+	 */
+	private final int maxInvalidatedUsers;
+
+	/** The task advancing the timing wheel. */
+	private ScheduledFuture<?> expiryTask;
+
+	/**
+	 * Creates a new token store.
+	 * 
+	 * @param maxEntries
+	 *            The maximum number of tokens. Further tokens aren't cached
+	 *            until others have expired.
+	 * @param pValidationTtl
+	 *            The number of milliseconds a validation is valid.
+	 * @param pAuthenticationTtl
+	 *            The number of milliseconds an unused authentication is kept.
+	 */
+	public CrowdTokenStore(int maxEntries, long pValidationTtl, long pAuthenticationTtl) {
+		this.maxEntriesPerSegment = Math.max(1, maxEntries / SEGMENTS);
+		this.validationTtl = pValidationTtl;
+		this.authenticationTtl = pAuthenticationTtl;
+		this.maxInvalidatedUsers = Math.max(1, maxEntries);
+		this.invalidatedUsers = CacheBuilder.newBuilder()
+				.expireAfterWrite(pAuthenticationTtl, TimeUnit.MILLISECONDS).build();
+		for (int i = 0; i < SEGMENTS; i++) {
+			this.segments[i] = new Segment();
+		}
+	}
+
+	/**
+	 * Changes how long new validations are valid. Existing validations keep
+	 * their expiry.
+	 * 
+	 * @param ttl
+	 *            The number of milliseconds a validation is valid.
+	 */
+	void setValidationTtl(long ttl) {
+		this.validationTtl = ttl;
+	}
+
+	/**
+	 * Keeps the authentications also in an off-heap store.
+	 * 
+	 * @param region
+	 *            The region of the off-heap store for the authentications.
+	 *            May not be <code>null</code>.
+	 */
+	void setSecondLevel(CrowdOffHeapStore.Region<Authentication> region) {
+		this.secondLevel = region;
+	}
+
+	/**
+	 * Starts removing expired entries in the background.
+	 */
+	synchronized void start() {
+		if (null == this.expiryTask) {
+			this.expiryTask = CrowdExecutors.getScheduler().scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						expire(System.currentTimeMillis());
+					} catch (RuntimeException ex) {
+						LOG.log(Level.WARNING, "Failed to remove expired SSO tokens", ex);
+					}
+				}
+			}, TICK, TICK, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stops removing expired entries in the background.
+	 */
+	synchronized void stop() {
+		if (null != this.expiryTask) {
+			this.expiryTask.cancel(false);
+			this.expiryTask = null;
+		}
+	}
+
+	/**
+	 * Returns whether the token was validated with Crowd recently.
+	 * 
+	 * @param token
+	 *            The SSO token. May be <code>null</code>.
+	 * @return <code>true</code> if a validation is stored and not expired.
+	 */
+	public boolean isValidated(String token) {
+		if (null == token) {
+			return false;
+		}
+		long[] fingerprint = fingerprint(token);
+		boolean validated = segmentFor(fingerprint[0]).isValidated(fingerprint[0], fingerprint[1], System.currentTimeMillis());
+		(validated ? this.hits : this.misses).incrementAndGet();
+		return validated;
+	}
+
+	/**
+	 * Records that the token was validated with Crowd.
+	 * 
+	 * @param token
+	 *            The SSO token. May not be <code>null</code>.
+	 */
+	public void setValidated(String token) {
+		long[] fingerprint = fingerprint(token);
+		segmentFor(fingerprint[0]).setValidated(fingerprint[0], fingerprint[1], System.currentTimeMillis());
+	}
+
+	/**
+	 * Returns the authentication stored for the token and extends its
+	 * lifetime.
+	 * 
+	 * @param token
+	 *            The SSO token. May be <code>null</code>.
+	 * @return The authentication or <code>null</code> if none is stored or it
+	 *         has expired.
+	 */
+	public Authentication getAuthentication(String token) {
+		if (null == token) {
+			return null;
+		}
+		long[] fingerprint = fingerprint(token);
+		long now = System.currentTimeMillis();
+		Authentication auth = segmentFor(fingerprint[0]).getAuthentication(fingerprint[0], fingerprint[1], now);
+		CrowdOffHeapStore.Region<Authentication> region = this.secondLevel;
+		if (null == auth && null != region) {
+			CrowdOffHeapStore.Stored<Authentication> stored = region.get(secondLevelKey(fingerprint));
+			if (null != stored && now - stored.created < this.authenticationTtl) {
+				Long invalidated = this.invalidatedUsers
+						.getIfPresent(CrowdIdentifiers.canonical(stored.value.getName()));
+				if (null != invalidated && stored.created <= invalidated.longValue()) {
+					region.remove(secondLevelKey(fingerprint));
+				} else {
+					auth = withToken(stored.value, token);
+					segmentFor(fingerprint[0]).putAuthentication(fingerprint[0], fingerprint[1], auth, now);
+				}
+			}
+		}
+		(null != auth ? this.hits : this.misses).incrementAndGet();
+		return auth;
+	}
+
+	/**
+	 * Stores the authentication for the token.
+	 * 
+	 * @param token
+	 *            The SSO token. May not be <code>null</code>.
+	 * @param auth
+	 *            The authentication. May not be <code>null</code>.
+	 */
+	public void putAuthentication(String token, Authentication auth) {
+		long[] fingerprint = fingerprint(token);
+		long now = System.currentTimeMillis();
+		segmentFor(fingerprint[0]).putAuthentication(fingerprint[0], fingerprint[1], auth, now);
+		CrowdOffHeapStore.Region<Authentication> region = this.secondLevel;
+		if (null != region) {
+			region.put(secondLevelKey(fingerprint), auth, now);
+		}
+	}
+
+	/**
+	 * Removes everything stored for the token.
+	 * 
+	 * @param token
+	 *            The SSO token. May be <code>null</code>.
+	 */
+	public void invalidate(String token) {
+		if (null != token) {
+			long[] fingerprint = fingerprint(token);
+			segmentFor(fingerprint[0]).remove(fingerprint[0], fingerprint[1]);
+			CrowdOffHeapStore.Region<Authentication> region = this.secondLevel;
+			if (null != region) {
+				region.remove(secondLevelKey(fingerprint));
+			}
+		}
+	}
+
+	/**
+	 * Removes the tokens whose authentication belongs to one of the given
+	 * users. Their authentications in the off-heap store are ignored from now
+	 * on; the ones of other users are kept.
+	 * 
+	 * @param userKeys
+	 *            The canonical names of the users. May not be
+	 *            <code>null</code>.
+	 */
+	public void invalidateUsers(Set<String> userKeys) {
+		if (null != this.secondLevel) {
+			if (this.invalidatedUsers.size() + userKeys.size() > this.maxInvalidatedUsers) {
+				this.invalidatedUsers.invalidateAll();
+				clearSecondLevel();
+			} else {
+				Long now = Long.valueOf(System.currentTimeMillis());
+				for (String userKey : userKeys) {
+					this.invalidatedUsers.put(userKey, now);
+				}
+			}
+		}
+		for (Segment segment : this.segments) {
+			segment.removeUsers(userKeys);
+		}
+	}
+
+	/**
+	 * Removes all authentications but keeps the validations.
+	 */
+	public void clearAuthentications() {
+		for (Segment segment : this.segments) {
+			segment.clearAuthentications();
+		}
+		clearSecondLevel();
+	}
+
+	/**
+	 * Removes everything.
+	 */
+	public void clear() {
+		for (Segment segment : this.segments) {
+			segment.clear();
+		}
+		clearSecondLevel();
+	}
+
+	/**
+	 * Returns an authentication read from the off-heap store with the SSO
+	 * token it was found for.
+	 */
+	private static Authentication withToken(Authentication auth, String token) {
+		CrowdAuthenticationToken stored = (CrowdAuthenticationToken) auth;
+		return new CrowdAuthenticationToken((CrowdUser) stored.getPrincipal(), null,
+				Arrays.asList(stored.getAuthorities()), token);
+	}
+
+	private void clearSecondLevel() {
+		CrowdOffHeapStore.Region<Authentication> region = this.secondLevel;
+		if (null != region) {
+			region.clear();
+		}
+	}
+
+	/**
+	 * Counts the tokens of a user.
+	 * 
+	 * @param userKey
+	 *            The canonical name of the user. May not be <code>null</code>.
+	 * @return The number of tokens with an authentication of the user and the
+	 *         number of those that are also validated.
+	 */
+	public int[] countTokens(String userKey) {
+		int[] counts = new int[2];
+		long now = System.currentTimeMillis();
+		for (Segment segment : this.segments) {
+			segment.countTokens(userKey, now, counts);
+		}
+		return counts;
+	}
+
+	/**
+	 * Returns the number of stored tokens.
+	 * 
+	 * @return The number of tokens, including expired ones not yet removed.
+	 */
+	public int getSize() {
+		int size = 0;
+		for (Segment segment : this.segments) {
+			size += segment.size;
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the maximum number of stored tokens.
+	 * 
+	 * @return The capacity.
+	 */
+	public int getCapacity() {
+		return this.maxEntriesPerSegment * SEGMENTS;
+	}
+
+	/**
+	 * Returns a rough estimate of the memory used by the stored tokens.
+	 * 
+	 * @return The estimated number of bytes.
+	 */
+	public long getEstimatedBytes() {
+		return (long) getSize() * BYTES_PER_ENTRY;
+	}
+
+	/**
+	 * Returns the number of lookups that found the requested state.
+	 * 
+	 * @return The number of hits.
+	 */
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	/**
+	 * Returns the number of lookups that didn't find the requested state.
+	 * 
+	 * @return The number of misses.
+	 */
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	/**
+	 * Advances the timing wheel and removes the entries that have expired.
+	 * 
+	 * @param now
+	 *            The current time in milliseconds.
+	 */
+	void expire(long now) {
+		LongList due = this.wheel.advance(now / TICK);
+		int removed = 0;
+		for (int i = 0; i < due.size; i += 3) {
+			long hi = due.values[i];
+			if (segmentFor(hi).expire(hi, due.values[i + 1], due.values[i + 2], now)) {
+				removed++;
+			}
+		}
+		if (removed > 0 && LOG.isLoggable(Level.FINER)) {
+			LOG.finer("Removed " + removed + " expired SSO token(s)");
+		}
+	}
+
+	/**
+	 * Returns the key of a token in the off-heap store; the token itself is
+	 * not stored.
+	 */
+	private static String secondLevelKey(long[] fingerprint) {
+		return Long.toHexString(fingerprint[0]) + ':' + Long.toHexString(fingerprint[1]);
+	}
+
+	private Segment segmentFor(long hi) {
+		return this.segments[(int) (hi >>> 60) & (SEGMENTS - 1)];
+	}
+
+	/**
+	 * Returns the fingerprint of a token. The lower half is never 0 because
+	 * 0 marks empty slots.
+	 */
+	private static long[] fingerprint(String token) {
+		byte[] hash;
+		try {
+			hash = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException ex) {
+			// every JRE has to support SHA-256
+			throw new IllegalStateException(ex);
+		}
+		return new long[] { toLong(hash, 0), toLong(hash, 8) | 1L };
+	}
+
+	private static long toLong(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = offset; i < offset + 8; i++) {
+			value = (value << 8) | (bytes[i] & 0xFF);
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the tick at which an entry with the given expiry time is due.
+	 */
+	private static long tickOf(long time) {
+		return (time + TICK - 1) / TICK;
+	}
+
+	/**
+	 * A hash table of tokens with linear probing. Deleted entries are removed
+	 * by shifting the following entries back, so no tombstones are needed.
+	 */
+	private final class Segment {
+		/** The upper halves of the fingerprints. */
+		long[] his;
+
+		/** The lower halves of the fingerprints; 0 marks an empty slot. */
+		long[] los;
+
+		/** When the validation expires; 0 if the token isn't validated. */
+		long[] validUntil;
+
+		/** When the authentication expires; 0 if there is none. */
+		long[] authUntil;
+
+		/** The tick at which the entry is scheduled in the timing wheel. */
+		long[] wheelTicks;
+
+		/** The authentications. */
+		Authentication[] auths;
+
+		/** The number of used slots. */
+		volatile int size;
+
+		Segment() {
+			allocate(INITIAL_SLOTS);
+		}
+
+		private void allocate(int slots) {
+			this.his = new long[slots];
+			this.los = new long[slots];
+			this.validUntil = new long[slots];
+			this.authUntil = new long[slots];
+			this.wheelTicks = new long[slots];
+			this.auths = new Authentication[slots];
+			this.size = 0;
+		}
+
+		private int home(long lo) {
+			return (int) (lo ^ (lo >>> 32)) & (this.los.length - 1);
+		}
+
+		private int find(long hi, long lo) {
+			int mask = this.los.length - 1;
+			for (int i = home(lo); this.los[i] != 0; i = (i + 1) & mask) {
+				if (this.los[i] == lo && this.his[i] == hi) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Returns the slot of the entry, creating it if necessary.
+		 * 
+		 * @return The slot or <code>-1</code> if the segment is full.
+		 */
+		private int findOrCreate(long hi, long lo) {
+			int i = find(hi, lo);
+			if (i >= 0) {
+				return i;
+			}
+			if (this.size >= maxEntriesPerSegment) {
+				return -1;
+			}
+			if ((this.size + 1) * 2 > this.los.length) {
+				resize();
+			}
+			int mask = this.los.length - 1;
+			for (i = home(lo); this.los[i] != 0; i = (i + 1) & mask) {
+				// find the first empty slot
+			}
+			this.his[i] = hi;
+			this.los[i] = lo;
+			this.validUntil[i] = 0L;
+			this.authUntil[i] = 0L;
+			this.wheelTicks[i] = 0L;
+			this.auths[i] = null;
+			this.size++;
+			return i;
+		}
+
+		private void resize() {
+			long[] oldHis = this.his;
+			long[] oldLos = this.los;
+			long[] oldValidUntil = this.validUntil;
+			long[] oldAuthUntil = this.authUntil;
+			long[] oldWheelTicks = this.wheelTicks;
+			Authentication[] oldAuths = this.auths;
+			allocate(oldLos.length * 2);
+			int mask = this.los.length - 1;
+			for (int j = 0; j < oldLos.length; j++) {
+				if (oldLos[j] != 0) {
+					int i = home(oldLos[j]);
+					while (this.los[i] != 0) {
+						i = (i + 1) & mask;
+					}
+					this.his[i] = oldHis[j];
+					this.los[i] = oldLos[j];
+					this.validUntil[i] = oldValidUntil[j];
+					this.authUntil[i] = oldAuthUntil[j];
+					this.wheelTicks[i] = oldWheelTicks[j];
+					this.auths[i] = oldAuths[j];
+					this.size++;
+				}
+			}
+		}
+
+		/**
+		 * Removes the entry in the given slot and shifts the following
+		 * entries of the probe sequence back.
+		 */
+		private void removeAt(int i) {
+			int mask = this.los.length - 1;
+			int j = i;
+			while (true) {
+				this.los[i] = 0;
+				this.auths[i] = null;
+				while (true) {
+					j = (j + 1) & mask;
+					if (this.los[j] == 0) {
+						this.size--;
+						return;
+					}
+					int k = home(this.los[j]);
+					// the entry in j may stay if its home slot lies
+					// cyclically in (i, j]
+					boolean stays = i <= j ? (i < k && k <= j) : (i < k || k <= j);
+					if (!stays) {
+						break;
+					}
+				}
+				this.his[i] = this.his[j];
+				this.los[i] = this.los[j];
+				this.validUntil[i] = this.validUntil[j];
+				this.authUntil[i] = this.authUntil[j];
+				this.wheelTicks[i] = this.wheelTicks[j];
+				this.auths[i] = this.auths[j];
+				i = j;
+			}
+		}
+
+		private long deadline(int i) {
+			return Math.max(this.validUntil[i], null != this.auths[i] ? this.authUntil[i] : 0L);
+		}
+
+		/**
+		 * Schedules a new entry in the timing wheel.
+		 */
+		private void schedule(int i) {
+			if (0 == this.wheelTicks[i]) {
+				this.wheelTicks[i] = wheel.schedule(this.his[i], this.los[i], tickOf(deadline(i)));
+			}
+		}
+
+		synchronized boolean isValidated(long hi, long lo, long now) {
+			int i = find(hi, lo);
+			return i >= 0 && this.validUntil[i] > now;
+		}
+
+		synchronized void setValidated(long hi, long lo, long now) {
+			int i = findOrCreate(hi, lo);
+			if (i >= 0) {
+				this.validUntil[i] = now + validationTtl;
+				schedule(i);
+			}
+		}
+
+		synchronized Authentication getAuthentication(long hi, long lo, long now) {
+			int i = find(hi, lo);
+			if (i < 0 || null == this.auths[i] || this.authUntil[i] <= now) {
+				return null;
+			}
+			this.authUntil[i] = now + authenticationTtl;
+			return this.auths[i];
+		}
+
+		synchronized void putAuthentication(long hi, long lo, Authentication auth, long now) {
+			int i = findOrCreate(hi, lo);
+			if (i >= 0) {
+				this.auths[i] = auth;
+				this.authUntil[i] = now + authenticationTtl;
+				schedule(i);
+			}
+		}
+
+		synchronized void remove(long hi, long lo) {
+			int i = find(hi, lo);
+			if (i >= 0) {
+				removeAt(i);
+			}
+		}
+
+		/**
+		 * Called when the timing wheel reaches the tick of an entry.
+		 * 
+		 * @return <code>true</code> if the entry was removed.
+		 */
+		synchronized boolean expire(long hi, long lo, long tick, long now) {
+			int i = find(hi, lo);
+			if (i < 0 || this.wheelTicks[i] != tick) {
+				// removed or scheduled again in the meantime
+				return false;
+			}
+			long deadline = deadline(i);
+			if (deadline <= now) {
+				removeAt(i);
+				return true;
+			}
+			// the entry was used in the meantime
+			this.wheelTicks[i] = wheel.schedule(hi, lo, tickOf(deadline));
+			return false;
+		}
+
+		synchronized void removeUsers(Set<String> userKeys) {
+			int i = 0;
+			while (i < this.los.length) {
+				if (this.los[i] != 0 && null != this.auths[i]
+						&& userKeys.contains(CrowdIdentifiers.canonical(this.auths[i].getName()))) {
+					// another entry may have been shifted into this slot
+					removeAt(i);
+				} else {
+					i++;
+				}
+			}
+		}
+
+		synchronized void countTokens(String userKey, long now, int[] counts) {
+			for (int i = 0; i < this.los.length; i++) {
+				if (this.los[i] != 0 && null != this.auths[i]
+						&& userKey.equals(CrowdIdentifiers.canonical(this.auths[i].getName()))) {
+					counts[0]++;
+					if (this.validUntil[i] > now) {
+						counts[1]++;
+					}
+				}
+			}
+		}
+
+		synchronized void clearAuthentications() {
+			for (int i = 0; i < this.auths.length; i++) {
+				this.auths[i] = null;
+				this.authUntil[i] = 0L;
+			}
+		}
+
+		synchronized void clear() {
+			allocate(INITIAL_SLOTS);
+		}
+	}
+
+	/**
+	 * A hierarchical timing wheel with three levels of 64 slots each. The
+	 * first level has one slot per tick, each slot of the next level covers
+	 * all slots of the previous one. When the first level has gone round
+	 * once, the entries of the current slot of the second level are
+	 * distributed over the first level, and likewise for the third level.
+	 * Entries further in the future than the wheel reaches are put into the
+	 * farthest slot and scheduled again when it is due.
+	 */
+	private static final class TimingWheel {
+		/** The number of bits per level. */
+		private static final int BITS = 6;
+
+		/** The number of slots per level. */
+		private static final int SLOTS = 1 << BITS;
+
+		/** The number of levels. */
+		private static final int LEVELS = 3;
+
+		/** The number of ticks the wheel reaches into the future. */
+		private static final long SPAN = 1L << (BITS * LEVELS);
+
+		/** The entries per level and slot: fingerprint and tick. */
+		private final LongList[][] slots = new LongList[LEVELS][SLOTS];
+
+		/** The last tick that was processed. */
+		private long currentTick;
+
+		TimingWheel(long startTick) {
+			this.currentTick = startTick;
+			for (int level = 0; level < LEVELS; level++) {
+				for (int slot = 0; slot < SLOTS; slot++) {
+					this.slots[level][slot] = new LongList();
+				}
+			}
+		}
+
+		/**
+		 * Schedules an entry.
+		 * 
+		 * @return The tick the entry was scheduled for.
+		 */
+		synchronized long schedule(long hi, long lo, long tick) {
+			tick = Math.max(tick, this.currentTick + 1);
+			tick = Math.min(tick, this.currentTick + SPAN - 1);
+			insert(hi, lo, tick);
+			return tick;
+		}
+
+		private void insert(long hi, long lo, long tick) {
+			long delta = tick - this.currentTick;
+			int level = 0;
+			while (level < LEVELS - 1 && delta >= (1L << (BITS * (level + 1)))) {
+				level++;
+			}
+			int slot = (int) (tick >>> (BITS * level)) & (SLOTS - 1);
+			this.slots[level][slot].add(hi, lo, tick);
+		}
+
+		/**
+		 * Advances the wheel to the given tick.
+		 * 
+		 * @return The entries that are due: fingerprint and tick.
+		 */
+		synchronized LongList advance(long tick) {
+			LongList due = new LongList();
+			while (this.currentTick < tick) {
+				this.currentTick++;
+				// distribute the higher levels, starting with the highest
+				for (int level = LEVELS - 1; level > 0; level--) {
+					if ((this.currentTick & ((1L << (BITS * level)) - 1)) == 0) {
+						int slot = (int) (this.currentTick >>> (BITS * level)) & (SLOTS - 1);
+						LongList entries = this.slots[level][slot];
+						this.slots[level][slot] = new LongList();
+						for (int i = 0; i < entries.size; i += 3) {
+							insert(entries.values[i], entries.values[i + 1],
+									Math.max(entries.values[i + 2], this.currentTick));
+						}
+					}
+				}
+				int slot = (int) this.currentTick & (SLOTS - 1);
+				LongList entries = this.slots[0][slot];
+				if (entries.size > 0) {
+					this.slots[0][slot] = new LongList();
+					due.addAll(entries);
+				}
+			}
+			return due;
+		}
+	}
+
+	/**
+	 * A growable list of primitive longs, used in groups of three.
+	 */
+	private static final class LongList {
+		long[] values = new long[0];
+
+		int size;
+
+		void add(long a, long b, long c) {
+			ensureCapacity(this.size + 3);
+			this.values[this.size++] = a;
+			this.values[this.size++] = b;
+			this.values[this.size++] = c;
+		}
+
+		void addAll(LongList other) {
+			ensureCapacity(this.size + other.size);
+			System.arraycopy(other.values, 0, this.values, this.size, other.size);
+			this.size += other.size;
+		}
+
+		private void ensureCapacity(int capacity) {
+			if (capacity > this.values.length) {
+				long[] grown = new long[Math.max(capacity, this.values.length * 2)];
+				System.arraycopy(this.values, 0, grown, 0, this.size);
+				this.values = grown;
+			}
+		}
+	}
+}
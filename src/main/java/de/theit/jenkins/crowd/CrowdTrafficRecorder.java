@@ -0,0 +1,394 @@
+/*
+ * @(#)CrowdTrafficRecorder.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2011 Thorsten Heit.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.acegisecurity.userdetails.UserDetails;
+import org.kohsuke.stapler.Stapler;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * This class records the authentication traffic of the Crowd security realm
+ * to a compact binary trace file, so that it can be replayed with the
+ * <code>CrowdTrafficReplay</code> tool of the test sources to measure changes
+ * against the real workload.
+ * <p>
+ * Recording is disabled by default; it is enabled by setting the system
+ * property <code>de.theit.jenkins.crowd.CrowdTrafficRecorder.file</code> to
+ * the path of the trace file. Recording stops when the file reaches
+ * <code>maxBytes</code> (100 MB by default).
+ * <p>
+ * User names and SSO tokens are not written; instead they are replaced by
+ * hashes salted with a random value that is generated when the file is
+ * created and not stored anywhere. Reuse of the same user or token is thus
+ * visible within one file, but the names can't be recovered.
+ * <p>
+ * The file starts with {@link #MAGIC}, the format version and the start time.
+ * Each event consists of the entry point (one byte), the milliseconds since
+ * the previous event, the user hash and token hash (eight bytes each, 0 if
+ * unknown), the number of groups, the duration in microseconds, the number
+ * of Crowd calls and a success flag. Numbers except the hashes are stored as
+ * variable-length integers.
+ * 
+ * @since 18.10.2026
+ * @version $Id$
+ */
+public final class CrowdTrafficRecorder {
+	/** Used for logging purposes. */
+	private static final Logger LOG = Logger.getLogger(CrowdTrafficRecorder.class.getName());
+
+	/** The prefix for the system properties to configure the recorder. */
+	private static final String PROPERTY_PREFIX = CrowdTrafficRecorder.class.getName() + '.';
+
+	/** The file the traffic is recorded to; <code>null</code> if disabled. */
+	private static final String FILE = System.getProperty(PROPERTY_PREFIX + "file");
+
+	/** The maximum size of the trace file. */
+	private static final long MAX_BYTES = Long.getLong(PROPERTY_PREFIX + "maxBytes", 100L * 1024 * 1024);
+
+	/** The first bytes of a trace file. */
+	static final int MAGIC = 0x43525754;
+
+	/** The version of the file format. */
+	static final int VERSION = 1;
+
+	/** Entry point: request with an SSO cookie. */
+	static final int ENTRY_SSO = 1;
+
+	/** Entry point: login with user name and password via the login form. */
+	static final int ENTRY_FORM = 2;
+
+	/** Entry point: HTTP Basic authentication. */
+	static final int ENTRY_BASIC = 3;
+
+	/** The recorder; <code>null</code> if recording is disabled or has stopped. */
+	private static volatile CrowdTrafficRecorder instance = open();
+
+	/** The stream the events are written to. */
+	private final DataOutputStream out;
+
+	/** The salt for the hashes. */
+	private final byte[] salt;
+
+	/** When the previous event was recorded. */
+	private long previous;
+
+	/**
+	 * Creates a new recorder writing to the given stream.
+	 */
+	private CrowdTrafficRecorder(DataOutputStream pOut, byte[] pSalt, long start) {
+		this.out = pOut;
+		this.salt = pSalt;
+		this.previous = start;
+	}
+
+	/**
+	 * Opens the trace file if recording is enabled.
+	 */
+	private static CrowdTrafficRecorder open() {
+		if (null == FILE) {
+			return null;
+		}
+		try {
+			byte[] salt = new byte[16];
+			new SecureRandom().nextBytes(salt);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(FILE))));
+			long start = System.currentTimeMillis();
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeLong(start);
+			final CrowdTrafficRecorder recorder = new CrowdTrafficRecorder(out, salt, start);
+			CrowdExecutors.getScheduler().scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					recorder.flush();
+				}
+			}, 1L, 1L, TimeUnit.SECONDS);
+			LOG.info("Recording Crowd authentication traffic to " + FILE);
+			return recorder;
+		} catch (IOException ex) {
+			LOG.log(Level.WARNING, "Failed to open Crowd traffic recording " + FILE, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns whether the traffic is recorded.
+	 * 
+	 * @return <code>true</code> if recording is enabled.
+	 */
+	public static boolean isEnabled() {
+		return null != instance;
+	}
+
+	/**
+	 * Records a request with an SSO cookie.
+	 * 
+	 * @param username
+	 *            The name of the logged in user. May be <code>null</code>.
+	 * @param token
+	 *            The SSO token. May not be <code>null</code>.
+	 * @param groups
+	 *            The number of groups of the user.
+	 * @param start
+	 *            When the handling started, as returned by
+	 *            {@link System#nanoTime()}.
+	 * @param crowdCalls
+	 *            The number of calls to Crowd.
+	 * @param success
+	 *            Whether the token was valid.
+	 */
+	static void recordSso(String username, String token, int groups, long start, int crowdCalls, boolean success) {
+		CrowdTrafficRecorder recorder = instance;
+		if (null != recorder) {
+			recorder.write(ENTRY_SSO, username, token, groups, start, crowdCalls, success);
+		}
+	}
+
+	/**
+	 * Records a login with user name and password.
+	 * 
+	 * @param username
+	 *            The user name. May not be <code>null</code>.
+	 * @param details
+	 *            The logged in user or <code>null</code> if the login failed.
+	 * @param start
+	 *            When the login started, as returned by
+	 *            {@link System#nanoTime()}.
+	 * @param crowdCalls
+	 *            The number of calls to Crowd.
+	 */
+	static void recordLogin(String username, UserDetails details, long start, int crowdCalls) {
+		CrowdTrafficRecorder recorder = instance;
+		if (null != recorder) {
+			StaplerRequest request = Stapler.getCurrentRequest();
+			String authorization = null != request ? request.getHeader("Authorization") : null;
+			int entry = null != authorization && authorization.regionMatches(true, 0, "Basic ", 0, 6) ? ENTRY_BASIC
+					: ENTRY_FORM;
+			// the authorities contain the "authenticated" authority
+			int groups = null != details ? Math.max(0, details.getAuthorities().length - 1) : 0;
+			recorder.write(entry, username, null, groups, start, crowdCalls, null != details);
+		}
+	}
+
+	private synchronized void write(int entry, String username, String token, int groups, long start,
+			int crowdCalls, boolean success) {
+		long now = System.currentTimeMillis();
+		try {
+			this.out.writeByte(entry);
+			writeVarLong(this.out, Math.max(0, now - this.previous));
+			this.out.writeLong(hash(null != username ? CrowdIdentifiers.canonical(username) : null));
+			this.out.writeLong(hash(token));
+			writeVarLong(this.out, groups);
+			writeVarLong(this.out, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+			writeVarLong(this.out, crowdCalls);
+			this.out.writeBoolean(success);
+			this.previous = now;
+			if (this.out.size() >= MAX_BYTES) {
+				LOG.info("Crowd traffic recording reached its maximum size; recording stopped");
+				close();
+			}
+		} catch (IOException ex) {
+			LOG.log(Level.WARNING, "Failed to record Crowd traffic; recording stopped", ex);
+			close();
+		}
+	}
+
+	private synchronized void flush() {
+		try {
+			this.out.flush();
+		} catch (IOException ex) {
+			LOG.log(Level.WARNING, "Failed to write Crowd traffic recording", ex);
+		}
+	}
+
+	private synchronized void close() {
+		instance = null;
+		try {
+			this.out.close();
+		} catch (IOException ex) {
+			LOG.log(Level.FINE, "Failed to close Crowd traffic recording", ex);
+		}
+	}
+
+	/**
+	 * Returns the salted hash of a user name or token.
+	 * 
+	 * @return The hash; never 0. 0 if <code>value</code> is <code>null</code>.
+	 */
+	private long hash(String value) {
+		if (null == value) {
+			return 0L;
+		}
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(this.salt);
+			byte[] bytes = digest.digest(value.getBytes(StandardCharsets.UTF_8));
+			long result = 0L;
+			for (int i = 0; i < 8; i++) {
+				result = (result << 8) | (bytes[i] & 0xff);
+			}
+			return 0L != result ? result : 1L;
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+		while ((value & ~0x7fL) != 0) {
+			out.writeByte((int) (value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private static long readVarLong(DataInput in) throws IOException {
+		long value = 0L;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed variable-length integer");
+	}
+
+	/**
+	 * An event read from a trace file.
+	 */
+	static final class Event {
+		/** The entry point, one of the <code>ENTRY_</code> constants. */
+		int entry;
+
+		/** When the event happened, in milliseconds since the start of the recording. */
+		long offset;
+
+		/** The hash of the user name; 0 if unknown. */
+		long user;
+
+		/** The hash of the SSO token; 0 if none. */
+		long token;
+
+		/** The number of groups of the user. */
+		int groups;
+
+		/** The recorded duration in microseconds. */
+		long micros;
+
+		/** The number of Crowd calls. */
+		int crowdCalls;
+
+		/** Whether the authentication succeeded. */
+		boolean success;
+	}
+
+	/**
+	 * Reads the events of a trace file.
+	 */
+	static final class Reader {
+		/** The stream to read from. */
+		private final DataInputStream in;
+
+		/** The start time of the recording. */
+		private final long start;
+
+		/** The offset of the previous event. */
+		private long offset;
+
+		/**
+		 * Opens a trace.
+		 * 
+		 * @param pIn
+		 *            The stream with the trace. May not be <code>null</code>.
+		 * @throws IOException
+		 *             If the stream isn't a trace of a supported version.
+		 */
+		Reader(InputStream pIn) throws IOException {
+			this.in = new DataInputStream(pIn);
+			if (this.in.readInt() != MAGIC) {
+				throw new IOException("Not a Crowd traffic recording");
+			}
+			int version = this.in.readUnsignedByte();
+			if (version != VERSION) {
+				throw new IOException("Unsupported recording version " + version);
+			}
+			this.start = this.in.readLong();
+		}
+
+		/**
+		 * Returns the start time of the recording.
+		 * 
+		 * @return The time in milliseconds since the epoch.
+		 */
+		long getStart() {
+			return this.start;
+		}
+
+		/**
+		 * Reads the next event.
+		 * 
+		 * @return The event or <code>null</code> at the end of the trace.
+		 * @throws IOException
+		 *             If the trace can't be read.
+		 */
+		Event next() throws IOException {
+			Event event = new Event();
+			try {
+				event.entry = this.in.readUnsignedByte();
+				this.offset += readVarLong(this.in);
+				event.offset = this.offset;
+				event.user = this.in.readLong();
+				event.token = this.in.readLong();
+				event.groups = (int) readVarLong(this.in);
+				event.micros = readVarLong(this.in);
+				event.crowdCalls = (int) readVarLong(this.in);
+				event.success = this.in.readBoolean();
+			} catch (EOFException ex) {
+				// end of the trace; a recording that wasn't closed may end
+				// with an incomplete event
+				return null;
+			}
+			return event;
+		}
+	}
+}
@@ -0,0 +1,300 @@
+/*
+ * @(#)CrowdTtlController.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2011 Thorsten Heit.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.atlassian.crowd.exception.OperationFailedException;
+
+/**
+ * This class adapts the expiry of the caches of a
+ * {@link CrowdConfigurationService} to the health of the Crowd server. It
+ * watches the latency and error rate of the Crowd calls made while serving
+ * HTTP requests, and probes the server in the background so that the figures
+ * stay current while Jenkins is idle. Calls of background work like bulk
+ * synchronisations or refreshes aren't counted; a slow bulk call says nothing
+ * about how long users wait for Crowd.
+ * <p>
+ * From both figures a pressure between 0 (healthy) and 1 (struggling) is
+ * derived. The time-to-live of cached users, groups and memberships is scaled
+ * between the configured minimum and maximum according to this pressure. The
+ * minimum defaults to the 15 minutes the caches used before, so the
+ * time-to-live only ever extends beyond that while Crowd struggles; it never
+ * tightens unless an administrator lowers the minimum.
+ * <p>
+ * While Crowd is healthy, entries that are used after
+ * {@link #HEALTHY_REFRESH_AHEAD} of their time-to-live are reloaded in the
+ * background, so a user never waits for the reload of an expired entry. This
+ * costs Crowd calls: with the default of 75% an entry that is used all the
+ * time is reloaded about every 11 minutes instead of every 15 minutes. At full
+ * pressure refreshing ahead stops. The validation of SSO tokens is stretched
+ * up to {@link #TOKEN_STRESS_FACTOR} times the session validation interval.
+ * 
+ * @since 18.10.2026
+ * @version $Id$
+ */
+public class CrowdTtlController implements CrowdCallTracer.CallListener {
+	/** Used for logging purposes. */
+	private static final Logger LOG = Logger.getLogger(CrowdTtlController.class.getName());
+
+	/** The prefix for the system properties to configure the controller. */
+	private static final String PROPERTY_PREFIX = CrowdTtlController.class.getName() + '.';
+
+	/**
+	 * The time-to-live of cache entries in milliseconds while Crowd is
+	 * healthy. Defaults to the 15 minutes the caches used before the
+	 * controller existed; administrators may choose a shorter time to pick up
+	 * changes in Crowd sooner at the expense of more Crowd calls.
+	 */
+	static final long MIN_TTL = Long.getLong(PROPERTY_PREFIX + "minTtl", TimeUnit.MINUTES.toMillis(15));
+
+	/** The time-to-live of cache entries in milliseconds while Crowd struggles. */
+	static final long MAX_TTL = Math.max(MIN_TTL,
+			Long.getLong(PROPERTY_PREFIX + "maxTtl", TimeUnit.MINUTES.toMillis(60)));
+
+	/** The latency in milliseconds up to which Crowd is considered healthy. */
+	private static final long HEALTHY_LATENCY = Long.getLong(PROPERTY_PREFIX + "healthyLatency", 100L);
+
+	/** The latency in milliseconds at which Crowd is considered struggling. */
+	private static final long STRESSED_LATENCY = Math.max(HEALTHY_LATENCY + 1,
+			Long.getLong(PROPERTY_PREFIX + "stressedLatency", 2000L));
+
+	/** The error rate in percent at which Crowd is considered struggling. */
+	private static final int STRESSED_ERROR_PERCENT = Integer.getInteger(PROPERTY_PREFIX + "stressedErrorPercent", 25);
+
+	/**
+	 * The factor by which the validation interval of SSO tokens is stretched
+	 * at full pressure.
+	 */
+	private static final int TOKEN_STRESS_FACTOR = Integer.getInteger(PROPERTY_PREFIX + "tokenStressFactor", 2);
+
+	/** The number of milliseconds between two health probes. */
+	private static final long PROBE_INTERVAL = Long.getLong(PROPERTY_PREFIX + "probeInterval", 30000L);
+
+	/**
+	 * The part of the time-to-live in percent after which used entries are
+	 * refreshed while Crowd is healthy. <code>100</code> disables refreshing
+	 * ahead.
+	 */
+	private static final double HEALTHY_REFRESH_AHEAD = Math.max(0,
+			Math.min(100, Integer.getInteger(PROPERTY_PREFIX + "refreshAheadPercent", 75))) / 100.0;
+
+	/** The weight of a new sample in the moving averages. */
+	private static final double ALPHA = 0.05;
+
+	/** The configuration whose caches are controlled. */
+	private final CrowdConfigurationService configuration;
+
+	/** The moving average of the latency in milliseconds. */
+	private volatile double latency;
+
+	/** The moving average of the error rate between 0 and 1. */
+	private volatile double errorRate;
+
+	/** Whether any call was observed yet. */
+	private boolean observed;
+
+	/** The periodic health probe. */
+	private ScheduledFuture<?> probeTask;
+
+	/**
+	 * Creates a new controller.
+	 * 
+	 * @param pConfiguration
+	 *            The configuration whose caches are controlled. May not be
+	 *            <code>null</code>.
+	 */
+	public CrowdTtlController(CrowdConfigurationService pConfiguration) {
+		this.configuration = pConfiguration;
+	}
+
+	/**
+	 * Starts the periodic health probe.
+	 */
+	synchronized void start() {
+		if (null == this.probeTask) {
+			this.probeTask = CrowdExecutors.getScheduler().scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					// a probe dropped on a saturated executor is simply
+					// repeated with the next period
+					CrowdExecutors.execute(new Runnable() {
+						@Override
+						public void run() {
+							probe();
+						}
+					});
+				}
+			}, PROBE_INTERVAL, PROBE_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stops the periodic health probe.
+	 */
+	synchronized void stop() {
+		if (null != this.probeTask) {
+			this.probeTask.cancel(false);
+			this.probeTask = null;
+		}
+	}
+
+	/**
+	 * Sends a cheap request to Crowd and records its outcome. Afterwards the
+	 * validation interval of the SSO tokens is adjusted.
+	 */
+	void probe() {
+		long start = System.nanoTime();
+		boolean failed = false;
+		try {
+			this.configuration.crowdClient.testConnection();
+		} catch (Exception ex) {
+			failed = ex instanceof OperationFailedException || ex instanceof RuntimeException;
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("Crowd health probe failed: " + ex);
+			}
+		}
+		record(System.nanoTime() - start, failed);
+		if (null != this.configuration.tokenStore) {
+			this.configuration.tokenStore.setValidationTtl(getTokenTtl());
+		}
+		if (LOG.isLoggable(Level.FINER)) {
+			LOG.finer("Crowd pressure " + getPressurePercent() + "%, cache TTL " + getCacheTtl() + " ms");
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Only the calls made while serving an HTTP request are recorded.
+	 * 
+	 * @see de.theit.jenkins.crowd.CrowdCallTracer.CallListener#callCompleted(java.lang.String,
+	 *      long, boolean)
+	 */
+	@Override
+	public void callCompleted(String operation, long nanos, boolean failed) {
+		if (CrowdCallTracer.isTracing()) {
+			record(nanos, failed);
+		}
+	}
+
+	/**
+	 * Adds a call to the moving averages.
+	 */
+	synchronized void record(long nanos, boolean failed) {
+		double millis = nanos / 1e6;
+		if (this.observed) {
+			this.latency = ALPHA * millis + (1 - ALPHA) * this.latency;
+			this.errorRate = ALPHA * (failed ? 1 : 0) + (1 - ALPHA) * this.errorRate;
+		} else {
+			this.observed = true;
+			this.latency = millis;
+			this.errorRate = failed ? 1 : 0;
+		}
+	}
+
+	/**
+	 * Returns how much Crowd struggles.
+	 * 
+	 * @return The pressure between 0 (healthy) and 1 (struggling).
+	 */
+	public double getPressure() {
+		double latencyPressure = (this.latency - HEALTHY_LATENCY) / (STRESSED_LATENCY - HEALTHY_LATENCY);
+		double errorPressure = this.errorRate * 100 / Math.max(1, STRESSED_ERROR_PERCENT);
+		return Math.max(0, Math.min(1, Math.max(latencyPressure, errorPressure)));
+	}
+
+	/**
+	 * Returns how much Crowd struggles in percent.
+	 * 
+	 * @return The pressure between 0 and 100.
+	 */
+	public long getPressurePercent() {
+		return Math.round(getPressure() * 100);
+	}
+
+	/**
+	 * Returns the moving average of the latency of the Crowd calls.
+	 * 
+	 * @return The latency in milliseconds.
+	 */
+	public long getLatency() {
+		return Math.round(this.latency);
+	}
+
+	/**
+	 * Returns the moving average of the error rate of the Crowd calls.
+	 * 
+	 * @return The error rate in percent.
+	 */
+	public long getErrorPercent() {
+		return Math.round(this.errorRate * 100);
+	}
+
+	/**
+	 * Returns the current time-to-live of cached users, groups and
+	 * memberships.
+	 * 
+	 * @return The time-to-live in milliseconds.
+	 */
+	public long getCacheTtl() {
+		return MIN_TTL + Math.round(getPressure() * (MAX_TTL - MIN_TTL));
+	}
+
+	/**
+	 * Returns the time-to-live of cached users, groups and memberships while
+	 * Crowd is healthy. The time-to-live never drops below it.
+	 * 
+	 * @return The time-to-live in milliseconds.
+	 */
+	public long getMinCacheTtl() {
+		return MIN_TTL;
+	}
+
+	/**
+	 * Returns the part of the time-to-live after which a used entry is
+	 * refreshed in the background.
+	 * 
+	 * @return The part between {@link #HEALTHY_REFRESH_AHEAD} and 1; 1 means
+	 *         entries aren't refreshed ahead.
+	 */
+	public double getRefreshAhead() {
+		return HEALTHY_REFRESH_AHEAD + getPressure() * (1 - HEALTHY_REFRESH_AHEAD);
+	}
+
+	/**
+	 * Returns the current validation interval of SSO tokens.
+	 * 
+	 * @return The interval in milliseconds.
+	 */
+	public long getTokenTtl() {
+		long interval = TimeUnit.MINUTES.toMillis(this.configuration.clientProperties.getSessionValidationInterval());
+		return interval + Math.round(getPressure() * interval * (Math.max(1, TOKEN_STRESS_FACTOR) - 1));
+	}
+}
@@ -30,8 +30,6 @@ import java.util.List;
 import org.acegisecurity.GrantedAuthority;
 import org.acegisecurity.userdetails.UserDetails;
 
-import com.atlassian.crowd.model.user.User;
-
 /**
  * This class provides the information about a user that was authenticated
  * successfully against a remote Crowd server.
@@ -47,19 +45,24 @@ public class CrowdUser implements UserDetails {
 	/** Stores the granted authorities. */
 	private List<GrantedAuthority> grantedAuthorities;
 
-	/** Holds the Crowd user object. */
-	private transient User user;
+	/**
+	 * Holds the attributes of the Crowd user. This is deliberately not
+	 * transient: the snapshot is small and serializable, so a passivated
+	 * session keeps its user and needs no Crowd round trip after being
+	 * restored.
+	 */
+	private final CrowdUserSnapshot user;
 
 	/**
 	 * Creates a new instance.
 	 * 
 	 * @param pUser
-	 *            Crowd user object. May not be <code>null</code>.
+	 *            The attributes of the Crowd user. May not be <code>null</code>.
 	 * @param authorities
 	 *            The granted authorities of the user. May not be
 	 *            <code>null</code>.
 	 */
-	public CrowdUser(User pUser, List<GrantedAuthority> authorities) {
+	public CrowdUser(CrowdUserSnapshot pUser, List<GrantedAuthority> authorities) {
 		this.grantedAuthorities = authorities;
 		this.user = pUser;
 	}
@@ -143,4 +146,13 @@ public class CrowdUser implements UserDetails {
 	public String getEmailAddress() {
 		return this.user.getEmailAddress();
 	}
+
+	/**
+	 * Returns the attributes of the Crowd user.
+	 * 
+	 * @return The attributes. Never <code>null</code>.
+	 */
+	CrowdUserSnapshot getSnapshot() {
+		return this.user;
+	}
 }
@@ -39,7 +39,6 @@ import org.acegisecurity.userdetails.UsernameNotFoundException;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DataRetrievalFailureException;
 
-import com.atlassian.crowd.model.user.User;
 
 /**
  * This class provides the service to load a user object from the remote Crowd
@@ -88,7 +87,7 @@ public class CrowdUserDetailsService implements UserDetailsService {
                         this.configuration.allowedGroupNames));
             }
         }
-		User user = this.configuration.getUser(username);
+		CrowdUserSnapshot user = this.configuration.getUser(username);
 
 		// create the list of granted authorities
 		List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>();
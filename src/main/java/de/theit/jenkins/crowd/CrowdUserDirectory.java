@@ -0,0 +1,519 @@
+/*
+ * @(#)CrowdUserDirectory.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2011 Thorsten Heit.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.atlassian.crowd.exception.CrowdException;
+import com.atlassian.crowd.exception.EventTokenExpiredException;
+import com.atlassian.crowd.model.event.Events;
+import com.atlassian.crowd.model.event.Operation;
+import com.atlassian.crowd.model.event.OperationEvent;
+import com.atlassian.crowd.model.event.UserEvent;
+import com.atlassian.crowd.model.user.User;
+import com.atlassian.crowd.search.query.entity.restriction.NullRestrictionImpl;
+import com.atlassian.crowd.service.client.CrowdClient;
+
+/**
+ * This class holds a local mirror of all users of the remote Crowd server, so
+ * that users and their email addresses can be looked up without asking
+ * Crowd. The mirror is built by paging through all users and then kept
+ * current in the background using Crowd's incremental synchronisation
+ * events; if those are not available, the mirror is rebuilt periodically.
+ * <p>
+ * The users are stored in a columnar layout: one sorted array per attribute
+ * with equal strings shared between the arrays. Incremental changes are
+ * merged into a copy of the arrays; the unchanged users are copied in runs
+ * without creating any objects for them. Lookups are only answered while the
+ * mirror is not older than {@link #MAX_STALENESS}.
+ * <p>
+ * The mirror is disabled by default; it is enabled with the system property
+ * <code>de.theit.jenkins.crowd.CrowdUserDirectory.enabled=true</code>.
+ * 
+ * @since 18.10.2026
+ * @version $Id$
+ */
+public class CrowdUserDirectory {
+	/** Used for logging purposes. */
+	private static final Logger LOG = Logger.getLogger(CrowdUserDirectory.class.getName());
+
+	/** The prefix for the system properties to configure the mirror. */
+	private static final String PROPERTY_PREFIX = CrowdUserDirectory.class.getName() + '.';
+
+	/** Whether the mirror is enabled. */
+	static final boolean ENABLED = Boolean.getBoolean(PROPERTY_PREFIX + "enabled");
+
+	/** The number of milliseconds between incremental synchronisations. */
+	private static final long SYNC_INTERVAL = Long.getLong(PROPERTY_PREFIX + "syncInterval", TimeUnit.MINUTES.toMillis(1));
+
+	/** The number of milliseconds after which the mirror is rebuilt completely. */
+	private static final long FULL_SYNC_INTERVAL = Long.getLong(PROPERTY_PREFIX + "fullSyncInterval", TimeUnit.HOURS.toMillis(6));
+
+	/**
+	 * The maximum age of the mirror in milliseconds. Older mirrors are not
+	 * used for lookups.
+	 */
+	static final long MAX_STALENESS = Long.getLong(PROPERTY_PREFIX + "maxStaleness", TimeUnit.MINUTES.toMillis(15));
+
+	/** The number of users retrieved per request. */
+	private static final int PAGE_SIZE = 1000;
+
+	/** The configuration to access the remote Crowd server. */
+	private final CrowdConfigurationService configuration;
+
+	/** The current mirror. <code>null</code> until the first synchronisation. */
+	private volatile Snapshot snapshot;
+
+	/**
+	 * The token for the next incremental synchronisation. <code>null</code> if
+	 * incremental synchronisation isn't possible.
+	 */
+	private volatile String eventToken;
+
+	/** When the mirror was last synchronised successfully. */
+	private volatile long lastSync;
+
+	/** When the mirror was last rebuilt completely. */
+	private volatile long lastFullSync;
+
+	/** Whether a synchronisation is currently running. */
+	private final AtomicBoolean syncing = new AtomicBoolean();
+
+	/** The periodic synchronisation task. */
+	private ScheduledFuture<?> task;
+
+	/**
+	 * Creates a new mirror.
+	 * 
+	 * @param pConfiguration
+	 *            The configuration to access the services on the remote Crowd
+	 *            server. May not be <code>null</code>.
+	 */
+	public CrowdUserDirectory(CrowdConfigurationService pConfiguration) {
+		this.configuration = pConfiguration;
+	}
+
+	/**
+	 * Starts the periodic synchronisation.
+	 */
+	synchronized void start() {
+		if (null == this.task) {
+			this.task = CrowdExecutors.getScheduler().scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					syncInBackground();
+				}
+			}, 0L, SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stops the periodic synchronisation.
+	 */
+	synchronized void stop() {
+		if (null != this.task) {
+			this.task.cancel(false);
+			this.task = null;
+		}
+	}
+
+	/**
+	 * Looks up a user in the mirror.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @return The user or <code>null</code> if the user isn't known or the
+	 *         mirror is too old to be used.
+	 */
+	public CrowdUserSnapshot getUser(String username) {
+		Snapshot current = getFreshSnapshot();
+		if (null == current) {
+			return null;
+		}
+		int index = current.indexOf(username);
+		return index >= 0 ? current.toSnapshot(index) : null;
+	}
+
+	/**
+	 * Looks up the email address of a user in the mirror.
+	 * 
+	 * @param username
+	 *            The name of the user. May not be <code>null</code>.
+	 * @return The email address or <code>null</code> if the user isn't known or
+	 *         the mirror is too old to be used.
+	 */
+	public String getEmailAddress(String username) {
+		Snapshot current = getFreshSnapshot();
+		if (null == current) {
+			return null;
+		}
+		int index = current.indexOf(username);
+		return index >= 0 ? current.emails[index] : null;
+	}
+
+	/**
+	 * Returns the number of users in the mirror.
+	 * 
+	 * @return The number of users.
+	 */
+	public int getUserCount() {
+		Snapshot current = this.snapshot;
+		return null != current ? current.size() : 0;
+	}
+
+	/**
+	 * Returns the age of the mirror.
+	 * 
+	 * @return The number of milliseconds since the last successful
+	 *         synchronisation, <code>-1</code> if there was none.
+	 */
+	public long getStaleness() {
+		long sync = this.lastSync;
+		return sync > 0 ? System.currentTimeMillis() - sync : -1;
+	}
+
+	/**
+	 * Returns the maximum age of the mirror for lookups.
+	 * 
+	 * @return The maximum age in milliseconds.
+	 */
+	public long getMaxStaleness() {
+		return MAX_STALENESS;
+	}
+
+	/**
+	 * Returns whether the mirror is kept current with incremental
+	 * synchronisation.
+	 * 
+	 * @return <code>true</code> if incremental synchronisation is used.
+	 */
+	public boolean isIncremental() {
+		return null != this.eventToken;
+	}
+
+	/**
+	 * Returns the snapshot of all mirrored users.
+	 * 
+	 * @return The snapshot or <code>null</code> if the mirror hasn't been
+	 *         synchronised yet.
+	 */
+	Snapshot getSnapshot() {
+		return this.snapshot;
+	}
+
+	private Snapshot getFreshSnapshot() {
+		Snapshot current = this.snapshot;
+		if (null == current || System.currentTimeMillis() - this.lastSync > MAX_STALENESS) {
+			return null;
+		}
+		return current;
+	}
+
+	/**
+	 * Synchronises the mirror unless a synchronisation is already running.
+	 */
+	private void syncInBackground() {
+		if (!this.syncing.compareAndSet(false, true)) {
+			return;
+		}
+		if (!CrowdExecutors.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sync();
+				} catch (RuntimeException ex) {
+					LOG.log(Level.WARNING, "Failed to synchronise the Crowd user mirror", ex);
+				} finally {
+					syncing.set(false);
+				}
+			}
+		})) {
+			syncing.set(false);
+		}
+	}
+
+	/**
+	 * Synchronises the mirror incrementally if possible, else rebuilds it
+	 * completely.
+	 */
+	void sync() {
+		long now = System.currentTimeMillis();
+		try {
+			if (null != this.snapshot && null != this.eventToken && now - this.lastFullSync < FULL_SYNC_INTERVAL) {
+				try {
+					syncIncrementally();
+					return;
+				} catch (EventTokenExpiredException ex) {
+					LOG.fine("Crowd event token expired; rebuilding the user mirror");
+				}
+			} else if (null != this.snapshot && null == this.eventToken && now - this.lastFullSync < FULL_SYNC_INTERVAL) {
+				// no incremental synchronisation available => wait for the
+				// next complete rebuild
+				return;
+			}
+			syncCompletely();
+		} catch (CrowdException ex) {
+			LOG.log(Level.WARNING, "Failed to synchronise the Crowd user mirror", ex);
+		}
+	}
+
+	/**
+	 * Rebuilds the mirror by retrieving all users.
+	 * 
+	 * @throws CrowdException
+	 *             If the users couldn't be retrieved.
+	 */
+	private void syncCompletely() throws CrowdException {
+		CrowdClient client = this.configuration.crowdClient;
+		long start = System.currentTimeMillis();
+
+		// get the event token first so that no change is lost while paging
+		String token;
+		try {
+			token = client.getCurrentEventToken();
+		} catch (CrowdException ex) {
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("Incremental synchronisation not available: " + ex.getMessage());
+			}
+			token = null;
+		}
+
+		Map<String, CrowdUserSnapshot> users = new TreeMap<String, CrowdUserSnapshot>();
+		int index = 0;
+		while (true) {
+			List<User> page = client.searchUsers(NullRestrictionImpl.INSTANCE, index, PAGE_SIZE);
+			if (null == page || page.isEmpty()) {
+				break;
+			}
+			for (User user : page) {
+				users.put(CrowdIdentifiers.canonical(user.getName()), CrowdUserSnapshot.of(user));
+			}
+			if (page.size() < PAGE_SIZE) {
+				break;
+			}
+			index += PAGE_SIZE;
+		}
+
+		this.snapshot = Snapshot.build(users);
+		this.eventToken = token;
+		this.lastSync = start;
+		this.lastFullSync = start;
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine("Mirrored " + users.size() + " Crowd users in " + (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+
+	/**
+	 * Applies the changes since the last synchronisation to the mirror.
+	 * 
+	 * @throws EventTokenExpiredException
+	 *             If the changes are not available anymore.
+	 * @throws CrowdException
+	 *             If the changes couldn't be retrieved.
+	 */
+	private void syncIncrementally() throws CrowdException {
+		long start = System.currentTimeMillis();
+		Events events = this.configuration.crowdClient.getNewEvents(this.eventToken);
+
+		SortedMap<String, CrowdUserSnapshot> changed = new TreeMap<String, CrowdUserSnapshot>();
+		for (OperationEvent event : events.getEvents()) {
+			if (event instanceof UserEvent) {
+				User user = ((UserEvent) event).getUser();
+				// a deleted user is recorded as null
+				changed.put(CrowdIdentifiers.canonical(user.getName()),
+						event.getOperation() == Operation.DELETED ? null : CrowdUserSnapshot.of(user));
+			}
+		}
+
+		if (!changed.isEmpty()) {
+			this.snapshot = this.snapshot.withChanges(changed);
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("Applied " + changed.size() + " user change(s) to the Crowd user mirror");
+			}
+		}
+		this.eventToken = events.getNewEventToken();
+		this.lastSync = start;
+	}
+
+	/**
+	 * An immutable, columnar copy of all mirrored users, sorted by their
+	 * canonical name.
+	 */
+	static final class Snapshot {
+		/** The canonical user names, sorted. */
+		final String[] keys;
+
+		/** The user names as stored in Crowd. */
+		final String[] names;
+
+		/** The display names. */
+		final String[] displayNames;
+
+		/** The email addresses. */
+		final String[] emails;
+
+		/** The active flags. */
+		final BitSet active;
+
+		private Snapshot(int size) {
+			this.keys = new String[size];
+			this.names = new String[size];
+			this.displayNames = new String[size];
+			this.emails = new String[size];
+			this.active = new BitSet(size);
+		}
+
+		/**
+		 * Builds a snapshot.
+		 * 
+		 * @param users
+		 *            The users by canonical name, sorted. May not be
+		 *            <code>null</code>.
+		 * @return The snapshot. Never <code>null</code>.
+		 */
+		static Snapshot build(Map<String, CrowdUserSnapshot> users) {
+			Snapshot snapshot = new Snapshot(users.size());
+			Map<String, String> strings = new HashMap<String, String>();
+			int i = 0;
+			for (Map.Entry<String, CrowdUserSnapshot> entry : users.entrySet()) {
+				snapshot.set(i++, entry.getKey(), entry.getValue(), strings);
+			}
+			return snapshot;
+		}
+
+		/**
+		 * Creates a copy of this snapshot with the given changes applied. The
+		 * changes are merged into the sorted arrays: the runs of unchanged
+		 * users between two changes are copied with
+		 * {@link System#arraycopy(Object, int, Object, int, int)}.
+		 * 
+		 * @param changes
+		 *            The changed users by canonical name, sorted. A
+		 *            <code>null</code> value removes the user. May not be
+		 *            <code>null</code>.
+		 * @return The new snapshot. Never <code>null</code>.
+		 */
+		Snapshot withChanges(SortedMap<String, CrowdUserSnapshot> changes) {
+			// find the positions of the changed users and the new size
+			int[] positions = new int[changes.size()];
+			int size = this.keys.length;
+			int c = 0;
+			for (Map.Entry<String, CrowdUserSnapshot> entry : changes.entrySet()) {
+				int position = Arrays.binarySearch(this.keys, entry.getKey());
+				positions[c++] = position;
+				if (position >= 0 && null == entry.getValue()) {
+					size--;
+				} else if (position < 0 && null != entry.getValue()) {
+					size++;
+				}
+			}
+
+			Snapshot snapshot = new Snapshot(size);
+			Map<String, String> strings = new HashMap<String, String>();
+			int source = 0;
+			int target = 0;
+			c = 0;
+			for (Map.Entry<String, CrowdUserSnapshot> entry : changes.entrySet()) {
+				int position = positions[c++];
+				// the users before the changed one are unchanged
+				int end = position >= 0 ? position : -position - 1;
+				target = snapshot.copy(this, source, target, end - source);
+				// an existing user is replaced or removed
+				source = position >= 0 ? end + 1 : end;
+				if (null != entry.getValue()) {
+					snapshot.set(target++, entry.getKey(), entry.getValue(), strings);
+				}
+			}
+			snapshot.copy(this, source, target, this.keys.length - source);
+			return snapshot;
+		}
+
+		/**
+		 * Copies a run of users from another snapshot.
+		 * 
+		 * @return The index behind the copied users in this snapshot.
+		 */
+		private int copy(Snapshot from, int source, int target, int length) {
+			System.arraycopy(from.keys, source, this.keys, target, length);
+			System.arraycopy(from.names, source, this.names, target, length);
+			System.arraycopy(from.displayNames, source, this.displayNames, target, length);
+			System.arraycopy(from.emails, source, this.emails, target, length);
+			int end = source + length;
+			for (int i = from.active.nextSetBit(source); i >= 0 && i < end; i = from.active.nextSetBit(i + 1)) {
+				this.active.set(target + i - source);
+			}
+			return target + length;
+		}
+
+		/**
+		 * Stores a user, sharing equal strings via <code>strings</code>.
+		 */
+		private void set(int index, String key, CrowdUserSnapshot user, Map<String, String> strings) {
+			this.keys[index] = dedup(strings, key);
+			this.names[index] = dedup(strings, user.getName());
+			this.displayNames[index] = dedup(strings, user.getDisplayName());
+			this.emails[index] = dedup(strings, user.getEmailAddress());
+			this.active.set(index, user.isActive());
+		}
+
+		private static String dedup(Map<String, String> strings, String value) {
+			if (null == value) {
+				return null;
+			}
+			String existing = strings.get(value);
+			if (null == existing) {
+				strings.put(value, value);
+				existing = value;
+			}
+			return existing;
+		}
+
+		int size() {
+			return this.keys.length;
+		}
+
+		int indexOf(String username) {
+			int index = Arrays.binarySearch(this.keys, CrowdIdentifiers.canonical(username));
+			return index >= 0 ? index : -1;
+		}
+
+		CrowdUserSnapshot toSnapshot(int index) {
+			return new CrowdUserSnapshot(this.names[index], this.displayNames[index], this.emails[index],
+					this.active.get(index));
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * @(#)CrowdUserSnapshot.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2011 Thorsten Heit.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+import com.atlassian.crowd.model.user.User;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * This class holds the few attributes of a Crowd user that are needed by the
+ * security realm. It is used instead of the user objects of the Crowd REST
+ * client, which carry much more data, so that cached users and user details
+ * stored in HTTP sessions stay small. Equal strings of different snapshots are
+ * shared.
+ * <p>
+ * A snapshot object takes 24 bytes on a 64 bit JVM with compressed oops. The
+ * first snapshot of a user also holds its strings (about 180 bytes for typical
+ * names and addresses) and adds an interner entry per string (about 45
+ * bytes). Each further snapshot of the same user, e.g. after a cache refresh
+ * or in a session, shares these strings and costs only the 24 bytes; see
+ * <code>CrowdUserSnapshotFootprintTest</code>.
+ * 
+ * @since 18.10.2026
+ * @version $Id$
+ */
+public final class CrowdUserSnapshot implements Serializable {
+	/** Necessary for serialisation. */
+	private static final long serialVersionUID = 3411563428105541254L;
+
+	/** Shares equal strings between snapshots. */
+	private static final Interner<String> STRINGS = Interners.newWeakInterner();
+
+	/** Encodes snapshots for the {@link CrowdOffHeapStore}. */
+	public static final CrowdOffHeapStore.Codec<CrowdUserSnapshot> CODEC = new CrowdOffHeapStore.Codec<CrowdUserSnapshot>() {
+		@Override
+		public void write(DataOutput out, CrowdUserSnapshot value) throws IOException {
+			out.writeUTF(value.name);
+			CrowdOffHeapStore.writeString(out, value.displayName);
+			CrowdOffHeapStore.writeString(out, value.emailAddress);
+			out.writeBoolean(value.active);
+		}
+
+		@Override
+		public CrowdUserSnapshot read(DataInput in) throws IOException {
+			return new CrowdUserSnapshot(in.readUTF(), CrowdOffHeapStore.readString(in),
+					CrowdOffHeapStore.readString(in), in.readBoolean());
+		}
+	};
+
+	/** The name of the user. */
+	private final String name;
+
+	/** The display name of the user. */
+	private final String displayName;
+
+	/** The email address of the user. */
+	private final String emailAddress;
+
+	/** Whether the user is active. */
+	private final boolean active;
+
+	/**
+	 * Creates a new snapshot.
+	 * 
+	 * @param pName
+	 *            The name of the user. May not be <code>null</code>.
+	 * @param pDisplayName
+	 *            The display name of the user. May be <code>null</code>.
+	 * @param pEmailAddress
+	 *            The email address of the user. May be <code>null</code>.
+	 * @param pActive
+	 *            Whether the user is active.
+	 */
+	public CrowdUserSnapshot(String pName, String pDisplayName, String pEmailAddress, boolean pActive) {
+		this.name = intern(pName);
+		this.displayName = intern(pDisplayName);
+		this.emailAddress = intern(pEmailAddress);
+		this.active = pActive;
+	}
+
+	/**
+	 * Creates a snapshot of a Crowd user.
+	 * 
+	 * @param user
+	 *            The Crowd user. May be <code>null</code>.
+	 * @return The snapshot or <code>null</code> if <code>user</code> is
+	 *         <code>null</code>.
+	 */
+	public static CrowdUserSnapshot of(User user) {
+		if (null == user) {
+			return null;
+		}
+		return new CrowdUserSnapshot(user.getName(), user.getDisplayName(), user.getEmailAddress(), user.isActive());
+	}
+
+	/**
+	 * Returns the name of the user.
+	 * 
+	 * @return The name. Never <code>null</code>.
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * Returns the display name of the user.
+	 * 
+	 * @return The display name. May be <code>null</code>.
+	 */
+	public String getDisplayName() {
+		return this.displayName;
+	}
+
+	/**
+	 * Returns the email address of the user.
+	 * 
+	 * @return The email address. May be <code>null</code>.
+	 */
+	public String getEmailAddress() {
+		return this.emailAddress;
+	}
+
+	/**
+	 * Returns whether the user is active.
+	 * 
+	 * @return <code>true</code> if the user is active.
+	 */
+	public boolean isActive() {
+		return this.active;
+	}
+
+	/**
+	 * Shares the strings of a deserialized snapshot with the existing ones.
+	 * 
+	 * @return The snapshot to use.
+	 */
+	private Object readResolve() {
+		return new CrowdUserSnapshot(this.name, this.displayName, this.emailAddress, this.active);
+	}
+
+	private static String intern(String value) {
+		return null != value ? STRINGS.intern(value) : null;
+	}
+}
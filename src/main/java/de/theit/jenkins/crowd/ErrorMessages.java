@@ -213,4 +213,17 @@ public class ErrorMessages {
 	public static String userNotValid(String username, ArrayList<String> groupNames) {
 		return holder.format("userNotValid", username, groupNames.toString());
 	}
+
+	/**
+	 * Returns the localized error message when a login attempt is rejected
+	 * because of too many failed attempts.
+	 * 
+	 * @param username
+	 *            The user name. May not be <code>null</code>.
+	 * 
+	 * @return The localized error message for a rejected login attempt.
+	 */
+	public static String loginThrottled(String username) {
+		return holder.format("loginThrottled", username);
+	}
 }
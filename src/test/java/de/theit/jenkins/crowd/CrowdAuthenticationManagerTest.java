@@ -0,0 +1,233 @@
+/*
+ * @(#)CrowdAuthenticationManagerTest.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2026 The Jenkins project contributors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.acegisecurity.Authentication;
+import org.acegisecurity.AuthenticationServiceException;
+import org.acegisecurity.providers.UsernamePasswordAuthenticationToken;
+import org.junit.Test;
+
+import com.atlassian.crowd.exception.InvalidAuthenticationException;
+import com.atlassian.crowd.exception.OperationFailedException;
+
+/**
+ * Tests the Crowd round trips of {@link CrowdAuthenticationManager}.
+ * 
+ * @version $Id$
+ */
+public class CrowdAuthenticationManagerTest {
+	@Test
+	public void loginLooksUpTheUserOnlyOnce() {
+		FakeCrowdClient crowd = new FakeCrowdClient().answer("authenticateUser", new FakeCrowdClient.Answer() {
+			@Override
+			public Object answer(Object[] args) {
+				return FakeCrowdClient.user((String) args[0]);
+			}
+		});
+		CrowdConfigurationService configuration = crowd.configuration("", false);
+
+		Authentication auth = new CrowdAuthenticationManager(configuration)
+				.authenticate(new UsernamePasswordAuthenticationToken("alice", "secret"));
+
+		assertTrue(auth.getPrincipal() instanceof CrowdUser);
+		assertEquals("alice", ((CrowdUser) auth.getPrincipal()).getUsername());
+		assertEquals(1, crowd.calls("authenticateUser"));
+		assertEquals(0, crowd.calls("getUser"));
+		// the password check, the user's groups and the inactive groups
+		assertEquals(1, crowd.calls("getNamesOfGroupsForUser"));
+		assertEquals(1, crowd.calls("searchGroupNames"));
+		assertEquals(3, crowd.totalCalls());
+
+		// the user returned by the authentication is cached
+		assertEquals("alice", configuration.getUser("alice").getName());
+		assertEquals(3, crowd.totalCalls());
+	}
+
+	@Test
+	public void formLoginCreatesTheSsoSessionWithOneCall() throws Exception {
+		FakeCrowdClient crowd = ssoCrowd();
+		CrowdConfigurationService configuration = crowd.configuration("", true);
+
+		CrowdAuthenticationToken auth = authenticate(configuration, "/jenkins/j_acegi_security_check");
+
+		// the principal is the user as known to Crowd, not the typed name
+		CrowdUser user = (CrowdUser) auth.getPrincipal();
+		assertEquals("token-1", auth.getSSOToken());
+		assertEquals("Alice", user.getUsername());
+		assertEquals("Alice@example.com", user.getEmailAddress());
+		assertTrue(configuration.tokenStore.isValidated("token-1"));
+		assertEquals(1, crowd.calls("authenticateSSOUser"));
+		assertEquals(0, crowd.calls("authenticateUser"));
+		assertEquals(1, crowd.calls("getUser"));
+		assertEquals(0, crowd.calls("validateSSOAuthentication"));
+		assertEquals(0, crowd.calls("validateSSOAuthenticationAndGetSession"));
+		// plus the direct groups and the group names
+		assertEquals(4, crowd.totalCalls());
+	}
+
+	@Test
+	public void formLoginTakesAKnownUserFromTheCache() throws Exception {
+		FakeCrowdClient crowd = ssoCrowd();
+		CrowdConfigurationService configuration = crowd.configuration("", true);
+		configuration.getUser("alice");
+
+		CrowdAuthenticationToken auth = authenticate(configuration, "/jenkins/j_acegi_security_check");
+
+		assertEquals("Alice", ((CrowdUser) auth.getPrincipal()).getUsername());
+		assertEquals(1, crowd.calls("authenticateSSOUser"));
+		// only the lookup before the login
+		assertEquals(1, crowd.calls("getUser"));
+		assertEquals(4, crowd.totalCalls());
+	}
+
+	@Test
+	public void formLoginFailsIfCrowdCannotReturnTheUser() throws Exception {
+		FakeCrowdClient crowd = ssoCrowd().answer("getUser", new FakeCrowdClient.Answer() {
+			@Override
+			public Object answer(Object[] args) throws Exception {
+				throw new OperationFailedException("Crowd is down");
+			}
+		});
+		CrowdConfigurationService configuration = crowd.configuration("", true);
+
+		try {
+			authenticate(configuration, "/jenkins/j_acegi_security_check");
+			fail("no principal without the user");
+		} catch (AuthenticationServiceException expected) {
+			// expected
+		}
+	}
+
+	@Test
+	public void basicAuthDoesNotCreateAnSsoSession() throws Exception {
+		FakeCrowdClient crowd = new FakeCrowdClient().answer("authenticateUser", new FakeCrowdClient.Answer() {
+			@Override
+			public Object answer(Object[] args) {
+				return FakeCrowdClient.user((String) args[0]);
+			}
+		});
+		CrowdConfigurationService configuration = crowd.configuration("", true);
+
+		CrowdAuthenticationToken auth = authenticate(configuration, "/jenkins/api/json");
+
+		assertNull(auth.getSSOToken());
+		assertEquals(1, crowd.calls("authenticateUser"));
+		assertEquals(0, crowd.calls("authenticateSSOUser"));
+		assertEquals(0, crowd.calls("getUser"));
+		assertEquals(3, crowd.totalCalls());
+	}
+
+	@Test
+	public void invalidAuthenticationDoesNotLockTheUser() {
+		final boolean[] validApplication = { false };
+		FakeCrowdClient crowd = new FakeCrowdClient().answer("authenticateUser", new FakeCrowdClient.Answer() {
+			@Override
+			public Object answer(Object[] args) throws Exception {
+				if (!validApplication[0]) {
+					// also thrown when the application credentials are wrong
+					throw new InvalidAuthenticationException("Application failed to authenticate");
+				}
+				return FakeCrowdClient.user((String) args[0]);
+			}
+		});
+		CrowdAuthenticationManager manager = new CrowdAuthenticationManager(crowd.configuration("", false));
+
+		for (int i = 0; i < 20; i++) {
+			try {
+				manager.authenticate(new UsernamePasswordAuthenticationToken("alice", "secret"));
+				fail("authentication didn't fail");
+			} catch (AuthenticationServiceException expected) {
+				// expected
+			}
+		}
+
+		// the application credentials are fixed => alice isn't locked out
+		validApplication[0] = true;
+		assertTrue(manager.authenticate(new UsernamePasswordAuthenticationToken("alice", "secret"))
+				.isAuthenticated());
+	}
+
+	/**
+	 * Returns a fake Crowd server creating SSO sessions for Alice, whose name
+	 * is stored capitalised in Crowd.
+	 */
+	private static FakeCrowdClient ssoCrowd() {
+		return new FakeCrowdClient().answer("authenticateSSOUser", new FakeCrowdClient.Answer() {
+			@Override
+			public Object answer(Object[] args) {
+				return "token-1";
+			}
+		}).answer("getUser", new FakeCrowdClient.Answer() {
+			@Override
+			public Object answer(Object[] args) {
+				return FakeCrowdClient.user("Alice", "Alice Example");
+			}
+		});
+	}
+
+	/**
+	 * Authenticates alice while the servlet filter processes a request for
+	 * the given URI.
+	 */
+	private static CrowdAuthenticationToken authenticate(CrowdConfigurationService configuration, String uri)
+			throws Exception {
+		CrowdServletFilter.setCurrentRequest(request(uri));
+		try {
+			return (CrowdAuthenticationToken) new CrowdAuthenticationManager(configuration)
+					.authenticate(new UsernamePasswordAuthenticationToken("alice", "secret"));
+		} finally {
+			CrowdServletFilter.setCurrentRequest(null);
+		}
+	}
+
+	private static HttpServletRequest request(final String uri) {
+		return (HttpServletRequest) Proxy.newProxyInstance(HttpServletRequest.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if ("getRequestURI".equals(method.getName())) {
+							return uri;
+						} else if ("getContextPath".equals(method.getName())) {
+							return "/jenkins";
+						} else if ("getRemoteAddr".equals(method.getName())) {
+							return "127.0.0.1";
+						}
+						return null;
+					}
+				});
+	}
+}
@@ -0,0 +1,285 @@
+/*
+ * @(#)CrowdClusterClientTest.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2026 The Jenkins project contributors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.ConnectException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atlassian.crowd.exception.OperationFailedException;
+import com.atlassian.crowd.exception.UserNotFoundException;
+import com.atlassian.crowd.service.client.CrowdClient;
+
+/**
+ * Tests {@link CrowdClusterClient} against a cluster of fake Crowd nodes.
+ * 
+ * @version $Id$
+ */
+public class CrowdClusterClientTest {
+	/** The first node, which is preferred while both nodes are unknown. */
+	private FakeCrowdClient first;
+
+	/** The second node. */
+	private FakeCrowdClient second;
+
+	/** The cluster of both nodes. */
+	private CrowdClusterClient cluster;
+
+	/** Releases calls blocked on a node. */
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	@Before
+	public void setUp() {
+		this.first = new FakeCrowdClient();
+		this.second = new FakeCrowdClient();
+		this.cluster = new CrowdClusterClient(
+				Arrays.asList("http://crowd1.example.com/crowd", "http://crowd2.example.com/crowd"),
+				Arrays.asList(this.first.client(), this.second.client()));
+	}
+
+	@After
+	public void tearDown() {
+		this.release.countDown();
+		this.cluster.getClient().shutdown();
+	}
+
+	@Test
+	public void readsFailOverWhenTheNodeCannotBeReached() throws Exception {
+		this.first.answer("getCurrentEventToken", unreachable());
+		this.second.answer("getCurrentEventToken", token("token"));
+
+		assertEquals("token", this.cluster.getClient().getCurrentEventToken());
+		assertEquals(1, this.first.calls("getCurrentEventToken"));
+		assertEquals(1, this.second.calls("getCurrentEventToken"));
+		assertEquals(1, this.cluster.getFailovers());
+	}
+
+	@Test
+	public void nonIdempotentCallsNeverFailOver() throws Exception {
+		for (FakeCrowdClient node : Arrays.asList(this.first, this.second)) {
+			node.answer("invalidateSSOToken", unreachable());
+			node.answer("authenticateSSOUser", unreachable());
+			node.answer("authenticateUser", unreachable());
+		}
+		CrowdClient client = this.cluster.getClient();
+
+		try {
+			client.invalidateSSOToken("token");
+			fail("the failure must not be hidden");
+		} catch (OperationFailedException ex) {
+			assertTrue(ex.getCause() instanceof ConnectException);
+		}
+		try {
+			client.authenticateSSOUser(null);
+			fail("the failure must not be hidden");
+		} catch (OperationFailedException expected) {
+			// expected
+		}
+		try {
+			client.authenticateUser("alice", "secret");
+			fail("the failure must not be hidden");
+		} catch (OperationFailedException expected) {
+			// expected
+		}
+		// each call reached exactly one node
+		assertEquals(3, this.first.totalCalls() + this.second.totalCalls());
+		assertEquals(0, this.cluster.getFailovers());
+	}
+
+	@Test
+	public void answersOfCrowdAreNotRetried() throws Exception {
+		this.first.answer("getUser", new FakeCrowdClient.Answer() {
+			@Override
+			public Object answer(Object[] args) throws Exception {
+				throw new UserNotFoundException((String) args[0]);
+			}
+		});
+
+		try {
+			this.cluster.getClient().getUser("nobody");
+			fail("unknown user");
+		} catch (UserNotFoundException expected) {
+			// expected
+		}
+		assertEquals(0, this.second.calls("getUser"));
+		assertEquals(0, this.cluster.getNodes().get(0).getErrorPercent());
+	}
+
+	@Test
+	public void slowLookupsAreHedgedToTheOtherNode() throws Exception {
+		this.first.answer("getUser", new FakeCrowdClient.Answer() {
+			@Override
+			public Object answer(Object[] args) throws Exception {
+				CrowdClusterClientTest.this.release.await(10, TimeUnit.SECONDS);
+				return FakeCrowdClient.user("first");
+			}
+		});
+		this.second.answer("getUser", new FakeCrowdClient.Answer() {
+			@Override
+			public Object answer(Object[] args) {
+				return FakeCrowdClient.user("second");
+			}
+		});
+
+		assertEquals("second", this.cluster.getClient().getUser("alice").getName());
+		assertEquals(1, this.cluster.getHedgedCalls());
+		assertEquals(1, this.first.calls("getUser"));
+		assertEquals(1, this.second.calls("getUser"));
+	}
+
+	@Test
+	public void failedLookupsAreRepeatedOnTheOtherNode() throws Exception {
+		this.first.answer("getNamesOfGroupsForUser", unreachable());
+		this.second.answer("getNamesOfGroupsForUser", names("jenkins-users"));
+
+		assertEquals(Collections.singletonList("jenkins-users"),
+				this.cluster.getClient().getNamesOfGroupsForUser("alice", 0, 10));
+		assertEquals(1, this.cluster.getFailovers());
+	}
+
+	@Test
+	public void callsGoToTheNodeWithTheLowerAverageLatency() throws Exception {
+		this.first.answer("getCurrentEventToken", new FakeCrowdClient.Answer() {
+			@Override
+			public Object answer(Object[] args) throws Exception {
+				Thread.sleep(200);
+				return "slow";
+			}
+		});
+		CrowdClient client = this.cluster.getClient();
+
+		for (int i = 0; i < 10; i++) {
+			client.getCurrentEventToken();
+		}
+
+		assertEquals(1, this.first.calls("getCurrentEventToken"));
+		assertEquals(9, this.second.calls("getCurrentEventToken"));
+		assertTrue(this.cluster.getNodes().get(0).getLatency() >= 200);
+		assertEquals(0, this.cluster.getFailovers());
+	}
+
+	@Test
+	public void failingNodeIsEjected() throws Exception {
+		this.first.answer("getCurrentEventToken", unreachable());
+		// slower than a refused connection, so that the first node stays the
+		// best one until it is ejected
+		this.second.answer("getCurrentEventToken", new FakeCrowdClient.Answer() {
+			@Override
+			public Object answer(Object[] args) throws Exception {
+				Thread.sleep(20);
+				return "token";
+			}
+		});
+		CrowdClient client = this.cluster.getClient();
+		CrowdClusterClient.Node node = this.cluster.getNodes().get(0);
+
+		// three failures in a row eject the node
+		for (int i = 0; i < 3; i++) {
+			assertFalse(node.isEjected());
+			assertEquals("token", client.getCurrentEventToken());
+		}
+		assertTrue(node.isEjected());
+		assertTrue(node.getErrorPercent() > 0);
+
+		for (int i = 0; i < 5; i++) {
+			client.getCurrentEventToken();
+		}
+		assertEquals(3, this.first.calls("getCurrentEventToken"));
+		assertEquals(8, this.second.calls("getCurrentEventToken"));
+		assertEquals(3, this.cluster.getFailovers());
+	}
+
+	@Test
+	public void ejectedNodesAreUsedWhenNoOtherNodeIsLeft() throws Exception {
+		this.first.answer("getCurrentEventToken", unreachable());
+		this.second.answer("getCurrentEventToken", unreachable());
+		CrowdClient client = this.cluster.getClient();
+
+		for (int i = 0; i < 6; i++) {
+			try {
+				client.getCurrentEventToken();
+				fail("both nodes are down");
+			} catch (OperationFailedException expected) {
+				// expected
+			}
+		}
+		assertTrue(this.cluster.getNodes().get(0).isEjected());
+		assertTrue(this.cluster.getNodes().get(1).isEjected());
+
+		this.first.answer("getCurrentEventToken", token("token"));
+		this.second.answer("getCurrentEventToken", token("token"));
+		assertEquals("token", client.getCurrentEventToken());
+	}
+
+	/**
+	 * Returns an answer failing like a node that can't be reached.
+	 */
+	private static FakeCrowdClient.Answer unreachable() {
+		return new FakeCrowdClient.Answer() {
+			@Override
+			public Object answer(Object[] args) throws Exception {
+				throw new OperationFailedException(new ConnectException("Connection refused"));
+			}
+		};
+	}
+
+	/**
+	 * Returns an answer with an event token.
+	 */
+	private static FakeCrowdClient.Answer token(final String token) {
+		return new FakeCrowdClient.Answer() {
+			@Override
+			public Object answer(Object[] args) {
+				return token;
+			}
+		};
+	}
+
+	/**
+	 * Returns an answer with a list of names.
+	 */
+	private static FakeCrowdClient.Answer names(final String... names) {
+		final List<String> list = Arrays.asList(names);
+		return new FakeCrowdClient.Answer() {
+			@Override
+			public Object answer(Object[] args) {
+				return list;
+			}
+		};
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * @(#)CrowdExecutorsBenchmarkTest.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2026 The Jenkins project contributors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Compares the execution modes of {@link CrowdExecutors} for a burst of 1,000
+ * concurrent cache misses, each of them blocking for the simulated latency of
+ * a Crowd call.
+ * 
+ * @version $Id$
+ */
+public class CrowdExecutorsBenchmarkTest {
+	/** Used for logging purposes. */
+	private static final Logger LOG = Logger.getLogger(CrowdExecutorsBenchmarkTest.class.getName());
+
+	/** The number of concurrent cache misses. */
+	private static final int CACHE_MISSES = 1000;
+
+	/** The simulated latency of a single Crowd call in milliseconds. */
+	private static final long CROWD_LATENCY = 20;
+
+	@Test
+	public void platformThreads() throws Exception {
+		ExecutorService executor = CrowdExecutors.createPlatformThreadExecutor(16, 10000);
+		long millis = run(executor);
+		LOG.info("Platform threads: " + CACHE_MISSES + " cache misses in " + millis + "ms");
+	}
+
+	@Test
+	public void virtualThreads() throws Exception {
+		ExecutorService executor = CrowdExecutors.createVirtualThreadExecutor();
+		Assume.assumeNotNull(executor);
+		long millis = run(executor);
+		LOG.info("Virtual threads: " + CACHE_MISSES + " cache misses in " + millis + "ms");
+	}
+
+	/**
+	 * Submits the cache misses to the given executor and waits until all of
+	 * them are done.
+	 * 
+	 * @param executor
+	 *            The executor to measure. Is shut down afterwards.
+	 * @return The elapsed wall clock time in milliseconds.
+	 */
+	private static long run(ExecutorService executor) throws Exception {
+		try {
+			// warm up the threads
+			await(submit(executor, CACHE_MISSES / 10));
+
+			long start = System.nanoTime();
+			int done = await(submit(executor, CACHE_MISSES));
+			long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+			assertEquals(CACHE_MISSES, done);
+			return millis;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static List<Future<Boolean>> submit(ExecutorService executor, int count) {
+		List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(count);
+		for (int i = 0; i < count; i++) {
+			futures.add(executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws InterruptedException {
+					Thread.sleep(CROWD_LATENCY);
+					return Boolean.TRUE;
+				}
+			}));
+		}
+		return futures;
+	}
+
+	private static int await(List<Future<Boolean>> futures) throws Exception {
+		int done = 0;
+		for (Future<Boolean> future : futures) {
+			if (future.get(1, TimeUnit.MINUTES).booleanValue()) {
+				done++;
+			}
+		}
+		return done;
+	}
+}
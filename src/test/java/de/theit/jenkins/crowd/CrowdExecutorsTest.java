@@ -0,0 +1,95 @@
+/*
+ * @(#)CrowdExecutorsTest.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2026 The Jenkins project contributors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Tests how {@link CrowdExecutors} handles a saturated thread pool.
+ * 
+ * @version $Id$
+ */
+public class CrowdExecutorsTest {
+	@Test
+	public void saturatedPoolDropsBackgroundTasks() throws Exception {
+		ExecutorService executor = CrowdExecutors.createPlatformThreadExecutor(1, 1);
+		final CountDownLatch release = new CountDownLatch(1);
+		try {
+			Runnable blocker = new Runnable() {
+				@Override
+				public void run() {
+					try {
+						release.await(1, TimeUnit.MINUTES);
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			};
+			// one task occupies the thread, one the queue
+			assertTrue(CrowdExecutors.execute(executor, blocker));
+			assertTrue(CrowdExecutors.execute(executor, blocker));
+
+			final AtomicReference<Thread> runner = new AtomicReference<Thread>();
+			long dropped = CrowdExecutors.getDroppedTasks();
+			assertFalse(CrowdExecutors.execute(executor, new Runnable() {
+				@Override
+				public void run() {
+					runner.set(Thread.currentThread());
+				}
+			}));
+
+			// the task is neither run by the submitting thread nor later
+			assertEquals(dropped + 1, CrowdExecutors.getDroppedTasks());
+			release.countDown();
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+			assertEquals(null, runner.get());
+		} finally {
+			release.countDown();
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void submittedTasksReturnTheirResult() throws Exception {
+		assertEquals("done", CrowdExecutors.submit(new Callable<String>() {
+			@Override
+			public String call() {
+				return "done";
+			}
+		}).get(1, TimeUnit.MINUTES));
+	}
+}
@@ -0,0 +1,316 @@
+/*
+ * @(#)CrowdGroupHierarchyTest.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2026 The Jenkins project contributors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.acegisecurity.GrantedAuthority;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atlassian.crowd.exception.UnsupportedCrowdApiException;
+import com.atlassian.crowd.model.group.Group;
+import com.atlassian.crowd.model.group.Membership;
+
+/**
+ * Tests {@link CrowdGroupHierarchy}.
+ * 
+ * @version $Id$
+ */
+public class CrowdGroupHierarchyTest {
+	/** The fake Crowd server. */
+	private FakeCrowdClient crowd;
+
+	/** The groups of the fake Crowd server and whether they are active. */
+	private final Map<String, Boolean> groups = new LinkedHashMap<String, Boolean>();
+
+	/** The child groups per group. */
+	private final Map<String, Set<String>> children = new LinkedHashMap<String, Set<String>>();
+
+	/** The configuration using the hierarchy. */
+	private CrowdConfigurationService configuration;
+
+	/** The hierarchy under test. */
+	private CrowdGroupHierarchy hierarchy;
+
+	@Before
+	public void setUp() {
+		this.crowd = new FakeCrowdClient();
+		this.crowd.answer("searchGroups", new FakeCrowdClient.Answer() {
+			@Override
+			public Object answer(Object[] args) {
+				List<Group> page = new ArrayList<Group>();
+				for (Map.Entry<String, Boolean> group : groups.entrySet()) {
+					page.add(group(group.getKey(), group.getValue()));
+				}
+				return page;
+			}
+		});
+		this.crowd.answer("getMemberships", new FakeCrowdClient.Answer() {
+			@Override
+			public Object answer(Object[] args) {
+				List<Membership> memberships = new ArrayList<Membership>();
+				for (Map.Entry<String, Set<String>> group : children.entrySet()) {
+					memberships.add(membership(group.getKey(), group.getValue()));
+				}
+				return memberships;
+			}
+		});
+		this.configuration = new CrowdConfigurationService("jenkins-users", true);
+		this.configuration.crowdClient = this.crowd.client();
+		this.hierarchy = new CrowdGroupHierarchy(this.configuration);
+		this.configuration.groupHierarchy = this.hierarchy;
+	}
+
+	@Test
+	public void syncNeedsOneRequestForAllMemberships() {
+		for (int i = 0; i < 50; i++) {
+			addGroup("group-" + i, true);
+			if (i > 0) {
+				nest("group-" + i, "group-" + (i - 1));
+			}
+		}
+
+		this.hierarchy.sync();
+
+		assertEquals(50, this.hierarchy.getGroupCount());
+		assertEquals(1, this.crowd.calls("searchGroups"));
+		assertEquals(1, this.crowd.calls("getMemberships"));
+		assertEquals(2, this.crowd.totalCalls());
+		assertEquals(50, this.hierarchy.expand(Collections.singleton("group-0")).size());
+	}
+
+	@Test
+	public void expandsToAllAncestors() {
+		addGroup("jenkins-users", true);
+		addGroup("developers", true);
+		addGroup("team-a", true);
+		addGroup("team-b", true);
+		addGroup("retired", false);
+		nest("jenkins-users", "developers");
+		nest("developers", "team-a");
+		nest("developers", "team-b");
+		nest("retired", "team-b");
+		this.hierarchy.sync();
+
+		assertEquals(set("team-a", "developers", "jenkins-users"),
+				this.hierarchy.expand(Collections.singleton("team-a")));
+		// inactive groups are left out
+		assertEquals(set("team-b", "developers", "jenkins-users"),
+				this.hierarchy.expand(Collections.singleton("team-b")));
+		assertEquals(set("developers", "jenkins-users"), this.hierarchy.expand(Collections.singleton("developers")));
+		// groups created after the synchronisation are kept
+		assertEquals(set("team-a", "developers", "jenkins-users", "new-team"),
+				this.hierarchy.expand(Arrays.asList("team-a", "new-team")));
+	}
+
+	@Test
+	public void cyclesEndAtVisitedGroups() {
+		addGroup("a", true);
+		addGroup("b", true);
+		addGroup("c", true);
+		addGroup("d", true);
+		addGroup("e", true);
+		// a -> b -> c -> a, d below c, e above a
+		nest("a", "b");
+		nest("b", "c");
+		nest("c", "a");
+		nest("c", "d");
+		nest("e", "a");
+		this.hierarchy.sync();
+
+		assertEquals(set("a", "b", "c", "e"), this.hierarchy.expand(Collections.singleton("a")));
+		assertEquals(set("a", "b", "c", "e"), this.hierarchy.expand(Collections.singleton("b")));
+		assertEquals(set("a", "b", "c", "e"), this.hierarchy.expand(Collections.singleton("c")));
+		assertEquals(set("a", "b", "c", "d", "e"), this.hierarchy.expand(Collections.singleton("d")));
+		assertEquals(set("e"), this.hierarchy.expand(Collections.singleton("e")));
+	}
+
+	@Test
+	public void groupIsItsOwnParent() {
+		addGroup("a", true);
+		addGroup("b", true);
+		nest("a", "a");
+		nest("a", "b");
+		this.hierarchy.sync();
+
+		assertEquals(set("a"), this.hierarchy.expand(Collections.singleton("a")));
+		assertEquals(set("a", "b"), this.hierarchy.expand(Collections.singleton("b")));
+	}
+
+	@Test
+	public void staleHierarchyFallsBackToCrowd() {
+		addGroup("jenkins-users", true);
+		addGroup("developers", true);
+		nest("jenkins-users", "developers");
+		FakeCrowdClient.Answer direct = names("developers");
+		FakeCrowdClient.Answer nested = names("developers", "jenkins-users");
+		this.crowd.answer("getNamesOfGroupsForUser", direct);
+		this.crowd.answer("getNamesOfGroupsForNestedUser", nested);
+		this.crowd.answer("getGroupsForUser", groups(false));
+		this.crowd.answer("getGroupsForNestedUser", groups(true));
+		this.hierarchy.sync();
+
+		assertTrue(this.hierarchy.isFresh());
+		assertEquals(set("developers", "jenkins-users"), names(this.configuration.getAuthoritiesForUser("alice")));
+		assertEquals(0, nestedCalls());
+
+		// the last synchronisation is too long ago
+		this.hierarchy.lastSync -= CrowdGroupHierarchy.MAX_STALENESS + 1;
+		assertFalse(this.hierarchy.isFresh());
+		assertNull(this.hierarchy.expand(Collections.singleton("developers")));
+		assertEquals(set("developers", "jenkins-users"), names(this.configuration.getAuthoritiesForUser("bob")));
+		assertEquals(1, nestedCalls());
+	}
+
+	@Test
+	public void serversWithoutBulkRequestAreNotUsed() {
+		addGroup("jenkins-users", true);
+		this.crowd.answer("getMemberships", new FakeCrowdClient.Answer() {
+			@Override
+			public Object answer(Object[] args) throws Exception {
+				throw new UnsupportedCrowdApiException("2.1", "memberships");
+			}
+		});
+
+		this.hierarchy.sync();
+
+		assertFalse(this.hierarchy.isFresh());
+		assertNull(this.hierarchy.expand(Collections.singleton("jenkins-users")));
+		assertEquals(0, this.crowd.calls("getNamesOfParentGroupsForGroup"));
+	}
+
+	private int nestedCalls() {
+		return this.crowd.calls("getNamesOfGroupsForNestedUser") + this.crowd.calls("getGroupsForNestedUser");
+	}
+
+	private void addGroup(String name, boolean active) {
+		this.groups.put(name, active);
+	}
+
+	/**
+	 * Makes a group a direct member of another group.
+	 */
+	private void nest(String parent, String child) {
+		Set<String> members = this.children.get(parent);
+		if (null == members) {
+			members = new HashSet<String>();
+			this.children.put(parent, members);
+		}
+		members.add(child);
+	}
+
+	private static Set<String> set(String... names) {
+		return new HashSet<String>(Arrays.asList(names));
+	}
+
+	private static Set<String> names(Iterable<GrantedAuthority> authorities) {
+		Set<String> names = new HashSet<String>();
+		for (GrantedAuthority authority : authorities) {
+			names.add(authority.getAuthority());
+		}
+		return names;
+	}
+
+	private static FakeCrowdClient.Answer names(String... names) {
+		final List<String> list = Arrays.asList(names);
+		return new FakeCrowdClient.Answer() {
+			@Override
+			public Object answer(Object[] args) {
+				return 0 == (Integer) args[1] ? list : Collections.<String>emptyList();
+			}
+		};
+	}
+
+	private FakeCrowdClient.Answer groups(final boolean nested) {
+		return new FakeCrowdClient.Answer() {
+			@Override
+			public Object answer(Object[] args) {
+				List<Group> list = new ArrayList<Group>();
+				if (0 == (Integer) args[1]) {
+					list.add(group("developers", true));
+					if (nested) {
+						list.add(group("jenkins-users", true));
+					}
+				}
+				return list;
+			}
+		};
+	}
+
+	static Group group(final String name, final boolean active) {
+		return (Group) Proxy.newProxyInstance(Group.class.getClassLoader(), new Class<?>[] { Group.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if ("getName".equals(method.getName()) || "toString".equals(method.getName())) {
+							return name;
+						} else if ("isActive".equals(method.getName())) {
+							return active;
+						} else if ("hashCode".equals(method.getName())) {
+							return name.hashCode();
+						} else if ("equals".equals(method.getName())) {
+							return proxy == args[0];
+						}
+						return null;
+					}
+				});
+	}
+
+	private static Membership membership(final String group, final Set<String> childGroups) {
+		return new Membership() {
+			@Override
+			public String getGroupName() {
+				return group;
+			}
+
+			@Override
+			public Set<String> getUserNames() {
+				return Collections.emptySet();
+			}
+
+			@Override
+			public Set<String> getChildGroupNames() {
+				return childGroups;
+			}
+		};
+	}
+}
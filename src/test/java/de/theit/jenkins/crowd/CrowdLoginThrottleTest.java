@@ -0,0 +1,114 @@
+/*
+ * @(#)CrowdLoginThrottleTest.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2026 The Jenkins project contributors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.acegisecurity.LockedException;
+import org.junit.Test;
+
+/**
+ * Tests {@link CrowdLoginThrottle}.
+ * 
+ * @version $Id$
+ */
+public class CrowdLoginThrottleTest {
+	@Test
+	public void blocksUserAfterTooManyFailures() {
+		CrowdLoginThrottle throttle = new CrowdLoginThrottle();
+		for (int i = 0; i < 10; i++) {
+			throttle.checkAllowed("Alice", "10.0.0.1");
+			throttle.recordFailure("Alice", "10.0.0.1");
+		}
+		throttle.checkAllowed("alice", "10.0.0.1");
+		throttle.recordFailure("alice", "10.0.0.1");
+		try {
+			// the user name is compared case-insensitively
+			throttle.checkAllowed("ALICE", "10.0.0.2");
+			fail("login attempt not rejected");
+		} catch (LockedException expected) {
+			// expected
+		}
+		assertEquals(1, throttle.getShedAttempts());
+		assertEquals(1, throttle.getBlockedCount());
+
+		// other users aren't affected
+		throttle.checkAllowed("bob", "10.0.0.1");
+	}
+
+	@Test
+	public void addressFailuresDontBlockTheUser() {
+		CrowdLoginThrottle throttle = new CrowdLoginThrottle();
+		for (int i = 0; i < 20; i++) {
+			throttle.recordAddressFailure("10.0.0.1");
+		}
+		throttle.checkAllowed("alice", null);
+		assertEquals(20, throttle.getFailedAttempts());
+		assertEquals(0, throttle.getBlockedCount());
+	}
+
+	@Test
+	public void successResetsTheUser() {
+		CrowdLoginThrottle throttle = new CrowdLoginThrottle();
+		for (int i = 0; i < 10; i++) {
+			throttle.recordFailure("alice", null);
+		}
+		throttle.recordSuccess("alice");
+		throttle.recordFailure("alice", null);
+		throttle.checkAllowed("alice", null);
+	}
+
+	@Test
+	public void clientAddressIsTakenFromTheRequest() {
+		assertEquals("10.0.0.1", CrowdLoginThrottle.getClientAddress(null, request("10.0.0.1")));
+		assertNull(CrowdLoginThrottle.getClientAddress(null, null));
+	}
+
+	@Test
+	public void forwardedAddressIsTheLastOne() {
+		assertEquals("10.0.0.2", CrowdLoginThrottle.getForwardedAddress("192.168.1.1, 10.0.0.2"));
+		assertNull(CrowdLoginThrottle.getForwardedAddress(" "));
+		assertNull(CrowdLoginThrottle.getForwardedAddress(null));
+	}
+
+	private static HttpServletRequest request(final String remoteAddress) {
+		return (HttpServletRequest) Proxy.newProxyInstance(HttpServletRequest.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						return "getRemoteAddr".equals(method.getName()) ? remoteAddress : null;
+					}
+				});
+	}
+}
@@ -0,0 +1,247 @@
+/*
+ * @(#)CrowdOffHeapStoreTest.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2026 The Jenkins project contributors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.acegisecurity.Authentication;
+import org.junit.Test;
+
+/**
+ * Tests {@link CrowdOffHeapStore} and its use by {@link CrowdTokenStore}.
+ * 
+ * @version $Id$
+ */
+public class CrowdOffHeapStoreTest {
+	@Test
+	public void storesReadsAndRemovesEntries() {
+		CrowdOffHeapStore store = new CrowdOffHeapStore(1);
+		CrowdOffHeapStore.Region<Set<String>> groups = store.region(CrowdOffHeapStore.STRING_SET);
+		Set<String> names = new HashSet<String>(Arrays.asList("developers", "jenkins-users"));
+
+		assertNull(groups.get("alice"));
+		groups.put("alice", names, 42L);
+		CrowdOffHeapStore.Stored<Set<String>> stored = groups.get("alice");
+		assertEquals(names, stored.value);
+		assertEquals(42L, stored.created);
+		assertEquals(1, store.getSize());
+
+		// a newer value replaces the old one
+		groups.put("alice", Collections.singleton("developers"), 43L);
+		assertEquals(Collections.singleton("developers"), groups.get("alice").value);
+		assertEquals(1, store.getSize());
+
+		groups.remove("alice");
+		assertNull(groups.get("alice"));
+		assertEquals(0, store.getSize());
+		assertEquals(2, store.getHitCount());
+		assertEquals(2, store.getMissCount());
+	}
+
+	@Test
+	public void regionsAreSeparate() {
+		CrowdOffHeapStore store = new CrowdOffHeapStore(1);
+		CrowdOffHeapStore.Region<Boolean> members = store.region(CrowdOffHeapStore.BOOLEAN);
+		CrowdOffHeapStore.Region<Boolean> active = store.region(CrowdOffHeapStore.BOOLEAN);
+
+		members.put("alice", Boolean.TRUE, 1L);
+		active.put("alice", Boolean.FALSE, 1L);
+
+		assertEquals(Boolean.TRUE, members.get("alice").value);
+		assertEquals(Boolean.FALSE, active.get("alice").value);
+	}
+
+	@Test
+	public void clearingRegionStartsNewGeneration() {
+		CrowdOffHeapStore store = new CrowdOffHeapStore(1);
+		CrowdOffHeapStore.Region<Boolean> members = store.region(CrowdOffHeapStore.BOOLEAN);
+		CrowdOffHeapStore.Region<Boolean> other = store.region(CrowdOffHeapStore.BOOLEAN);
+		members.put("alice", Boolean.TRUE, 1L);
+		members.put("bob", Boolean.TRUE, 1L);
+		other.put("alice", Boolean.TRUE, 1L);
+
+		members.clear();
+		assertEquals(3, store.getSize());
+
+		assertNull(members.get("alice"));
+		assertNull(members.get("bob"));
+		assertEquals(Boolean.TRUE, other.get("alice").value);
+		// entries of the old generation are removed when they are found
+		assertEquals(1, store.getSize());
+
+		members.put("alice", Boolean.FALSE, 2L);
+		assertEquals(Boolean.FALSE, members.get("alice").value);
+	}
+
+	@Test
+	public void oldestEntriesAreEvictedWhenTheBudgetIsUsed() {
+		CrowdOffHeapStore store = new CrowdOffHeapStore(2);
+		CrowdOffHeapStore.Region<Set<String>> groups = store.region(CrowdOffHeapStore.STRING_SET);
+		Set<String> names = new HashSet<String>();
+		for (int i = 0; i < 50; i++) {
+			names.add("a-group-with-a-rather-long-name-" + i);
+		}
+
+		// about 2 KB per entry => 4 MB in total
+		int count = 2000;
+		for (int i = 0; i < count; i++) {
+			groups.put("user-" + i, names, i);
+		}
+
+		assertTrue(store.getEvictionCount() > 0);
+		assertTrue(store.getAllocatedBytes() <= store.getCapacity());
+		assertEquals(2L << 20, store.getCapacity());
+		assertNull(groups.get("user-0"));
+		assertEquals(names, groups.get("user-" + (count - 1)).value);
+		assertEquals(count - store.getEvictionCount(), store.getSize());
+	}
+
+	@Test
+	public void entriesLargerThanSlabAreNotStored() {
+		CrowdOffHeapStore store = new CrowdOffHeapStore(1);
+		CrowdOffHeapStore.Region<Set<String>> groups = store.region(CrowdOffHeapStore.STRING_SET);
+		Set<String> names = new HashSet<String>();
+		for (int i = 0; i < 30000; i++) {
+			names.add("a-group-with-a-rather-long-name-" + i);
+		}
+
+		groups.put("alice", names, 1L);
+
+		assertNull(groups.get("alice"));
+		assertEquals(0, store.getAllocatedBytes());
+	}
+
+	@Test
+	public void budgetIsSplitIntoPartitions() {
+		assertEquals(1, new CrowdOffHeapStore(1).getPartitionCount());
+		assertEquals(2, new CrowdOffHeapStore(3).getPartitionCount());
+		assertEquals(16, new CrowdOffHeapStore(64).getPartitionCount());
+		assertEquals(64L << 20, new CrowdOffHeapStore(64).getCapacity());
+		// the budget isn't exceeded
+		assertEquals(2L << 20, new CrowdOffHeapStore(3).getCapacity());
+
+		CrowdOffHeapStore store = new CrowdOffHeapStore(64);
+		CrowdOffHeapStore.Region<Boolean> members = store.region(CrowdOffHeapStore.BOOLEAN);
+		for (int i = 0; i < 10000; i++) {
+			members.put("user-" + i, Boolean.valueOf(i % 2 == 0), i);
+		}
+		for (int i = 0; i < 10000; i++) {
+			assertEquals(Boolean.valueOf(i % 2 == 0), members.get("user-" + i).value);
+		}
+		assertEquals(10000, store.getSize());
+		// one slab per partition that received entries
+		assertTrue(store.getAllocatedBytes() <= 16L << 20);
+	}
+
+	@Test
+	public void closedStoreIsEmpty() {
+		CrowdOffHeapStore store = new CrowdOffHeapStore(1);
+		CrowdOffHeapStore.Region<Boolean> members = store.region(CrowdOffHeapStore.BOOLEAN);
+		members.put("alice", Boolean.TRUE, 1L);
+
+		store.close();
+		members.put("bob", Boolean.TRUE, 1L);
+
+		assertNull(members.get("alice"));
+		assertNull(members.get("bob"));
+		assertEquals(0, store.getAllocatedBytes());
+	}
+
+	@Test
+	public void ssoTokensAreNotWrittenOffHeap() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		CrowdTokenStore.AUTHENTICATIONS.write(new DataOutputStream(bytes),
+				CrowdTokenStoreTest.authentication("alice", "secret-sso-token"));
+
+		assertFalse(new String(bytes.toByteArray(), StandardCharsets.ISO_8859_1).contains("secret-sso-token"));
+	}
+
+	@Test
+	public void authenticationsFromSecondLevelCarryTheRequestToken() {
+		CrowdOffHeapStore.Region<Authentication> region = new CrowdOffHeapStore(1)
+				.region(CrowdTokenStore.AUTHENTICATIONS);
+		CrowdTokenStore first = tokenStore(region);
+		first.putAuthentication("token-1", CrowdTokenStoreTest.authentication("alice", "token-1"));
+
+		// e.g. the entry was dropped from the table
+		CrowdTokenStore second = tokenStore(region);
+		Authentication auth = second.getAuthentication("token-1");
+
+		assertEquals("alice", auth.getName());
+		assertEquals("token-1", ((CrowdAuthenticationToken) auth).getSSOToken());
+		assertNull(second.getAuthentication("token-2"));
+	}
+
+	@Test
+	public void invalidatingUsersKeepsTheOthersInSecondLevel() {
+		CrowdOffHeapStore.Region<Authentication> region = new CrowdOffHeapStore(1)
+				.region(CrowdTokenStore.AUTHENTICATIONS);
+		CrowdTokenStore first = tokenStore(region);
+		first.putAuthentication("alice-token", CrowdTokenStoreTest.authentication("Alice", "alice-token"));
+		first.putAuthentication("bob-token", CrowdTokenStoreTest.authentication("bob", "bob-token"));
+		CrowdTokenStore second = tokenStore(region);
+		sleepPastMillisecond();
+
+		second.invalidateUsers(Collections.singleton("alice"));
+
+		assertNull(second.getAuthentication("alice-token"));
+		assertEquals("bob", second.getAuthentication("bob-token").getName());
+
+		// a new login of the invalidated user is found again
+		sleepPastMillisecond();
+		first.putAuthentication("alice-token-2", CrowdTokenStoreTest.authentication("Alice", "alice-token-2"));
+		assertEquals("Alice", second.getAuthentication("alice-token-2").getName());
+	}
+
+	private static CrowdTokenStore tokenStore(CrowdOffHeapStore.Region<Authentication> region) {
+		CrowdTokenStore store = new CrowdTokenStore(1000, TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(15));
+		store.setSecondLevel(region);
+		return store;
+	}
+
+	/**
+	 * Waits until the clock has advanced, so that entries written before and
+	 * after have different times.
+	 */
+	private static void sleepPastMillisecond() {
+		long start = System.currentTimeMillis();
+		while (System.currentTimeMillis() <= start) {
+			Thread.yield();
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * @(#)CrowdSidIndexTest.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2026 The Jenkins project contributors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.atlassian.crowd.exception.OperationFailedException;
+
+/**
+ * Tests {@link CrowdSidIndex}.
+ * 
+ * @version $Id$
+ */
+public class CrowdSidIndexTest {
+	/** Whether Crowd is reachable. */
+	private boolean available = true;
+
+	private final FakeCrowdClient crowd = new FakeCrowdClient()
+			.answer("searchUsers", new FakeCrowdClient.Answer() {
+				@Override
+				public Object answer(Object[] args) throws Exception {
+					if (!available) {
+						throw new OperationFailedException("Crowd is down");
+					}
+					return Arrays.asList(FakeCrowdClient.user("alice", "Alice Smith"),
+							FakeCrowdClient.user("bob", "Robert Smithers"));
+				}
+			}).answer("searchGroupNames", new FakeCrowdClient.Answer() {
+				@Override
+				public Object answer(Object[] args) {
+					return Collections.singletonList("jenkins-admins");
+				}
+			});
+
+	private final CrowdSidIndex index = new CrowdSidIndex(this.crowd.configuration("", false));
+
+	@Test
+	public void suggestsUsersAndGroupsByPrefix() {
+		assertEquals(TimeUnit.MINUTES.toMillis(15), this.index.refresh());
+		int calls = this.crowd.totalCalls();
+
+		assertEquals(Arrays.asList("alice", "bob"), this.index.suggest("SMITH"));
+		assertEquals(Arrays.asList("bob"), this.index.suggest("rob"));
+		assertEquals(Arrays.asList("jenkins-admins"), this.index.suggest("jen"));
+		assertEquals(Collections.emptyList(), this.index.suggest(" "));
+		// suggestions never ask Crowd
+		assertEquals(calls, this.crowd.totalCalls());
+	}
+
+	@Test
+	public void suggestionsDoNotBuildTheIndex() {
+		assertEquals(Collections.emptyList(), this.index.suggest("alice"));
+		assertEquals(0, this.crowd.totalCalls());
+	}
+
+	@Test
+	public void failedBuildsBackOff() {
+		this.available = false;
+		assertEquals(TimeUnit.SECONDS.toMillis(30), this.index.refresh());
+		assertEquals(TimeUnit.SECONDS.toMillis(60), this.index.refresh());
+		assertEquals(TimeUnit.SECONDS.toMillis(120), this.index.refresh());
+		assertEquals(3, this.index.getFailures());
+		assertTrue(this.index.getLastFailure() > 0);
+		assertEquals(0, this.index.getLastBuild());
+
+		this.available = true;
+		assertEquals(TimeUnit.MINUTES.toMillis(15), this.index.refresh());
+		assertEquals(0, this.index.getFailures());
+		assertEquals(Arrays.asList("alice"), this.index.suggest("al"));
+	}
+
+	@Test
+	public void retryDelayIsCappedByTheRefreshInterval() {
+		assertEquals(TimeUnit.SECONDS.toMillis(30), CrowdSidIndex.getRetryDelay(1));
+		assertEquals(TimeUnit.SECONDS.toMillis(240), CrowdSidIndex.getRetryDelay(4));
+		assertEquals(TimeUnit.MINUTES.toMillis(15), CrowdSidIndex.getRetryDelay(10));
+		assertEquals(TimeUnit.MINUTES.toMillis(15), CrowdSidIndex.getRetryDelay(1000));
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * @(#)CrowdTokenStoreTest.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2026 The Jenkins project contributors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.acegisecurity.Authentication;
+import org.acegisecurity.GrantedAuthority;
+import org.junit.Test;
+
+/**
+ * Tests {@link CrowdTokenStore}.
+ * 
+ * @version $Id$
+ */
+public class CrowdTokenStoreTest {
+	/** The number of segments of the store. */
+	private static final int SEGMENTS = 16;
+
+	@Test
+	public void lookupsUseTheFingerprintOfTheToken() {
+		CrowdTokenStore store = new CrowdTokenStore(1000, TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(1));
+		Authentication alice = authentication("alice", "token-1");
+		store.setValidated("token-1");
+		store.putAuthentication("token-1", alice);
+
+		// an equal token built from other characters is found
+		String same = new StringBuilder("token-").append(1).toString();
+		assertTrue(store.isValidated(same));
+		assertSame(alice, store.getAuthentication(same));
+		assertFalse(store.isValidated("token-2"));
+		assertNull(store.getAuthentication("token-2"));
+		assertFalse(store.isValidated(null));
+		assertEquals(1, store.getSize());
+		assertEquals(2, store.getHitCount());
+		assertEquals(2, store.getMissCount());
+
+		store.invalidate("token-1");
+		assertFalse(store.isValidated("token-1"));
+		assertNull(store.getAuthentication("token-1"));
+		assertEquals(0, store.getSize());
+	}
+
+	@Test
+	public void timingWheelRemovesExpiredEntries() {
+		long ttl = TimeUnit.SECONDS.toMillis(100);
+		long start = System.currentTimeMillis();
+		CrowdTokenStore store = new CrowdTokenStore(1000, ttl, 2 * ttl);
+		store.setValidated("validated");
+		store.putAuthentication("authenticated", authentication("alice", "authenticated"));
+		assertEquals(2, store.getSize());
+
+		// the validation expires first; the first level of the wheel only
+		// reaches 64 ticks ahead
+		store.expire(start + ttl - TimeUnit.SECONDS.toMillis(2));
+		assertEquals(2, store.getSize());
+		store.expire(start + ttl + TimeUnit.SECONDS.toMillis(2));
+		assertEquals(1, store.getSize());
+		store.expire(start + 2 * ttl + TimeUnit.SECONDS.toMillis(2));
+		assertEquals(0, store.getSize());
+	}
+
+	@Test
+	public void timingWheelReachesBeyondItsSecondLevel() {
+		// 5,000 ticks are beyond the 4,096 ticks of the second level
+		long ttl = TimeUnit.SECONDS.toMillis(5000);
+		long start = System.currentTimeMillis();
+		CrowdTokenStore store = new CrowdTokenStore(1000, ttl, ttl);
+		store.setValidated("token");
+
+		store.expire(start + ttl - TimeUnit.SECONDS.toMillis(2));
+		assertEquals(1, store.getSize());
+		store.expire(start + ttl + TimeUnit.SECONDS.toMillis(2));
+		assertEquals(0, store.getSize());
+	}
+
+	@Test
+	public void fullSegmentDoesNotAffectTheOthers() {
+		// one token per segment
+		CrowdTokenStore store = new CrowdTokenStore(SEGMENTS, TimeUnit.MINUTES.toMillis(1),
+				TimeUnit.MINUTES.toMillis(1));
+		List<String> sameSegment = new ArrayList<String>();
+		String otherSegment = null;
+		for (int i = 0; sameSegment.size() < 2 || null == otherSegment; i++) {
+			String token = "token-" + i;
+			if (segment(token) == segment("token-0")) {
+				if (sameSegment.size() < 2) {
+					sameSegment.add(token);
+				}
+			} else if (null == otherSegment) {
+				otherSegment = token;
+			}
+		}
+
+		store.setValidated(sameSegment.get(0));
+		store.setValidated(sameSegment.get(1));
+		store.setValidated(otherSegment);
+
+		assertTrue(store.isValidated(sameSegment.get(0)));
+		assertFalse(store.isValidated(sameSegment.get(1)));
+		assertTrue(store.isValidated(otherSegment));
+		assertEquals(SEGMENTS, store.getCapacity());
+		assertEquals(2, store.getSize());
+	}
+
+	@Test
+	public void segmentsGrowAndKeepTheirEntries() {
+		CrowdTokenStore store = new CrowdTokenStore(100000, TimeUnit.MINUTES.toMillis(1),
+				TimeUnit.MINUTES.toMillis(1));
+		for (int i = 0; i < 5000; i++) {
+			store.setValidated("token-" + i);
+		}
+		for (int i = 0; i < 5000; i += 2) {
+			store.invalidate("token-" + i);
+		}
+		assertEquals(2500, store.getSize());
+		for (int i = 0; i < 5000; i++) {
+			assertEquals(i % 2 == 1, store.isValidated("token-" + i));
+		}
+	}
+
+	@Test
+	public void invalidateUsersRemovesOnlyTheirTokens() {
+		CrowdTokenStore store = new CrowdTokenStore(1000, TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(1));
+		for (int i = 0; i < 10; i++) {
+			store.setValidated("alice-" + i);
+			store.putAuthentication("alice-" + i, authentication("Alice", "alice-" + i));
+			store.setValidated("bob-" + i);
+			store.putAuthentication("bob-" + i, authentication("bob", "bob-" + i));
+		}
+		assertEquals(10, store.countTokens("alice")[0]);
+
+		store.invalidateUsers(Collections.singleton("alice"));
+
+		assertEquals(0, store.countTokens("alice")[0]);
+		assertEquals(10, store.countTokens("bob")[1]);
+		for (int i = 0; i < 10; i++) {
+			assertNull(store.getAuthentication("alice-" + i));
+			assertFalse(store.isValidated("alice-" + i));
+			assertEquals("bob", store.getAuthentication("bob-" + i).getName());
+		}
+		assertEquals(10, store.getSize());
+	}
+
+	/**
+	 * Creates the authentication of the auto-login for a user.
+	 */
+	static Authentication authentication(String username, String token) {
+		List<GrantedAuthority> authorities = Collections.emptyList();
+		return new CrowdAuthenticationToken(
+				new CrowdUser(new CrowdUserSnapshot(username, null, null, true), authorities), null, authorities,
+				token);
+	}
+
+	/**
+	 * Returns the segment of a token: the upper four bits of its SHA-256
+	 * hash.
+	 */
+	private static int segment(String token) throws IllegalStateException {
+		try {
+			return (MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8))[0] >>> 4)
+					& (SEGMENTS - 1);
+		} catch (java.security.NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+}
@@ -0,0 +1,533 @@
+/*
+ * @(#)CrowdTrafficReplay.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2026 The Jenkins project contributors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.acegisecurity.AuthenticationException;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import com.atlassian.crowd.exception.InvalidAuthenticationException;
+import com.atlassian.crowd.exception.InvalidTokenException;
+import com.atlassian.crowd.model.group.Group;
+import com.atlassian.crowd.model.user.User;
+import com.atlassian.crowd.service.client.CrowdClient;
+
+/**
+ * This tool replays a trace written by {@link CrowdTrafficRecorder} against a
+ * fake Crowd server, so that changes to the caches and the servlet filter can
+ * be measured with the real mix of SSO requests and password logins.
+ * <p>
+ * Password logins are sent to {@link CrowdSecurityRealm#authenticate} and SSO
+ * requests through {@link CrowdServletFilter}, both backed by a configuration
+ * whose Crowd client is a fake answering every call after a fixed latency.
+ * Each recorded user gets as many groups as were recorded for it. The events
+ * are replayed with their recorded spacing divided by the speed-up; a
+ * speed-up of 0 replays them as fast as possible.
+ * <p>
+ * Usage:
+ * 
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=de.theit.jenkins.crowd.CrowdTrafficReplay \
+ *     -Dexec.args="&lt;trace file&gt; [speed-up, default 1] [Crowd latency in ms, default 20] [threads, default 16]"
+ * </pre>
+ * 
+ * The tool is part of the test sources only and isn't shipped with the
+ * plugin.
+ * 
+ * The tool prints per entry point the number of events and the recorded and
+ * replayed latency percentiles, the number of Crowd calls, and the cache
+ * statistics.
+ * 
+ * @version $Id$
+ */
+public final class CrowdTrafficReplay {
+	/** The group whose members may login. */
+	private static final String ALLOWED_GROUP = "jenkins-users";
+
+	/** The password the fake Crowd server rejects. */
+	private static final String WRONG_PASSWORD = "wrong";
+
+	/** The password the fake Crowd server accepts. */
+	private static final String PASSWORD = "secret";
+
+	/** The names of the entry points by their code. */
+	private static final String[] ENTRY_NAMES = { "?", "SSO", "form login", "Basic auth" };
+
+	/** The fake Crowd server. */
+	private final FakeCrowd crowd;
+
+	/** The security realm the logins are sent to. */
+	private final CrowdSecurityRealm realm;
+
+	/** The filter the SSO requests are sent to. */
+	private final CrowdServletFilter filter;
+
+	/** The configuration used by the realm and the filter. */
+	private final CrowdConfigurationService configuration;
+
+	/** The recorded durations in microseconds, by entry point. */
+	private final List<List<Long>> recorded = new ArrayList<List<Long>>();
+
+	/** The replayed durations in microseconds, by entry point. */
+	private final List<List<Long>> replayed = new ArrayList<List<Long>>();
+
+	/** The number of recorded Crowd calls. */
+	private final AtomicLong recordedCalls = new AtomicLong();
+
+	/**
+	 * Creates a new replay against a fake Crowd server.
+	 * 
+	 * @param latency
+	 *            The latency of every call to the fake Crowd server in
+	 *            milliseconds.
+	 */
+	CrowdTrafficReplay(long latency) {
+		this.crowd = new FakeCrowd(latency);
+		Properties props = CrowdConfigurationService.getProperties("http://crowd.invalid/crowd", "replay", "replay",
+				2, true, null, null, Boolean.FALSE, null, null, null, null, null, null, null);
+		this.configuration = CrowdConfigurationRegistry.create(ALLOWED_GROUP, false, true, props,
+				this.crowd.getClient());
+		this.realm = new CrowdSecurityRealm("http://crowd.invalid/crowd", "replay", "replay", ALLOWED_GROUP, false,
+				2, true, null, null, Boolean.FALSE, null, null, null, null, null, null, null);
+		this.realm.setConfiguration(this.configuration);
+		this.filter = new CrowdServletFilter(this.realm, this.configuration, new Filter() {
+			@Override
+			public void init(FilterConfig filterConfig) {
+			}
+
+			@Override
+			public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) {
+			}
+
+			@Override
+			public void destroy() {
+			}
+		});
+		for (int i = 0; i < ENTRY_NAMES.length; i++) {
+			this.recorded.add(Collections.synchronizedList(new ArrayList<Long>()));
+			this.replayed.add(Collections.synchronizedList(new ArrayList<Long>()));
+		}
+	}
+
+	/**
+	 * Replays a trace.
+	 * 
+	 * @param args
+	 *            The trace file, optionally followed by the speed-up, the
+	 *            latency of the fake Crowd server in milliseconds and the
+	 *            number of threads.
+	 * @throws Exception
+	 *             If the trace can't be read.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: CrowdTrafficReplay <trace file> [speed-up] [Crowd latency in ms] [threads]");
+			System.exit(2);
+		}
+		double speed = args.length > 1 ? Double.parseDouble(args[1]) : 1.0;
+		long latency = args.length > 2 ? Long.parseLong(args[2]) : 20L;
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+
+		CrowdTrafficReplay replay = new CrowdTrafficReplay(latency);
+		InputStream in = new BufferedInputStream(new FileInputStream(args[0]));
+		try {
+			replay.run(new CrowdTrafficRecorder.Reader(in), speed, threads);
+		} finally {
+			in.close();
+		}
+		replay.report(System.out);
+		System.exit(0);
+	}
+
+	/**
+	 * Replays all events of a trace.
+	 */
+	void run(CrowdTrafficRecorder.Reader reader, double speed, int threads) throws IOException,
+			InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		long start = System.nanoTime();
+		CrowdTrafficRecorder.Event event;
+		while (null != (event = reader.next())) {
+			if (speed > 0) {
+				long due = start + (long) (TimeUnit.MILLISECONDS.toNanos(event.offset) / speed);
+				long wait = due - System.nanoTime();
+				if (wait > 0) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+			}
+			final CrowdTrafficRecorder.Event current = event;
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					replay(current);
+				}
+			});
+		}
+		pool.shutdown();
+		pool.awaitTermination(1, TimeUnit.DAYS);
+	}
+
+	/**
+	 * Replays a single event.
+	 */
+	void replay(CrowdTrafficRecorder.Event event) {
+		if (event.entry <= 0 || event.entry >= ENTRY_NAMES.length) {
+			return;
+		}
+		String username = 0L != event.user ? "user-" + Long.toHexString(event.user) : null;
+		if (null != username) {
+			this.crowd.groupCounts.put(username, event.groups);
+		}
+		this.recorded.get(event.entry).add(event.micros);
+		this.recordedCalls.addAndGet(event.crowdCalls);
+
+		long begin = System.nanoTime();
+		if (CrowdTrafficRecorder.ENTRY_SSO == event.entry) {
+			String token = "token-" + Long.toHexString(event.token);
+			if (null != username) {
+				this.crowd.tokenUsers.put(token, username);
+			}
+			if (event.success) {
+				this.crowd.invalidTokens.remove(token);
+			} else {
+				this.crowd.invalidTokens.add(token);
+			}
+			try {
+				this.filter.doFilter(request(token), stub(HttpServletResponse.class), stub(FilterChain.class));
+			} catch (Exception ex) {
+				// counted like a rejected request
+			} finally {
+				SecurityContextHolder.clearContext();
+			}
+		} else if (null != username) {
+			try {
+				this.realm.authenticate(username, event.success ? PASSWORD : WRONG_PASSWORD);
+			} catch (AuthenticationException ex) {
+				// the recorded login failed as well
+			}
+		}
+		this.replayed.get(event.entry).add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin));
+	}
+
+	/**
+	 * Prints the results.
+	 */
+	void report(PrintStream out) {
+		out.println("entry point      events  recorded p50/p99 ms  replayed p50/p99 ms");
+		for (int i = 1; i < ENTRY_NAMES.length; i++) {
+			List<Long> rec = sorted(this.recorded.get(i));
+			List<Long> rep = sorted(this.replayed.get(i));
+			out.println(String.format("%-15s %7d  %8.1f / %8.1f    %8.1f / %8.1f", ENTRY_NAMES[i], rec.size(),
+					percentile(rec, 0.5), percentile(rec, 0.99), percentile(rep, 0.5), percentile(rep, 0.99)));
+		}
+		out.println("Crowd calls: recorded " + this.recordedCalls.get() + ", replayed " + this.crowd.calls.get());
+		CrowdTokenStore tokens = this.configuration.tokenStore;
+		out.println("SSO token store: " + tokens.getHitCount() + " hits, " + tokens.getMissCount() + " misses");
+		for (CrowdCache<?> cache : this.configuration.getCaches()) {
+			out.println("Cache " + cache.getName() + ": " + cache.getStats());
+		}
+	}
+
+	private static List<Long> sorted(List<Long> values) {
+		List<Long> copy;
+		synchronized (values) {
+			copy = new ArrayList<Long>(values);
+		}
+		Collections.sort(copy);
+		return copy;
+	}
+
+	private static double percentile(List<Long> sorted, double p) {
+		if (sorted.isEmpty()) {
+			return 0.0;
+		}
+		int index = (int) Math.ceil(p * sorted.size()) - 1;
+		return sorted.get(Math.max(0, index)) / 1000.0;
+	}
+
+	/**
+	 * Creates a request carrying the SSO cookie.
+	 */
+	private HttpServletRequest request(final String token) {
+		final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+		final String cookieName = this.configuration.clientProperties.getCookieTokenKey();
+		return (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						String name = method.getName();
+						if ("getCookies".equals(name)) {
+							return new Cookie[] { new Cookie(cookieName, token) };
+						} else if ("getAttribute".equals(name)) {
+							return attributes.get(args[0]);
+						} else if ("setAttribute".equals(name)) {
+							if (null == args[1]) {
+								attributes.remove(args[0]);
+							} else {
+								attributes.put((String) args[0], args[1]);
+							}
+							return null;
+						} else if ("removeAttribute".equals(name)) {
+							attributes.remove(args[0]);
+							return null;
+						} else if ("getRemoteAddr".equals(name)) {
+							return "127.0.0.1";
+						} else if ("getRequestURI".equals(name)) {
+							return "/";
+						} else if ("getContextPath".equals(name)) {
+							return "";
+						}
+						return defaultValue(method.getReturnType());
+					}
+				});
+	}
+
+	/**
+	 * Creates an object that returns default values for all methods.
+	 */
+	static <T> T stub(Class<T> type) {
+		return type.cast(Proxy.newProxyInstance(CrowdTrafficReplay.class.getClassLoader(), new Class<?>[] { type },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						return defaultValue(method.getReturnType());
+					}
+				}));
+	}
+
+	/**
+	 * Returns the value a stub returns for the given type: <code>0</code>,
+	 * <code>false</code>, an empty collection, or <code>null</code>.
+	 */
+	static Object defaultValue(Class<?> type) {
+		if (type == boolean.class) {
+			return Boolean.FALSE;
+		} else if (type == int.class) {
+			return 0;
+		} else if (type == long.class) {
+			return 0L;
+		} else if (type == double.class) {
+			return 0.0;
+		} else if (type == float.class) {
+			return 0.0f;
+		} else if (type == short.class) {
+			return (short) 0;
+		} else if (type == byte.class) {
+			return (byte) 0;
+		} else if (type == char.class) {
+			return (char) 0;
+		} else if (type == List.class || type == Collection.class) {
+			return Collections.emptyList();
+		} else if (type == Set.class) {
+			return Collections.emptySet();
+		} else if (type == Map.class) {
+			return Collections.emptyMap();
+		}
+		return null;
+	}
+
+	/**
+	 * A fake Crowd server. Every user belongs to the allowed group and to as
+	 * many further groups as were recorded; passwords other than
+	 * {@link CrowdTrafficReplay#WRONG_PASSWORD} and tokens not marked
+	 * invalid are accepted.
+	 */
+	static final class FakeCrowd implements InvocationHandler {
+		/** The latency of every call in milliseconds. */
+		private final long latency;
+
+		/** The number of calls. */
+		final AtomicLong calls = new AtomicLong();
+
+		/** The number of groups per user. */
+		final Map<String, Integer> groupCounts = new ConcurrentHashMap<String, Integer>();
+
+		/** The user per SSO token. */
+		final Map<String, String> tokenUsers = new ConcurrentHashMap<String, String>();
+
+		/** The SSO tokens that are rejected. */
+		final Set<String> invalidTokens = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		FakeCrowd(long pLatency) {
+			this.latency = pLatency;
+		}
+
+		CrowdClient getClient() {
+			return (CrowdClient) Proxy.newProxyInstance(CrowdClient.class.getClassLoader(),
+					new Class<?>[] { CrowdClient.class }, this);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getDeclaringClass() == Object.class) {
+				return method.invoke(this, args);
+			}
+			this.calls.incrementAndGet();
+			if (this.latency > 0) {
+				Thread.sleep(this.latency);
+			}
+
+			String name = method.getName();
+			if ("authenticateUser".equals(name)) {
+				if (WRONG_PASSWORD.equals(args[1])) {
+					throw new InvalidAuthenticationException("Wrong password");
+				}
+				return user((String) args[0]);
+			} else if ("getUser".equals(name)) {
+				return user((String) args[0]);
+			} else if ("validateSSOAuthentication".equals(name)) {
+				checkToken((String) args[0]);
+				return null;
+			} else if ("validateSSOAuthenticationAndGetSession".equals(name)) {
+				checkToken((String) args[0]);
+				return session((String) args[0], method.getReturnType());
+			} else if ("findUserFromSSOToken".equals(name)) {
+				checkToken((String) args[0]);
+				return user(this.tokenUsers.get(args[0]));
+			} else if ("isUserDirectGroupMember".equals(name) || "isUserNestedGroupMember".equals(name)) {
+				return Boolean.TRUE;
+			} else if ("getGroup".equals(name)) {
+				return group((String) args[0]);
+			} else if (name.startsWith("getNamesOfGroupsFor")) {
+				return page(groupNames((String) args[0]), (Integer) args[1], (Integer) args[2]);
+			} else if (name.startsWith("getGroupsFor")) {
+				List<Group> groups = new ArrayList<Group>();
+				for (String group : page(groupNames((String) args[0]), (Integer) args[1], (Integer) args[2])) {
+					groups.add(group(group));
+				}
+				return groups;
+			}
+			return defaultValue(method.getReturnType());
+		}
+
+		private void checkToken(String token) throws InvalidTokenException {
+			if (this.invalidTokens.contains(token) || !this.tokenUsers.containsKey(token)) {
+				throw new InvalidTokenException("Invalid token");
+			}
+		}
+
+		private List<String> groupNames(String username) {
+			Integer count = this.groupCounts.get(username);
+			List<String> names = new ArrayList<String>();
+			names.add(ALLOWED_GROUP);
+			for (int i = 1; null != count && i < count; i++) {
+				names.add("group-" + i);
+			}
+			return names;
+		}
+
+		private static List<String> page(List<String> names, int start, int max) {
+			if (start >= names.size()) {
+				return Collections.emptyList();
+			}
+			return names.subList(start, Math.min(names.size(), start + max));
+		}
+
+		private static User user(final String username) {
+			return (User) Proxy.newProxyInstance(User.class.getClassLoader(), new Class<?>[] { User.class },
+					new InvocationHandler() {
+						@Override
+						public Object invoke(Object proxy, Method method, Object[] args) {
+							String name = method.getName();
+							if ("getName".equals(name)) {
+								return username;
+							} else if ("isActive".equals(name)) {
+								return Boolean.TRUE;
+							} else if ("getEmailAddress".equals(name)) {
+								return username + "@example.invalid";
+							}
+							return defaultValue(method.getReturnType());
+						}
+					});
+		}
+
+		private static Group group(final String groupName) {
+			return (Group) Proxy.newProxyInstance(Group.class.getClassLoader(), new Class<?>[] { Group.class },
+					new InvocationHandler() {
+						@Override
+						public Object invoke(Object proxy, Method method, Object[] args) {
+							String name = method.getName();
+							if ("getName".equals(name)) {
+								return groupName;
+							} else if ("isActive".equals(name)) {
+								return Boolean.TRUE;
+							}
+							return defaultValue(method.getReturnType());
+						}
+					});
+		}
+
+		private Object session(final String token, Class<?> type) {
+			final String username = this.tokenUsers.get(token);
+			return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					String name = method.getName();
+					if ("getToken".equals(name)) {
+						return token;
+					} else if ("getUser".equals(name)) {
+						return user(username);
+					} else if ("getExpiryDate".equals(name)) {
+						return new Date(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1));
+					} else if ("getCreatedDate".equals(name)) {
+						return new Date();
+					}
+					return defaultValue(method.getReturnType());
+				}
+			});
+		}
+	}
+}
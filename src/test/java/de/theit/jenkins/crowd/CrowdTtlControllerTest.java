@@ -0,0 +1,100 @@
+/*
+ * @(#)CrowdTtlControllerTest.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2026 The Jenkins project contributors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletRequest;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link CrowdTtlController}.
+ * 
+ * @version $Id$
+ */
+public class CrowdTtlControllerTest {
+	@Test
+	public void onlyCallsOfRequestsAreMeasured() {
+		CrowdTtlController controller = new CrowdTtlController(null);
+
+		// a slow bulk call of a background task
+		controller.callCompleted("getMemberships", TimeUnit.SECONDS.toNanos(30), false);
+		assertEquals(0, controller.getLatency());
+		assertEquals(0, controller.getPressurePercent());
+
+		CrowdCallTracer.RequestTrace trace = CrowdCallTracer.begin(request());
+		try {
+			controller.callCompleted("getUser", TimeUnit.MILLISECONDS.toNanos(20), false);
+		} finally {
+			CrowdCallTracer.end(trace);
+		}
+		assertEquals(20, controller.getLatency());
+	}
+
+	@Test
+	public void timeToLiveOnlyExtends() {
+		CrowdTtlController controller = new CrowdTtlController(null);
+		controller.record(TimeUnit.MILLISECONDS.toNanos(1), false);
+		assertEquals(CrowdTtlController.MIN_TTL, controller.getCacheTtl());
+		assertEquals(CrowdTtlController.MIN_TTL, controller.getMinCacheTtl());
+		assertEquals(0.75, controller.getRefreshAhead(), 1e-9);
+
+		// Crowd fails all the time
+		for (int i = 0; i < 100; i++) {
+			controller.record(TimeUnit.SECONDS.toNanos(5), true);
+		}
+		assertEquals(100, controller.getPressurePercent());
+		assertEquals(CrowdTtlController.MAX_TTL, controller.getCacheTtl());
+		assertEquals(1.0, controller.getRefreshAhead(), 1e-9);
+
+		// and recovers
+		for (int i = 0; i < 1000; i++) {
+			controller.record(TimeUnit.MILLISECONDS.toNanos(1), false);
+			assertTrue(controller.getCacheTtl() >= CrowdTtlController.MIN_TTL);
+		}
+		assertEquals(CrowdTtlController.MIN_TTL, controller.getCacheTtl());
+	}
+
+	/**
+	 * Creates a request that isn't an HTTP request.
+	 */
+	private static ServletRequest request() {
+		return (ServletRequest) Proxy.newProxyInstance(ServletRequest.class.getClassLoader(),
+				new Class<?>[] { ServletRequest.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						return null;
+					}
+				});
+	}
+}
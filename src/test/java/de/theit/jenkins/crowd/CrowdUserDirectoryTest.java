@@ -0,0 +1,186 @@
+/*
+ * @(#)CrowdUserDirectoryTest.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2026 The Jenkins project contributors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.atlassian.crowd.exception.EventTokenExpiredException;
+import com.atlassian.crowd.model.event.Events;
+import com.atlassian.crowd.model.event.Operation;
+import com.atlassian.crowd.model.event.OperationEvent;
+import com.atlassian.crowd.model.event.UserEvent;
+import com.atlassian.crowd.model.user.User;
+
+/**
+ * Tests the complete and incremental synchronisation of
+ * {@link CrowdUserDirectory}.
+ * 
+ * @version $Id$
+ */
+public class CrowdUserDirectoryTest {
+	/** The users Crowd returns when all users are requested. */
+	private final List<User> users = new ArrayList<User>(Arrays.asList(FakeCrowdClient.user("Alice"),
+			FakeCrowdClient.user("bob"), FakeCrowdClient.user("carol")));
+
+	/** The events Crowd returns for the next incremental synchronisation. */
+	private final List<OperationEvent> events = new ArrayList<OperationEvent>();
+
+	/** Whether the event token has expired. */
+	private boolean tokenExpired;
+
+	private final FakeCrowdClient crowd = new FakeCrowdClient()
+			.answer("getCurrentEventToken", new FakeCrowdClient.Answer() {
+				@Override
+				public Object answer(Object[] args) {
+					return "token-" + crowd.calls("getCurrentEventToken");
+				}
+			}).answer("searchUsers", new FakeCrowdClient.Answer() {
+				@Override
+				public Object answer(Object[] args) {
+					int start = ((Integer) args[1]).intValue();
+					return start < users.size() ? new ArrayList<User>(users.subList(start, users.size()))
+							: new ArrayList<User>();
+				}
+			}).answer("getNewEvents", new FakeCrowdClient.Answer() {
+				@Override
+				public Object answer(Object[] args) throws Exception {
+					if (tokenExpired) {
+						throw new EventTokenExpiredException("expired");
+					}
+					Events result = new Events(new ArrayList<OperationEvent>(events), args[0] + "+");
+					events.clear();
+					return result;
+				}
+			});
+
+	private final CrowdUserDirectory directory = new CrowdUserDirectory(this.crowd.configuration("", false));
+
+	@Test
+	public void completeSyncMirrorsAllUsers() {
+		this.directory.sync();
+
+		assertEquals(3, this.directory.getUserCount());
+		assertTrue(this.directory.isIncremental());
+		assertEquals("Alice", this.directory.getUser("alice").getName());
+		assertEquals("bob@example.com", this.directory.getEmailAddress("BOB"));
+		assertNull(this.directory.getUser("dave"));
+		assertEquals(1, this.crowd.calls("searchUsers"));
+		assertEquals(2, this.crowd.totalCalls());
+	}
+
+	@Test
+	public void incrementalSyncAppliesTheEvents() {
+		this.directory.sync();
+		this.events.add(event(Operation.CREATED, FakeCrowdClient.user("aaron")));
+		this.events.add(event(Operation.CREATED, FakeCrowdClient.user("dave")));
+		this.events.add(event(Operation.UPDATED, FakeCrowdClient.user("bob", "Bob Builder")));
+		this.events.add(event(Operation.DELETED, FakeCrowdClient.user("carol")));
+
+		this.directory.sync();
+
+		assertEquals(4, this.directory.getUserCount());
+		assertEquals("aaron", this.directory.getUser("aaron").getName());
+		assertEquals("Bob Builder", this.directory.getUser("bob").getDisplayName());
+		assertEquals("dave@example.com", this.directory.getEmailAddress("dave"));
+		assertNull(this.directory.getUser("carol"));
+		assertArrayEquals(new String[] { "aaron", "alice", "bob", "dave" }, this.directory.getSnapshot().keys);
+		// only the events were requested, not all users again
+		assertEquals(1, this.crowd.calls("searchUsers"));
+		assertEquals(1, this.crowd.calls("getNewEvents"));
+
+		// the new token is used for the next synchronisation
+		this.directory.sync();
+		assertEquals(2, this.crowd.calls("getNewEvents"));
+		assertEquals(4, this.directory.getUserCount());
+	}
+
+	@Test
+	public void expiredTokenResyncsCompletely() {
+		this.directory.sync();
+		this.users.add(FakeCrowdClient.user("dave"));
+		this.users.remove(0);
+		this.tokenExpired = true;
+
+		this.directory.sync();
+
+		assertEquals(2, this.crowd.calls("searchUsers"));
+		assertEquals(2, this.crowd.calls("getCurrentEventToken"));
+		assertEquals(3, this.directory.getUserCount());
+		assertNull(this.directory.getUser("alice"));
+		assertEquals("dave", this.directory.getUser("dave").getName());
+		assertTrue(this.directory.isIncremental());
+	}
+
+	@Test
+	public void mergedChangesEqualARebuild() {
+		SortedMap<String, CrowdUserSnapshot> users = new TreeMap<String, CrowdUserSnapshot>();
+		for (String name : new String[] { "b", "d", "f", "h" }) {
+			users.put(name, new CrowdUserSnapshot(name, null, name + "@example.com", !"d".equals(name)));
+		}
+		CrowdUserDirectory.Snapshot snapshot = CrowdUserDirectory.Snapshot.build(users);
+
+		SortedMap<String, CrowdUserSnapshot> changes = new TreeMap<String, CrowdUserSnapshot>();
+		changes.put("a", new CrowdUserSnapshot("a", "A", null, true));
+		changes.put("c", null);
+		changes.put("d", new CrowdUserSnapshot("d", "D", null, true));
+		changes.put("f", null);
+		changes.put("i", new CrowdUserSnapshot("i", null, null, false));
+		CrowdUserDirectory.Snapshot merged = snapshot.withChanges(changes);
+
+		for (String key : changes.keySet()) {
+			if (null == changes.get(key)) {
+				users.remove(key);
+			} else {
+				users.put(key, changes.get(key));
+			}
+		}
+		CrowdUserDirectory.Snapshot rebuilt = CrowdUserDirectory.Snapshot.build(users);
+		assertArrayEquals(rebuilt.keys, merged.keys);
+		assertArrayEquals(rebuilt.names, merged.names);
+		assertArrayEquals(rebuilt.displayNames, merged.displayNames);
+		assertArrayEquals(rebuilt.emails, merged.emails);
+		assertEquals(rebuilt.active, merged.active);
+		assertFalse(merged.toSnapshot(merged.indexOf("i")).isActive());
+		// the original snapshot is unchanged
+		assertEquals(4, snapshot.size());
+	}
+
+	private static UserEvent event(Operation operation, User user) {
+		return new UserEvent(operation, null, user, null, null);
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * @(#)CrowdUserSnapshotFootprintTest.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2026 The Jenkins project contributors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+/**
+ * Measures the heap footprint per cached user of {@link CrowdUserSnapshot}.
+ * The footprint is taken from the used heap before and after creating the
+ * snapshots, so the numbers are approximate.
+ * 
+ * @version $Id$
+ */
+public class CrowdUserSnapshotFootprintTest {
+	/** Used for logging purposes. */
+	private static final Logger LOG = Logger.getLogger(CrowdUserSnapshotFootprintTest.class.getName());
+
+	/** The number of users to create snapshots for. */
+	private static final int USERS = 100000;
+
+	@Test
+	public void refetchedUsersShareTheirStrings() {
+		long before = usedHeap();
+		CrowdUserSnapshot[] first = fetch("footprint");
+		long afterFirst = usedHeap();
+		CrowdUserSnapshot[] second = fetch("footprint");
+		long afterSecond = usedHeap();
+
+		long firstBytes = (afterFirst - before) / USERS;
+		long secondBytes = (afterSecond - afterFirst) / USERS;
+		LOG.info("First fetch: " + firstBytes + " bytes per user, fetched again: " + secondBytes + " bytes per user");
+
+		assertEquals(first.length, second.length);
+		assertSame(first[USERS - 1].getName(), second[USERS - 1].getName());
+		// only the snapshot objects themselves are added, the strings of the
+		// second fetch are garbage right away
+		assertTrue("Fetched again: " + secondBytes + " bytes per user", secondBytes < 64);
+	}
+
+	/**
+	 * Creates snapshots for all users like a complete fetch from Crowd would,
+	 * i.e. with new string instances.
+	 * 
+	 * @param prefix
+	 *            The prefix of the user names.
+	 * @return The snapshots.
+	 */
+	private static CrowdUserSnapshot[] fetch(String prefix) {
+		CrowdUserSnapshot[] snapshots = new CrowdUserSnapshot[USERS];
+		for (int i = 0; i < USERS; i++) {
+			snapshots[i] = new CrowdUserSnapshot(prefix + i, "User " + prefix + ' ' + i,
+					prefix + i + "@example.com", true);
+		}
+		return snapshots;
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
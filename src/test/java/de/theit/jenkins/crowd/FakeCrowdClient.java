@@ -0,0 +1,231 @@
+/*
+ * @(#)FakeCrowdClient.java
+ * 
+ * The MIT License
+ * 
+ * Copyright (C)2026 The Jenkins project contributors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.theit.jenkins.crowd;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.atlassian.crowd.integration.http.util.CrowdHttpTokenHelperImpl;
+import com.atlassian.crowd.integration.http.util.CrowdHttpValidationFactorExtractorImpl;
+import com.atlassian.crowd.model.user.User;
+import com.atlassian.crowd.service.client.ClientPropertiesImpl;
+import com.atlassian.crowd.service.client.CrowdClient;
+
+/**
+ * A Crowd client for tests that counts the calls per method and answers them
+ * as configured. Methods without an answer return an empty collection,
+ * <code>false</code>, <code>0</code> or <code>null</code>.
+ * 
+ * @version $Id$
+ */
+final class FakeCrowdClient implements InvocationHandler {
+	/** The number of calls per method name. */
+	private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+
+	/** The answers per method name. */
+	private final Map<String, Answer> answers = new ConcurrentHashMap<String, Answer>();
+
+	/** The client handed out to the code under test. */
+	private final CrowdClient client = (CrowdClient) Proxy.newProxyInstance(CrowdClient.class.getClassLoader(),
+			new Class<?>[] { CrowdClient.class }, this);
+
+	/**
+	 * Answers a call of the fake client.
+	 */
+	interface Answer {
+		/**
+		 * Returns the result of a call or throws the exception the real
+		 * client would throw.
+		 * 
+		 * @param args
+		 *            The arguments of the call. Never <code>null</code>.
+		 * @return The result.
+		 * @throws Exception
+		 *             The exception of the call.
+		 */
+		Object answer(Object[] args) throws Exception;
+	}
+
+	/**
+	 * Sets the answer for all calls of a method.
+	 * 
+	 * @param method
+	 *            The name of the method.
+	 * @param answer
+	 *            The answer.
+	 * @return This fake.
+	 */
+	FakeCrowdClient answer(String method, Answer answer) {
+		this.answers.put(method, answer);
+		return this;
+	}
+
+	/**
+	 * Returns the client to pass to the code under test.
+	 * 
+	 * @return The client.
+	 */
+	CrowdClient client() {
+		return this.client;
+	}
+
+	/**
+	 * Returns how often a method was called.
+	 * 
+	 * @param method
+	 *            The name of the method.
+	 * @return The number of calls.
+	 */
+	int calls(String method) {
+		AtomicInteger count = this.calls.get(method);
+		return null != count ? count.get() : 0;
+	}
+
+	/**
+	 * Returns the total number of calls, i.e. of round trips to Crowd.
+	 * 
+	 * @return The number of calls.
+	 */
+	int totalCalls() {
+		int total = 0;
+		for (AtomicInteger count : this.calls.values()) {
+			total += count.get();
+		}
+		return total;
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (method.getDeclaringClass() == Object.class) {
+			return method.invoke(this, args);
+		}
+		AtomicInteger count = this.calls.get(method.getName());
+		if (null == count) {
+			this.calls.putIfAbsent(method.getName(), new AtomicInteger());
+			count = this.calls.get(method.getName());
+		}
+		count.incrementAndGet();
+
+		Answer answer = this.answers.get(method.getName());
+		if (null != answer) {
+			return answer.answer(null != args ? args : new Object[0]);
+		}
+		return defaultValue(method.getReturnType());
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (List.class.isAssignableFrom(type)) {
+			return Collections.emptyList();
+		} else if (Set.class.isAssignableFrom(type)) {
+			return Collections.emptySet();
+		} else if (boolean.class == type) {
+			return false;
+		} else if (int.class == type) {
+			return 0;
+		} else if (long.class == type) {
+			return 0L;
+		}
+		return null;
+	}
+
+	/**
+	 * Creates an active Crowd user without display name.
+	 * 
+	 * @param name
+	 *            The name of the user.
+	 * @return The user.
+	 */
+	static User user(String name) {
+		return user(name, null);
+	}
+
+	/**
+	 * Creates an active Crowd user.
+	 * 
+	 * @param name
+	 *            The name of the user.
+	 * @param displayName
+	 *            The display name of the user. May be <code>null</code>.
+	 * @return The user.
+	 */
+	static User user(final String name, final String displayName) {
+		return (User) Proxy.newProxyInstance(User.class.getClassLoader(), new Class<?>[] { User.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if ("getName".equals(method.getName())) {
+							return name;
+						} else if ("isActive".equals(method.getName())) {
+							return true;
+						} else if ("getEmailAddress".equals(method.getName())) {
+							return name + "@example.com";
+						} else if ("getDisplayName".equals(method.getName())) {
+							return displayName;
+						} else if ("hashCode".equals(method.getName())) {
+							return name.hashCode();
+						} else if ("equals".equals(method.getName())) {
+							return proxy == args[0];
+						} else if ("toString".equals(method.getName())) {
+							return name;
+						}
+						return defaultValue(method.getReturnType());
+					}
+				});
+	}
+
+	/**
+	 * Creates a configuration using this fake. Apart from the expiry of the
+	 * SSO tokens when SSO is enabled, no background tasks are started.
+	 * 
+	 * @param group
+	 *            The comma-separated names of the groups whose members may
+	 *            login.
+	 * @param useSSO
+	 *            Whether SSO is enabled.
+	 * @return The configuration.
+	 */
+	CrowdConfigurationService configuration(String group, boolean useSSO) {
+		CrowdConfigurationService configuration = new CrowdConfigurationService(group, false);
+		configuration.useSSO = useSSO;
+		configuration.crowdClient = this.client;
+		if (useSSO) {
+			configuration.clientProperties = ClientPropertiesImpl.newInstanceFromProperties(
+					CrowdConfigurationService.getProperties("http://crowd.invalid/crowd", "test", "test", 2, true,
+							null, null, Boolean.FALSE, null, null, null, null, null, null, null));
+			configuration.tokenHelper = CrowdHttpTokenHelperImpl
+					.getInstance(CrowdHttpValidationFactorExtractorImpl.getInstance());
+			configuration.initializeTokenCaches();
+		}
+		return configuration;
+	}
+}